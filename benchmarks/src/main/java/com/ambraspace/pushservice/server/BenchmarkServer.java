@@ -0,0 +1,74 @@
+package com.ambraspace.pushservice.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Starts a Server on free loopback ports for benchmarks.
+ */
+public class BenchmarkServer {
+
+	private static final String[] LOGGERS = {
+			"Server", "ConnectionManager", "DeliveryJournal", "SelectorLoop",
+			"TimedFixedThreadPool", "VirtualThreadExecutor", "TimingWheel"
+	};
+
+
+	/**
+	 * Starts a Server and waits until it accepts connections.
+	 * Per-client logging is switched off, it would dominate the numbers.
+	 * @param options server options (port and servicePort are overwritten)
+	 * @param dbManager database stand-in
+	 * @return running server
+	 */
+	public static Server start(ServerOptions options, DBManager dbManager) throws IOException {
+
+		for (String name : LOGGERS) {
+			Logger.getLogger(name).setLevel(Level.SEVERE);
+		}
+
+		options.setPort(freePort());
+		options.setServicePort(freePort());
+		Server server = new Server(options, dbManager);
+		awaitPort(options.getPort());
+		awaitPort(options.getServicePort());
+		return server;
+
+	}
+
+
+	private static int freePort() throws IOException {
+		try (ServerSocket s = new ServerSocket(0)) {
+			return s.getLocalPort();
+		}
+	}
+
+
+	private static void awaitPort(int port) throws IOException {
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try (Socket s = new Socket()) {
+				s.connect(new InetSocketAddress("localhost", port), 100);
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+	}
+
+}
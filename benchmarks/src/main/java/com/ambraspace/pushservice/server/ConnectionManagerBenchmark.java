@@ -0,0 +1,94 @@
+package com.ambraspace.pushservice.server;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of taking a client out of the keep-alive wheel and putting it
+ * back (what every Pinger and ClientWriter does), with the registry
+ * holding 10k, 100k and 1M clients. The clients have no connection,
+ * the keep-alive timeout is long enough that none is PINGed meanwhile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ConnectionManagerBenchmark {
+
+	@Param({"10000", "100000", "1000000"})
+	public int clients;
+
+	private Server server;
+	private ConnectionManager connectionManager;
+	private ConnectedClient[] registered;
+
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		ServerOptions options = new ServerOptions();
+		options.setKeepAliveTimeout(3600);
+		options.setMaxClients(clients);
+		server = BenchmarkServer.start(options, new InMemoryDBManager(true));
+		connectionManager = server.getConnectionManager();
+
+		registered = new ConnectedClient[clients];
+		for (int i = 0; i < clients; i++) {
+			registered[i] = new ConnectedClient("C" + i, null, new Date());
+			connectionManager.registerClient(registered[i]);
+		}
+
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.shutdown();
+	}
+
+
+	@Benchmark
+	public ConnectedClient popPush() {
+		ConnectedClient c = registered[ThreadLocalRandom.current().nextInt(clients)];
+		connectionManager.pop(c);
+		connectionManager.push(c);
+		return c;
+	}
+
+
+	/**
+	 * Same as popPush(), with four threads contending for the registry.
+	 */
+	@Benchmark
+	@Threads(4)
+	public ConnectedClient popPushContended() {
+		return popPush();
+	}
+
+
+	@Benchmark
+	public boolean isRegistered() {
+		return connectionManager.isRegistered("C" + ThreadLocalRandom.current().nextInt(clients));
+	}
+
+}
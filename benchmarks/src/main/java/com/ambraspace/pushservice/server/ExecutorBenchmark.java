@@ -0,0 +1,101 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Per-task overhead of TimedFixedThreadPool (deadline scheduling and
+ * cancellation) compared with a plain fixed thread pool, and of
+ * VirtualThreadExecutor. Tasks do nothing, so only the executor is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(ExecutorBenchmark.BATCH)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecutorBenchmark {
+
+	static final int BATCH = 1000;
+
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	@Param({"4", "16"})
+	public int threads;
+
+	private ExecutorService plainPool;
+	private ExecutorService timedPool;
+	private ExecutorService virtualExecutor;
+
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		plainPool = Executors.newFixedThreadPool(threads);
+		timedPool = new TimedFixedThreadPool(threads, 10, TimeUnit.SECONDS);
+		virtualExecutor = new VirtualThreadExecutor("Benchmark", 10, TimeUnit.SECONDS);
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		plainPool.shutdown();
+		timedPool.shutdown();
+		virtualExecutor.shutdown();
+	}
+
+
+	@Benchmark
+	public void plainPool() throws InterruptedException, ExecutionException {
+		run(plainPool);
+	}
+
+
+	@Benchmark
+	public void timedPool() throws InterruptedException, ExecutionException {
+		run(timedPool);
+	}
+
+
+	@Benchmark
+	public void virtualExecutor() throws InterruptedException, ExecutionException {
+		run(virtualExecutor);
+	}
+
+
+	private static void run(ExecutorService executor) throws InterruptedException, ExecutionException {
+		List<Future<?>> futures = new ArrayList<Future<?>>(BATCH);
+		for (int i = 0; i < BATCH; i++) {
+			futures.add(executor.submit(NOTHING));
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+	}
+
+}
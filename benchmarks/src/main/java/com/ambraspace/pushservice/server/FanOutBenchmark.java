@@ -0,0 +1,175 @@
+package com.ambraspace.pushservice.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * One message delivered by MessageProcessor to all connected clients,
+ * until all delivery reports are written by the journal. The clients are
+ * loopback connections which acknowledge every message at once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+	@Param({"100", "1000"})
+	public int clients;
+
+	@Param({"NIO", "BLOCKING", "VIRTUAL"})
+	public ServerOptions.IOMode ioMode;
+
+	// One permit per delivery report written by the journal
+	private final Semaphore reports = new Semaphore(0);
+	private Server server;
+	private List<Socket> sockets;
+	private final AtomicLong lastMessageID = new AtomicLong();
+
+
+	/**
+	 * Reads messages and PINGs of one client and answers them.
+	 */
+	private static class Responder extends Thread {
+
+		private final BufferedReader in;
+		private final Writer out;
+
+		public Responder(BufferedReader in, Writer out) {
+			this.in = in;
+			this.out = out;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("MESSAGE ")) {
+						in.readLine();
+						out.write("OK " + line.substring(8) + "\n");
+						out.flush();
+					} else if ("PING".equals(line)) {
+						out.write("PONG\n");
+						out.flush();
+					}
+				}
+			} catch (IOException e) {
+				// Connection closed at tear down
+			}
+		}
+
+	}
+
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+
+		ServerOptions options = new ServerOptions();
+		options.setIoMode(ioMode);
+		options.setMaxClients(clients);
+		options.setJournalFlushInterval(1);
+		server = BenchmarkServer.start(options, new InMemoryDBManager(true) {
+			@Override
+			public boolean updateDeliveryStatus(List<DeliveryReport> delivered) {
+				reports.release(delivered.size());
+				return super.updateDeliveryStatus(delivered);
+			}
+		});
+
+		sockets = new ArrayList<Socket>(clients);
+		for (int i = 0; i < clients; i++) {
+			Socket s = new Socket("localhost", options.getPort());
+			s.setTcpNoDelay(true);
+			sockets.add(s);
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+			out.write("Protocol=2\n");
+			out.flush();
+			expect(in, "OK");
+			in.readLine();
+			out.write("ApplicationID=benchmark\n");
+			out.flush();
+			expect(in, "OK");
+			out.write("ClientID=C" + i + "\n");
+			out.flush();
+			expect(in, "OK");
+			out.write("TIMEOUT\n");
+			out.flush();
+			in.readLine();
+			new Responder(in, out).start();
+		}
+
+		while (server.getConnectionManager().getClientCount() < clients) {
+			Thread.sleep(10);
+		}
+
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		for (Socket s : sockets) {
+			s.close();
+		}
+		server.shutdown();
+	}
+
+
+	@Benchmark
+	public void deliverToAll() throws InterruptedException {
+
+		Message message = new Message();
+		message.setId(lastMessageID.incrementAndGet());
+		message.setText("Hello");
+		message.setDateSent(new Date());
+		for (int i = 0; i < clients; i++) {
+			message.getRecipients().put("C" + i, false);
+		}
+
+		server.getConnectionManager().processMessage(message);
+		if (!reports.tryAcquire(clients, 1, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("Delivery reports missing.");
+		}
+
+	}
+
+
+	private static void expect(BufferedReader in, String expected) throws IOException {
+		String line = in.readLine();
+		if (!expected.equals(line)) {
+			throw new IOException("Expected " + expected + ", got " + line + ".");
+		}
+	}
+
+}
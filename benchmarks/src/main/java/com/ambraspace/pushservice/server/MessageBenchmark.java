@@ -0,0 +1,73 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Parsing of messages submitted to the service port, with growing
+ * number of recipients in the "to" array: through a JSONObject tree
+ * and with the streaming SubmissionParser.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageBenchmark {
+
+	@Param({"10", "1000", "100000"})
+	public int recipients;
+
+	private String json;
+	// The same message in a service port request
+	private String submission;
+
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"id\":1,\"text\":\"Hello\",\"date\":")
+				.append(System.currentTimeMillis())
+				.append(",\"to\":[");
+		for (int i = 0; i < recipients; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("\"C").append(i).append('"');
+		}
+		sb.append("]}");
+		json = sb.toString();
+		submission = "{\"type\":\"message\",\"message\":" + json + "}";
+
+	}
+
+
+	@Benchmark
+	public Message parseJSONMessage() {
+		return Message.parseJSONMessage(json);
+	}
+
+
+	@Benchmark
+	public Message parseSubmission() {
+		SubmissionParser parser = new SubmissionParser(submission);
+		parser.parse();
+		return parser.getMessage();
+	}
+
+}
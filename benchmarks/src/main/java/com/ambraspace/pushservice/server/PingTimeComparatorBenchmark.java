@@ -0,0 +1,81 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Ordering of clients by their next PING time with PingTimeComparator:
+ * sorting all clients at once, and rescheduling the first client of a
+ * priority queue (the structure the keep-alive wheel replaced).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class PingTimeComparatorBenchmark {
+
+	// Spread of PING times (milliseconds)
+	private static final int KEEP_ALIVE = 600000;
+
+	@Param({"10000", "100000", "1000000"})
+	public int clients;
+
+	private final PingTimeComparator comparator = new PingTimeComparator();
+	private ConnectedClient[] unsorted;
+	private PriorityQueue<ConnectedClient> queue;
+
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		// Fixed seed, so every run orders the same clients
+		Random random = new Random(42);
+		long now = System.currentTimeMillis();
+		unsorted = new ConnectedClient[clients];
+		for (int i = 0; i < clients; i++) {
+			unsorted[i] = new ConnectedClient("C" + i, null,
+					new Date(now + random.nextInt(KEEP_ALIVE)));
+		}
+		queue = new PriorityQueue<ConnectedClient>(clients, comparator);
+		queue.addAll(Arrays.asList(unsorted));
+
+	}
+
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public ConnectedClient[] sort() {
+		ConnectedClient[] sorted = unsorted.clone();
+		Arrays.sort(sorted, comparator);
+		return sorted;
+	}
+
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public ConnectedClient reschedule() {
+		ConnectedClient c = queue.poll();
+		c.setNextPingTime(new Date(c.getNextPingTime().getTime() + KEEP_ALIVE));
+		queue.offer(c);
+		return c;
+	}
+
+}
@@ -0,0 +1,711 @@
+package com.ambraspace.pushservice.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.ambraspace.pushservice.server.InMemoryDBManager;
+import com.ambraspace.pushservice.server.LatencyRecorder;
+import com.ambraspace.pushservice.server.SelectorLoop;
+import com.ambraspace.pushservice.server.Server;
+import com.ambraspace.pushservice.server.ServerOptions;
+
+
+/**
+ * Load generator speaking the real client protocol. It opens a number of
+ * simulated clients (handshake, PING/PONG, MESSAGE/OK), submits messages
+ * through the service port at a fixed rate and reports handshake,
+ * delivery, PING and submission latency percentiles and throughput.
+ * Clients can be slow to respond, drop their connections and reconnect
+ * all at once (reconnect storm). Clients told BUSY by the server reconnect
+ * after the delay it asks for.
+ * Unless a host is given, a local server with an InMemoryDBManager is
+ * started, so no database or network is needed.
+ * Delivery latency is measured from submission to receipt (the text of
+ * every message is the time it was submitted). PING latency is the time
+ * since the client's previous PING (or handshake), so it shows how evenly
+ * the server keeps clients alive.
+ */
+public class LoadGenerator {
+
+	private static final String APPLICATION_ID = "loadtest";
+
+	private static final String OPTION_HOST = "host";
+	private static final String OPTION_PORT = "port";
+	private static final String OPTION_SERVICE_PORT = "servicePort";
+	private static final String OPTION_IO_MODE = "ioMode";
+	private static final String OPTION_KEEP_ALIVE_TIMEOUT = "keepAliveTimeout";
+	private static final String OPTION_HANDSHAKE_RATE = "handshakeRate";
+	private static final String OPTION_CLIENTS = "clients";
+	private static final String OPTION_CONNECT_RATE = "connectRate";
+	private static final String OPTION_PROTOCOL = "protocol";
+	private static final String OPTION_MAX_KEEP_ALIVE = "maxKeepAlive";
+	private static final String OPTION_SELECTOR_THREADS = "selectorThreads";
+	private static final String OPTION_DURATION = "duration";
+	private static final String OPTION_MESSAGE_RATE = "messageRate";
+	private static final String OPTION_RECIPIENTS = "recipients";
+	private static final String OPTION_SLOW_FRACTION = "slowFraction";
+	private static final String OPTION_SLOW_DELAY = "slowDelay";
+	private static final String OPTION_DROP_RATE = "dropRate";
+	private static final String OPTION_STORM_INTERVAL = "stormInterval";
+	private static final String OPTION_STORM_FRACTION = "stormFraction";
+	private static final String OPTION_RECONNECT_DELAY = "reconnectDelay";
+	private static final String OPTION_RESPONSE_TIMEOUT = "responseTimeout";
+	private static final String OPTION_REPORT_INTERVAL = "reportInterval";
+
+	// Option names, default values and descriptions (for usage)
+	private static final String[][] OPTIONS = {
+			{OPTION_HOST, "", "server host; if empty, a local server is started"},
+			{OPTION_PORT, "" + new ServerOptions().getPort(), "client port"},
+			{OPTION_SERVICE_PORT, "" + new ServerOptions().getServicePort(), "service port"},
+			{OPTION_IO_MODE, "nio", "I/O mode of the local server"},
+			{OPTION_KEEP_ALIVE_TIMEOUT, "60", "keep-alive timeout of the local server (seconds)"},
+			{OPTION_HANDSHAKE_RATE, "0", "handshakes per second admitted by the local server, 0 for no limit"},
+			{OPTION_CLIENTS, "1000", "number of simulated clients"},
+			{OPTION_CONNECT_RATE, "1000", "initial connections per second, 0 for all at once"},
+			{OPTION_PROTOCOL, "2", "protocol version requested by clients"},
+			{OPTION_MAX_KEEP_ALIVE, "0", "longest keep-alive accepted by clients (seconds, protocol 3), 0 for the server's fixed one"},
+			{OPTION_SELECTOR_THREADS, "0", "client I/O threads, 0 for one per core"},
+			{OPTION_DURATION, "60", "duration of the test (seconds)"},
+			{OPTION_MESSAGE_RATE, "100", "messages submitted per second"},
+			{OPTION_RECIPIENTS, "1", "recipients per message (random clients)"},
+			{OPTION_SLOW_FRACTION, "0", "fraction of clients responding slowly (0 - 1)"},
+			{OPTION_SLOW_DELAY, "500", "response delay of slow clients (milliseconds)"},
+			{OPTION_DROP_RATE, "0", "connections dropped per second"},
+			{OPTION_STORM_INTERVAL, "0", "seconds between reconnect storms, 0 for none"},
+			{OPTION_STORM_FRACTION, "0.5", "fraction of clients reconnecting in a storm (0 - 1)"},
+			{OPTION_RECONNECT_DELAY, "1000", "delay before a dropped client reconnects (milliseconds)"},
+			{OPTION_RESPONSE_TIMEOUT, "30", "how long a client waits for the server during handshake (seconds)"},
+			{OPTION_REPORT_INTERVAL, "5", "seconds between reports"}
+	};
+
+
+	private enum ClientState {
+		PROTOCOL,
+		VERSION,
+		APP_ID,
+		CLIENT_ID,
+		TIMEOUT,
+		IDLE,
+		MESSAGE_TEXT
+	}
+
+
+	/**
+	 * One connection of a simulated client. A client which drops its
+	 * connection reconnects with a new SimulatedClient and the same client UID.
+	 */
+	private class SimulatedClient extends SelectorLoop.Session {
+
+		private final int index;
+		private final long connectTime; // nanoTime
+		private final boolean slow;
+		private ClientState state;
+		private long lastPing; // nanoTime
+		// ID of the message being received (protocol version 2)
+		private String messageID;
+		// Delay before reconnecting, as asked by the server (milliseconds)
+		private long retryAfter = -1;
+
+
+		public SimulatedClient(int index, long connectTime) {
+			this.index = index;
+			this.connectTime = connectTime;
+			this.slow = slowClients[index];
+		}
+
+
+		@Override
+		protected void onOpen() {
+			setDeadline(responseTimeout * 1000L);
+			if (protocol >= 2) {
+				send("Protocol=" + protocol);
+				state = ClientState.PROTOCOL;
+			} else {
+				send("ApplicationID=" + APPLICATION_ID);
+				state = ClientState.APP_ID;
+			}
+		}
+
+
+		@Override
+		protected void onLine(String line) {
+
+			long now = System.nanoTime();
+
+			if (state != ClientState.IDLE && state != ClientState.MESSAGE_TEXT && line.startsWith("BUSY ")) {
+				// Not admitted, reconnect when told to
+				busy.incrementAndGet();
+				try {
+					retryAfter = TimeUnit.SECONDS.toMillis(Long.parseLong(line.substring(5).trim()));
+				} catch (NumberFormatException e) {
+					retryAfter = reconnectDelay;
+				}
+				close();
+				return;
+			}
+
+			switch (state) {
+				case PROTOCOL:
+					expect(line, "OK");
+					state = ClientState.VERSION;
+					break;
+				case VERSION:
+					send("ApplicationID=" + APPLICATION_ID);
+					state = ClientState.APP_ID;
+					break;
+				case APP_ID:
+					expect(line, "OK");
+					send("ClientID=" + clientUID(index));
+					state = ClientState.CLIENT_ID;
+					break;
+				case CLIENT_ID:
+					expect(line, "OK");
+					send((protocol >= 3 && maxKeepAlive > 0) ? "TIMEOUT " + maxKeepAlive : "TIMEOUT");
+					state = ClientState.TIMEOUT;
+					break;
+				case TIMEOUT:
+					clearDeadline();
+					handshakeLatency.record(now - connectTime, TimeUnit.NANOSECONDS);
+					lastPing = now;
+					connected.set(index, this);
+					state = ClientState.IDLE;
+					break;
+				case IDLE:
+					if ("PING".equals(line)) {
+						pingLatency.record(now - lastPing, TimeUnit.NANOSECONDS);
+						lastPing = now;
+						reply("PONG");
+					} else if ("MESSAGE".equals(line)) {
+						messageID = null;
+						state = ClientState.MESSAGE_TEXT;
+					} else if (line.startsWith("MESSAGE ")) {
+						messageID = line.substring(8);
+						state = ClientState.MESSAGE_TEXT;
+					} else {
+						fail(line);
+					}
+					break;
+				case MESSAGE_TEXT:
+					try {
+						deliveryLatency.record(now - Long.parseLong(line), TimeUnit.NANOSECONDS);
+					} catch (NumberFormatException e) {
+						// Not submitted by this generator
+					}
+					received.incrementAndGet();
+					reply(messageID == null ? "OK" : "OK " + messageID);
+					state = ClientState.IDLE;
+					break;
+			}
+
+		}
+
+
+		private void expect(String line, String expected) {
+			if (!expected.equals(line)) {
+				fail(line);
+			}
+		}
+
+
+		private void fail(String line) {
+			protocolErrors.incrementAndGet();
+			logger.logp(Level.FINE, "LoadGenerator.SimulatedClient", "fail()", "Client #" + clientUID(index) + " got " + line + " in state " + state + ".");
+			close();
+		}
+
+
+		/**
+		 * Sends a response, after slowDelay if this is a slow client.
+		 */
+		private void reply(final String line) {
+			if (!slow) {
+				send(line);
+				return;
+			}
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					execute(new Runnable() {
+						@Override
+						public void run() {
+							if (!isClosed()) {
+								send(line);
+							}
+						}
+					});
+				}
+			}, slowDelay, TimeUnit.MILLISECONDS);
+		}
+
+
+		@Override
+		protected void onTimeout() {
+			timeouts.incrementAndGet();
+			close();
+		}
+
+
+		@Override
+		protected void onClosed() {
+			connected.compareAndSet(index, this, null);
+			disconnects.incrementAndGet();
+			connect(index, retryAfter >= 0 ? retryAfter : reconnectDelay);
+		}
+
+	}
+
+
+	/**
+	 * Submits messages through the service port at messageRate, pipelined
+	 * on one connection. Responses come back in order, so the time of
+	 * every submission is queued until its response arrives.
+	 */
+	private class Submitter extends Thread {
+
+		private final Queue<Long> pending = new ConcurrentLinkedQueue<Long>();
+		private long lastMessageID = 0;
+
+
+		public Submitter() {
+			setName("LoadGenerator.Submitter");
+			setDaemon(true);
+		}
+
+
+		@Override
+		public void run() {
+
+			try (Socket socket = new Socket(host, servicePort)) {
+
+				socket.setTcpNoDelay(true);
+				final BufferedReader in = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), "UTF-8"));
+				Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+
+				Thread responses = new Thread() {
+					@Override
+					public void run() {
+						try {
+							String line;
+							while ((line = in.readLine()) != null) {
+								Long sent = pending.poll();
+								if (sent != null) {
+									submitLatency.record(System.nanoTime() - sent, TimeUnit.NANOSECONDS);
+								}
+								if (!"OK".equals(line)) {
+									submitErrors.incrementAndGet();
+								}
+							}
+						} catch (IOException e) {
+							// Connection closed
+						}
+					}
+				};
+				responses.setName("LoadGenerator.Submitter.Responses");
+				responses.setDaemon(true);
+				responses.start();
+
+				long interval = (long) (1000000000.0 / messageRate);
+				long next = System.nanoTime();
+				while (running) {
+					long now = System.nanoTime();
+					if (next - now > 0) {
+						LockSupport.parkNanos(next - now);
+						continue;
+					}
+					next += interval;
+					long sent = System.nanoTime();
+					String request = newRequest(sent);
+					pending.add(sent);
+					out.write(request);
+					out.write("\n");
+					// Flush only when no other submission is due already
+					if (next - System.nanoTime() > 0) {
+						out.flush();
+					}
+					submitted.incrementAndGet();
+				}
+				out.flush();
+
+			} catch (IOException e) {
+				logger.logp(Level.SEVERE, "LoadGenerator.Submitter", "run()", "Service port failed: " + e.getMessage());
+			}
+
+		}
+
+
+		private String newRequest(long sent) {
+
+			JSONArray to = new JSONArray();
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < recipients; i++) {
+				to.put(clientUID(random.nextInt(clients)));
+			}
+			JSONObject message = new JSONObject();
+			message.put("id", ++lastMessageID);
+			message.put("text", "" + sent);
+			message.put("date", System.currentTimeMillis());
+			message.put("to", to);
+			JSONObject request = new JSONObject();
+			request.put("type", "message");
+			request.put("message", message);
+			return request.toString();
+
+		}
+
+	}
+
+
+	private static Logger logger = Logger.getLogger("LoadGenerator");
+
+
+	private final String host;
+	private final int port;
+	private final int servicePort;
+	private final int clients;
+	private final int connectRate;
+	private final int protocol;
+	private final int maxKeepAlive;
+	private final int duration;
+	private final double messageRate;
+	private final int recipients;
+	private final long slowDelay;
+	private final double dropRate;
+	private final int stormInterval;
+	private final double stormFraction;
+	private final long reconnectDelay;
+	private final int responseTimeout;
+	private final int reportInterval;
+
+	private final boolean[] slowClients;
+	// Clients which finished the handshake
+	private final AtomicReferenceArray<SimulatedClient> connected;
+	private final SelectorLoop[] loops;
+	// Opens connections (blocking)
+	private final ScheduledExecutorService connector;
+	// Slow responses, drops, storms and reports
+	private final ScheduledExecutorService timer;
+	private final InMemoryDBManager localDBManager;
+
+	private volatile boolean running = true;
+
+	private final LatencyRecorder handshakeLatency = new LatencyRecorder("handshake");
+	private final LatencyRecorder deliveryLatency = new LatencyRecorder("delivery");
+	private final LatencyRecorder pingLatency = new LatencyRecorder("ping");
+	private final LatencyRecorder submitLatency = new LatencyRecorder("submit");
+	private final LatencyRecorder[] recorders = {
+			handshakeLatency, deliveryLatency, pingLatency, submitLatency
+	};
+
+	private final AtomicLong connectErrors = new AtomicLong();
+	private final AtomicLong protocolErrors = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong busy = new AtomicLong();
+	private final AtomicLong disconnects = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong submitErrors = new AtomicLong();
+
+
+	public LoadGenerator(Properties properties) throws IOException {
+
+		String host = properties.getProperty(OPTION_HOST);
+		port = Integer.parseInt(properties.getProperty(OPTION_PORT));
+		servicePort = Integer.parseInt(properties.getProperty(OPTION_SERVICE_PORT));
+		clients = Integer.parseInt(properties.getProperty(OPTION_CLIENTS));
+		connectRate = Integer.parseInt(properties.getProperty(OPTION_CONNECT_RATE));
+		protocol = Integer.parseInt(properties.getProperty(OPTION_PROTOCOL));
+		maxKeepAlive = Integer.parseInt(properties.getProperty(OPTION_MAX_KEEP_ALIVE));
+		duration = Integer.parseInt(properties.getProperty(OPTION_DURATION));
+		messageRate = Double.parseDouble(properties.getProperty(OPTION_MESSAGE_RATE));
+		recipients = Integer.parseInt(properties.getProperty(OPTION_RECIPIENTS));
+		slowDelay = Long.parseLong(properties.getProperty(OPTION_SLOW_DELAY));
+		dropRate = Double.parseDouble(properties.getProperty(OPTION_DROP_RATE));
+		stormInterval = Integer.parseInt(properties.getProperty(OPTION_STORM_INTERVAL));
+		stormFraction = Double.parseDouble(properties.getProperty(OPTION_STORM_FRACTION));
+		reconnectDelay = Long.parseLong(properties.getProperty(OPTION_RECONNECT_DELAY));
+		responseTimeout = Integer.parseInt(properties.getProperty(OPTION_RESPONSE_TIMEOUT));
+		reportInterval = Integer.parseInt(properties.getProperty(OPTION_REPORT_INTERVAL));
+
+		if (host.isEmpty()) {
+			this.host = "localhost";
+			localDBManager = new InMemoryDBManager(true);
+			ServerOptions options = new ServerOptions();
+			options.setPort(port);
+			options.setServicePort(servicePort);
+			options.setIoMode(ServerOptions.IOMode.valueOf(
+					properties.getProperty(OPTION_IO_MODE).toUpperCase()));
+			options.setKeepAliveTimeout(Integer.parseInt(
+					properties.getProperty(OPTION_KEEP_ALIVE_TIMEOUT)));
+			options.setMaxClients(clients * 2);
+			options.setHandshakeRate(Integer.parseInt(
+					properties.getProperty(OPTION_HANDSHAKE_RATE)));
+			// Per-client logging of the server would dominate the test
+			Logger.getLogger("Server").setLevel(Level.WARNING);
+			Logger.getLogger("ConnectionManager").setLevel(Level.WARNING);
+			new Server(options, localDBManager);
+		} else {
+			this.host = host;
+			localDBManager = null;
+		}
+
+		double slowFraction = Double.parseDouble(properties.getProperty(OPTION_SLOW_FRACTION));
+		slowClients = new boolean[clients];
+		for (int i = 0; i < clients; i++) {
+			slowClients[i] = ThreadLocalRandom.current().nextDouble() < slowFraction;
+		}
+		connected = new AtomicReferenceArray<SimulatedClient>(clients);
+
+		int threads = Integer.parseInt(properties.getProperty(OPTION_SELECTOR_THREADS));
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		loops = new SelectorLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new SelectorLoop("LoadGenerator.SelectorLoop-" + i);
+			loops[i].start();
+		}
+		connector = Executors.newScheduledThreadPool(Math.min(threads, 8), newThreadFactory("LoadGenerator.Connector"));
+		timer = Executors.newSingleThreadScheduledExecutor(newThreadFactory("LoadGenerator.Timer"));
+
+	}
+
+
+	/**
+	 * Runs the test and prints the reports.
+	 */
+	public void run() throws InterruptedException {
+
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < clients; i++) {
+			connect(i, connectRate > 0 ? i * 1000L / connectRate : 0);
+		}
+
+		if (dropRate > 0) {
+			timer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					SimulatedClient c = connected.get(ThreadLocalRandom.current().nextInt(clients));
+					if (c != null) {
+						c.close();
+					}
+				}
+			}, 0, (long) (1000000000.0 / dropRate), TimeUnit.NANOSECONDS);
+		}
+
+		if (stormInterval > 0) {
+			timer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					int dropped = 0;
+					for (int i = 0; i < clients; i++) {
+						SimulatedClient c = connected.get(i);
+						if (c != null && ThreadLocalRandom.current().nextDouble() < stormFraction) {
+							c.close();
+							dropped++;
+						}
+					}
+					System.out.println("Reconnect storm: " + dropped + " clients dropped.");
+				}
+			}, stormInterval, stormInterval, TimeUnit.SECONDS);
+		}
+
+		timer.scheduleAtFixedRate(new Runnable() {
+			private long[][] previous = new long[recorders.length][];
+			private long previousReceived = 0;
+			private long previousSubmitted = 0;
+			@Override
+			public void run() {
+				double seconds = reportInterval;
+				long r = received.get();
+				long s = submitted.get();
+				System.out.println(String.format("[%5ds] connected %d/%d, submitted %.1f/s, received %.1f/s",
+						TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+						connectedCount(), clients,
+						(s - previousSubmitted) / seconds, (r - previousReceived) / seconds));
+				previousReceived = r;
+				previousSubmitted = s;
+				for (int i = 0; i < recorders.length; i++) {
+					long[] current = recorders[i].snapshot();
+					print(recorders[i].getName(), previous[i], current, seconds);
+					previous[i] = current;
+				}
+			}
+		}, reportInterval, reportInterval, TimeUnit.SECONDS);
+
+		Submitter submitter = null;
+		if (messageRate > 0) {
+			submitter = new Submitter();
+			submitter.start();
+		}
+
+		Thread.sleep(duration * 1000L);
+		running = false;
+		if (submitter != null) {
+			submitter.join(1000);
+		}
+		// Let the last deliveries arrive
+		Thread.sleep(Math.max(1000, slowDelay * 2));
+		timer.shutdownNow();
+		connector.shutdownNow();
+
+		double seconds = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / 1000.0;
+		System.out.println();
+		System.out.println(String.format("Total %.1fs: submitted %d (%.1f/s, %d errors), received %d (%.1f/s)",
+				seconds, submitted.get(), submitted.get() / seconds, submitErrors.get(),
+				received.get(), received.get() / seconds));
+		System.out.println(String.format("Connections: %d connected, %d handshakes, %d disconnects, %d connect errors, %d protocol errors, %d timeouts, %d busy",
+				connectedCount(), LatencyRecorder.count(null, handshakeLatency.snapshot()),
+				disconnects.get(), connectErrors.get(), protocolErrors.get(), timeouts.get(), busy.get()));
+		if (localDBManager != null) {
+			System.out.println(String.format("Delivery reports: %d delivered",
+					localDBManager.getReportedDeliveryCount()));
+		}
+		for (LatencyRecorder recorder : recorders) {
+			print(recorder.getName(), null, recorder.snapshot(), seconds);
+		}
+
+	}
+
+
+	/**
+	 * Opens a connection of a client after delay (milliseconds).
+	 */
+	private void connect(final int index, long delay) {
+
+		if (!running) {
+			return;
+		}
+		connector.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!running) {
+					return;
+				}
+				long start = System.nanoTime();
+				SocketChannel channel;
+				try {
+					channel = SocketChannel.open(new InetSocketAddress(host, port));
+					channel.socket().setTcpNoDelay(true);
+				} catch (IOException e) {
+					connectErrors.incrementAndGet();
+					connect(index, reconnectDelay);
+					return;
+				}
+				loops[index % loops.length].register(channel, new SimulatedClient(index, start));
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+
+	}
+
+
+	private int connectedCount() {
+		int ret = 0;
+		for (int i = 0; i < clients; i++) {
+			if (connected.get(i) != null) {
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+
+	private static String clientUID(int index) {
+		return "L" + index;
+	}
+
+
+	private static void print(String name, long[] from, long[] to, double seconds) {
+		long count = LatencyRecorder.count(from, to);
+		if (count == 0) {
+			return;
+		}
+		System.out.println(String.format("  %-9s %8d (%8.1f/s)  p50 %s  p90 %s  p99 %s  p99.9 %s  max %s",
+				name, count, count / seconds,
+				millis(LatencyRecorder.percentile(from, to, 50)),
+				millis(LatencyRecorder.percentile(from, to, 90)),
+				millis(LatencyRecorder.percentile(from, to, 99)),
+				millis(LatencyRecorder.percentile(from, to, 99.9)),
+				millis(LatencyRecorder.percentile(from, to, 100))));
+	}
+
+
+	private static String millis(long micros) {
+		return String.format("%.3fms", micros / 1000.0);
+	}
+
+
+	private static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				t.setName(name);
+				return t;
+			}
+		};
+	}
+
+
+	private static void usage() {
+		System.err.println("Usage: java -cp Server.jar " + LoadGenerator.class.getName() + " [option=value ...]");
+		System.err.println("Options:");
+		for (String[] option : OPTIONS) {
+			System.err.println(String.format("  %-18s %s (default: %s)", option[0], option[2], option[1]));
+		}
+		System.exit(1);
+	}
+
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		Properties properties = new Properties();
+		for (String[] option : OPTIONS) {
+			properties.setProperty(option[0], option[1]);
+		}
+
+		for (String arg : args) {
+			int i = arg.indexOf('=');
+			if (i < 0 || !properties.containsKey(arg.substring(0, i))) {
+				usage();
+			}
+			properties.setProperty(arg.substring(0, i), arg.substring(i + 1));
+		}
+
+		LoadGenerator generator = null;
+		try {
+			generator = new LoadGenerator(properties);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Invalid option value: " + e.getMessage());
+			usage();
+		}
+		generator.run();
+		System.exit(0);
+
+	}
+
+}
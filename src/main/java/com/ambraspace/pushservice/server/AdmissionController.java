@@ -0,0 +1,153 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * AdmissionController decides whether a new connection may start its
+ * handshake. New handshakes are limited by a token bucket (rate per second,
+ * up to burst at once) and by the number of handshakes in progress, so
+ * that a reconnect storm can't queue up unbounded authentication work.
+ * A rejected client is told when to retry. The delay grows with the number
+ * of handshakes waiting and of clients rejected recently, divided by the
+ * rate at which handshakes finish (the rate limit, or without one the rate
+ * observed in the last second), and is spread randomly, so rejected
+ * clients don't all come back at the same moment.
+ * tryAdmit() is meant to be called by a single (accepting) thread,
+ * release() by any thread.
+ */
+public class AdmissionController {
+
+	// Longest retry delay a client is asked to wait (seconds)
+	static final int MAX_RETRY_AFTER = 60;
+
+	private final double rate; // handshakes per second, 0 for no limit
+	private final double burst;
+	private final int maxPending;
+
+	private final AtomicInteger pending = new AtomicInteger();
+	// Handshakes finished in the current and in the previous second
+	private final AtomicInteger released = new AtomicInteger();
+	private volatile int releasedLastSecond;
+	private volatile long releasedSecond; // nanoTime / 1s of the current second
+
+	// Guarded by this
+	private double tokens;
+	private long lastRefill; // nanoTime
+	private long rejectedSecond; // nanoTime / 1s of the current second
+	private int rejectedInSecond;
+
+
+	/**
+	 * Creates new AdmissionController.
+	 * @param rate handshakes started per second (0 for no limit)
+	 * @param burst handshakes which may start at once
+	 * @param maxPending handshakes in progress at most (0 for no limit)
+	 */
+	public AdmissionController(double rate, int burst, int maxPending) {
+
+		this.rate = Math.max(0, rate);
+		this.burst = Math.max(1, burst);
+		this.maxPending = maxPending > 0 ? maxPending : Integer.MAX_VALUE;
+		this.tokens = this.burst;
+		this.lastRefill = System.nanoTime();
+
+	}
+
+
+	/**
+	 * Admits a new handshake, if the rate and the number of handshakes in
+	 * progress allow it. Every admitted handshake must be release()d when
+	 * it finishes, successfully or not.
+	 * @return true if the handshake may start
+	 */
+	public synchronized boolean tryAdmit() {
+
+		if (pending.get() >= maxPending) {
+			rejected();
+			return false;
+		}
+
+		if (rate > 0) {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+			lastRefill = now;
+			if (tokens < 1) {
+				rejected();
+				return false;
+			}
+			tokens -= 1;
+		}
+
+		pending.incrementAndGet();
+		return true;
+
+	}
+
+
+	/**
+	 * Marks an admitted handshake finished.
+	 */
+	public void release() {
+		pending.decrementAndGet();
+		long second = currentSecond();
+		if (second != releasedSecond) {
+			// Racy, but a rough rate is all we need
+			releasedSecond = second;
+			releasedLastSecond = released.getAndSet(0);
+		}
+		released.incrementAndGet();
+	}
+
+
+	/**
+	 * Returns how long a rejected client should wait before reconnecting:
+	 * at least as long as the handshakes already waiting take, plus a random
+	 * part covering the clients rejected in the last second.
+	 * @return delay in seconds, 1 - MAX_RETRY_AFTER
+	 */
+	public synchronized int getRetryAfter() {
+
+		double drainRate = rate;
+		if (drainRate <= 0) {
+			drainRate = Math.max(1,
+					currentSecond() - releasedSecond > 1 ? 0 : Math.max(releasedLastSecond, released.get()));
+		}
+		long base = 1 + (long) (pending.get() / drainRate);
+		long spread = 1 + (long) (rejectedInSecond / drainRate);
+		// Clients are spread even when the delay is capped
+		long from = Math.min(base, MAX_RETRY_AFTER / 2);
+		long to = Math.min(base + spread, MAX_RETRY_AFTER);
+		return (int) (from + ThreadLocalRandom.current().nextLong(to - from + 1));
+
+	}
+
+
+	/**
+	 * Returns number of handshakes in progress.
+	 * @return handshakes in progress
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+
+	private void rejected() {
+
+		long second = currentSecond();
+		if (second != rejectedSecond) {
+			rejectedSecond = second;
+			rejectedInSecond = 0;
+		}
+		rejectedInSecond++;
+
+	}
+
+
+	private static long currentSecond() {
+		return System.nanoTime() / TimeUnit.SECONDS.toNanos(1);
+	}
+
+}
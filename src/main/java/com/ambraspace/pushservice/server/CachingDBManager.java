@@ -0,0 +1,442 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * DBManager decorator which caches results of isClientAuthorized(), so
+ * that a storm of reconnecting clients doesn't hit the database with one
+ * query per client. The cache is split into SEGMENTS access-ordered
+ * segments, each holding its share of size entries and evicting its least
+ * recently used entry when full, so eviction never scans the cache.
+ * Positive results are kept for ttl, negative ones only for negativeTtl,
+ * so a newly enabled client doesn't wait long. Every segment has a lock
+ * of its own, and entries are indexed by client and by application, so
+ * invalidating them doesn't scan the cache either.
+ * All other calls are passed to the underlying DBManager.
+ * Entries must be invalidated when a client or an application is disabled.
+ * In cluster mode every node has a cache of its own, and invalidation only
+ * affects the node it is sent to, so it has to be sent to all nodes.
+ */
+public class CachingDBManager implements DBManager {
+
+	private static Logger logger = Logger.getLogger("CachingDBManager");
+
+	public static final int DEFAULT_SIZE = 100000;
+	public static final int DEFAULT_TTL = 300; // seconds
+	public static final int DEFAULT_NEGATIVE_TTL = 5; // seconds
+
+	// Number of independently locked parts of the cache
+	static final int SEGMENTS = 16;
+
+
+	private static class Key {
+
+		private final String appUID;
+		private final String clientUID;
+
+		public Key(String appUID, String clientUID) {
+			this.appUID = appUID;
+			this.clientUID = clientUID;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * appUID.hashCode() + clientUID.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) obj;
+			return appUID.equals(k.appUID) && clientUID.equals(k.clientUID);
+		}
+
+	}
+
+
+	private static class Entry {
+
+		private final boolean authorized;
+		private final long expires; // nanoTime
+
+		public Entry(boolean authorized, long expires) {
+			this.authorized = authorized;
+			this.expires = expires;
+		}
+
+		private boolean isExpired(long now) {
+			return expires - now <= 0;
+		}
+
+	}
+
+
+	/**
+	 * Part of the cache, in least recently used order. Keys are indexed
+	 * and unindexed only under the segment's lock.
+	 */
+	private class Segment extends LinkedHashMap<Key, Entry> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final int capacity;
+
+		public Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+			if (size() <= capacity) {
+				return false;
+			}
+			unindex(eldest.getKey());
+			evictions.incrementAndGet();
+			return true;
+		}
+
+	}
+
+
+	private final DBManager dbManager;
+	private final long ttl; // nanoseconds
+	private final long negativeTtl; // nanoseconds
+
+	private final Segment[] segments;
+	// Cached keys by client UID and by application UID
+	private final ConcurrentMap<String, Set<Key>> byClient = new ConcurrentHashMap<String, Set<Key>>();
+	private final ConcurrentMap<String, Set<Key>> byApplication = new ConcurrentHashMap<String, Set<Key>>();
+
+	/*
+	 * Incremented by every invalidation, so that a result read from the
+	 * database before an invalidation is not cached after it.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+
+	/**
+	 * Creates a new cache in front of dbManager.
+	 * @param dbManager underlying DBManager
+	 * @param size maximum number of cached results
+	 * @param ttl how long a positive result is valid
+	 * @param negativeTtl how long a negative result is valid
+	 * @param unit time unit of ttl and negativeTtl
+	 */
+	public CachingDBManager(DBManager dbManager, final int size, long ttl,
+			long negativeTtl, TimeUnit unit) {
+
+		if (dbManager == null) {
+			throw new NullPointerException();
+		}
+		if (size <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.dbManager = dbManager;
+		this.ttl = unit.toNanos(ttl);
+		this.negativeTtl = unit.toNanos(negativeTtl);
+		this.segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment((size + SEGMENTS - 1) / SEGMENTS);
+		}
+
+	}
+
+
+	@Override
+	public String getNewClientUID(String appUID) {
+		long gen = generation.get();
+		String clientUID = dbManager.getNewClientUID(appUID);
+		if (clientUID != null) {
+			// The new client will reconnect with this UID
+			put(new Key(appUID, clientUID), true, gen);
+		}
+		return clientUID;
+	}
+
+
+	@Override
+	public boolean isClientAuthorized(String appUID, String clientUID) {
+
+		if (appUID == null || clientUID == null) {
+			return dbManager.isClientAuthorized(appUID, clientUID);
+		}
+
+		Key key = new Key(appUID, clientUID);
+		long gen = generation.get();
+
+		Segment segment = segmentFor(key);
+		segment.lock.lock();
+		try {
+			Entry e = segment.get(key);
+			if (e != null) {
+				if (!e.isExpired(System.nanoTime())) {
+					hits.incrementAndGet();
+					return e.authorized;
+				}
+				segment.remove(key);
+				unindex(key);
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+
+		misses.incrementAndGet();
+		boolean authorized = dbManager.isClientAuthorized(appUID, clientUID);
+		put(key, authorized, gen);
+		return authorized;
+
+	}
+
+
+	@Override
+	public Message getMessage(long messageID) {
+		return dbManager.getMessage(messageID);
+	}
+
+
+	@Override
+	public void updateMessageStatus(Message message) {
+		dbManager.updateMessageStatus(message);
+	}
+
+
+	@Override
+	public void storeMessage(Message message) {
+		dbManager.storeMessage(message);
+	}
+
+
+	@Override
+	public List<DelayedMessage> getDelayedMessages(String clientUID, int limit, long afterMessageID, int pageSize) {
+		return dbManager.getDelayedMessages(clientUID, limit, afterMessageID, pageSize);
+	}
+
+
+	@Override
+	public void updateDelayedMessageStatus(List<DelayedMessage> messages) {
+		dbManager.updateDelayedMessageStatus(messages);
+	}
+
+
+	@Override
+	public boolean updateDeliveryStatus(List<DeliveryReport> reports) {
+		return dbManager.updateDeliveryStatus(reports);
+	}
+
+
+	/**
+	 * Removes cached results of the client (in all applications).
+	 * @param clientUID client's unique ID
+	 * @return number of removed entries
+	 */
+	public int invalidateClient(String clientUID) {
+		generation.incrementAndGet();
+		int removed = removeAll(byClient.get(clientUID));
+		logger.logp(Level.INFO, "CachingDBManager", "invalidateClient()", "Client #" + clientUID + ": " + removed + " entries removed.");
+		return removed;
+	}
+
+
+	/**
+	 * Removes cached results of all clients of the application.
+	 * @param appUID application's unique ID
+	 * @return number of removed entries
+	 */
+	public int invalidateApplication(String appUID) {
+		generation.incrementAndGet();
+		int removed = removeAll(byApplication.get(appUID));
+		logger.logp(Level.INFO, "CachingDBManager", "invalidateApplication()", "Application #" + appUID + ": " + removed + " entries removed.");
+		return removed;
+	}
+
+
+	/**
+	 * Removes all cached results.
+	 */
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		for (Segment segment : segments) {
+			segment.lock.lock();
+			try {
+				for (Key k : segment.keySet()) {
+					unindex(k);
+				}
+				segment.clear();
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		logger.logp(Level.INFO, "CachingDBManager", "invalidateAll()", "All entries removed.");
+	}
+
+
+	public int getSize() {
+		int ret = 0;
+		for (Segment segment : segments) {
+			segment.lock.lock();
+			try {
+				ret += segment.size();
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		return ret;
+	}
+
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+
+	/**
+	 * Returns number of entries evicted to make room for new ones.
+	 * @return number of evictions
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+
+	public DBManager getDbManager() {
+		return dbManager;
+	}
+
+
+	/**
+	 * Caches a result read from the database in generation gen. If an
+	 * invalidation happened meanwhile, the result is removed again: either
+	 * the invalidation sees it in the cache, or we see the new generation.
+	 * A full segment evicts its least recently used entry.
+	 */
+	private void put(Key key, boolean authorized, long gen) {
+
+		Entry e = new Entry(authorized, System.nanoTime() + (authorized ? ttl : negativeTtl));
+		Segment segment = segmentFor(key);
+		segment.lock.lock();
+		try {
+			segment.put(key, e);
+			index(key);
+		} finally {
+			segment.lock.unlock();
+		}
+		if (generation.get() != gen) {
+			remove(key, e);
+		}
+
+	}
+
+
+	private int removeAll(Collection<Key> keys) {
+		int removed = 0;
+		if (keys != null) {
+			for (Key k : new ArrayList<Key>(keys)) {
+				if (remove(k, null)) {
+					removed++;
+				}
+			}
+		}
+		return removed;
+	}
+
+
+	/**
+	 * Removes a cached entry.
+	 * @param key key
+	 * @param e entry to remove, or null for whichever entry is cached
+	 * @return true if an entry was removed
+	 */
+	private boolean remove(Key key, Entry e) {
+		Segment segment = segmentFor(key);
+		segment.lock.lock();
+		try {
+			Entry cached = segment.get(key);
+			if (cached == null || (e != null && cached != e)) {
+				return false;
+			}
+			segment.remove(key);
+			unindex(key);
+			return true;
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+
+	private Segment segmentFor(Key key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return segments[(h & 0x7fffffff) % SEGMENTS];
+	}
+
+
+	private void index(Key key) {
+		index(byClient, key.clientUID, key);
+		index(byApplication, key.appUID, key);
+	}
+
+
+	private void unindex(Key key) {
+		unindex(byClient, key.clientUID, key);
+		unindex(byApplication, key.appUID, key);
+	}
+
+
+	/**
+	 * Adds a key to the index. Sets of keys are created and removed
+	 * atomically with their last key, so no key is ever added to a set
+	 * which has just been dropped from the index.
+	 */
+	private static void index(ConcurrentMap<String, Set<Key>> index, String uid, final Key key) {
+		index.compute(uid, new BiFunction<String, Set<Key>, Set<Key>>() {
+			@Override
+			public Set<Key> apply(String uid, Set<Key> keys) {
+				if (keys == null) {
+					keys = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+				}
+				keys.add(key);
+				return keys;
+			}
+		});
+	}
+
+
+	private static void unindex(ConcurrentMap<String, Set<Key>> index, String uid, final Key key) {
+		index.computeIfPresent(uid, new BiFunction<String, Set<Key>, Set<Key>>() {
+			@Override
+			public Set<Key> apply(String uid, Set<Key> keys) {
+				keys.remove(key);
+				return keys.isEmpty() ? null : keys;
+			}
+		});
+	}
+
+}
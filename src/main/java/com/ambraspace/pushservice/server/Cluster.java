@@ -0,0 +1,639 @@
+package com.ambraspace.pushservice.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * Cluster lets several servers (nodes) share their clients, so that a
+ * message submitted to any node's service port reaches its recipients
+ * wherever they are connected.
+ * Every client UID belongs to one node of a consistent-hash ring (its
+ * home node), which keeps track of the node the client is connected to
+ * (the presence table). Nodes tell home nodes when their clients register
+ * and unregister. A submitted message goes to recipients connected to
+ * the submitting node directly, the rest is routed to their home nodes,
+ * which pass it on to the nodes the recipients are connected to.
+ * Broadcasts go to all nodes, each delivering to its own clients.
+ * Nodes talk over persistent links (one TCP connection in each direction
+ * between every two nodes), one line per frame:
+ * <ul>
+ * <li>HELLO &lt;node&gt; - first line of a link, names the sender</li>
+ * <li>PRESENT &lt;client UID&gt; / ABSENT &lt;client UID&gt; - presence changes</li>
+ * <li>ROUTE &lt;message&gt; - resolve recipients, who belong to the receiving node</li>
+ * <li>DELIVER &lt;message&gt; - deliver to recipients connected to the receiving node</li>
+ * <li>LOCATE &lt;ID&gt; &lt;client UID&gt; / LOCATED &lt;ID&gt; [&lt;node&gt;] - presence query</li>
+ * <li>empty line - heartbeat of an idle link, so broken links are noticed</li>
+ * </ul>
+ * Messages are in the service port's submission format.
+ * A link which breaks is connected again, and the nodes announce their
+ * clients again, so presence survives restarts of any node. Frames waiting
+ * for a link which is down are queued (up to LINK_QUEUE_SIZE); frames lost
+ * when a link breaks only delay delivery until the recipients reconnect,
+ * since undelivered messages stay in the database.
+ * Nodes are named host:port of their cluster links, and all nodes must be
+ * configured with the same list of nodes (and should share the database).
+ */
+public class Cluster {
+
+	private static Logger logger = Logger.getLogger("Cluster");
+
+	// Delay before a broken link is connected again (milliseconds)
+	private static final int RECONNECT_DELAY = 1000;
+	// Idle links send a heartbeat this often (milliseconds)
+	private static final int HEARTBEAT_INTERVAL = 1000;
+	// Incoming link is considered broken after this many missed heartbeats
+	private static final int MISSED_HEARTBEATS = 10;
+	// Maximum number of frames waiting for one link
+	private static final int LINK_QUEUE_SIZE = 100000;
+
+
+	/**
+	 * Outgoing link to another node. Frames are queued by any thread and
+	 * written by the link's thread, which also (re)connects the link.
+	 */
+	private class Link extends Thread {
+
+		private final String node;
+		private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>(LINK_QUEUE_SIZE);
+		private volatile Socket socket;
+
+		public Link(String node) {
+			this.node = node;
+			setName("Cluster.Link");
+			setDaemon(true);
+		}
+
+		public void send(String frame) {
+			if (!queue.offer(frame)) {
+				framesDropped.increment();
+				logger.logp(Level.WARNING, "Cluster.Link", "send()", "Link to " + node + " is full! Frame dropped.");
+			}
+		}
+
+		public boolean isUp() {
+			return socket != null;
+		}
+
+		public void close() {
+			interrupt();
+			Socket s = socket;
+			if (s != null) {
+				try {
+					s.close();
+				} catch (IOException e) {
+					// Closing anyway
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+
+			while (running) {
+
+				try (Socket s = new Socket()) {
+					s.connect(address(node), RECONNECT_DELAY);
+					s.setTcpNoDelay(true);
+					Writer output = new BufferedWriter(
+							new OutputStreamWriter(s.getOutputStream(), SelectorLoop.CHARSET));
+					output.write("HELLO " + self + SelectorLoop.LINE_SEPARATOR);
+					output.flush();
+					socket = s;
+					logger.logp(Level.INFO, "Cluster.Link", "run()", "Linked to " + node + ".");
+					announce(this);
+					while (true) {
+						String frame = queue.poll(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+						if (frame == null) {
+							// Writing to a broken link fails at the latest the second time
+							frame = "";
+						}
+						output.write(frame);
+						output.write(SelectorLoop.LINE_SEPARATOR);
+						if (queue.isEmpty()) {
+							output.flush();
+						}
+					}
+				} catch (IOException e) {
+					if (socket != null) {
+						logger.logp(Level.WARNING, "Cluster.Link", "run()", "Link to " + node + " broken.");
+					}
+				} catch (InterruptedException e) {
+					return;
+				} finally {
+					socket = null;
+				}
+
+				try {
+					Thread.sleep(RECONNECT_DELAY);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Accepts links from other nodes.
+	 */
+	private class Listener extends Thread {
+
+		public Listener() {
+			setName("Cluster.Listener");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+
+			try {
+				while (running) {
+					new Peer(serverSocket.accept()).start();
+				}
+			} catch (IOException e) {
+				if (running) {
+					logger.logp(Level.SEVERE, "Cluster.Listener", "run()", "Error accepting links!");
+				}
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Reads frames from an incoming link. When the link closes, presence
+	 * of clients connected to the other node is forgotten; the node
+	 * announces them again when it links back.
+	 */
+	private class Peer extends Thread {
+
+		private final Socket socket;
+
+		public Peer(Socket socket) {
+			this.socket = socket;
+			setName("Cluster.Peer");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+
+			String node = null;
+			try (Socket s = socket) {
+				s.setSoTimeout(HEARTBEAT_INTERVAL * MISSED_HEARTBEATS);
+				BufferedReader input = new BufferedReader(
+						new InputStreamReader(s.getInputStream(), SelectorLoop.CHARSET));
+				String line = input.readLine();
+				if (line == null || !line.startsWith("HELLO ") || !links.containsKey(line.substring(6))) {
+					logger.logp(Level.WARNING, "Cluster.Peer", "run()", "Unknown node " + line + "! Link refused.");
+					return;
+				}
+				synchronized (peers) {
+					node = line.substring(6);
+					peers.put(node, this);
+				}
+				while ((line = input.readLine()) != null) {
+					receive(node, line);
+				}
+			} catch (IOException e) {
+				logger.logp(Level.FINE, "Cluster.Peer", "run()", "Link closed.");
+			} finally {
+				if (node != null) {
+					synchronized (peers) {
+						if (peers.remove(node, this)) {
+							forget(node);
+						}
+					}
+				}
+			}
+
+		}
+
+	}
+
+
+	private final Server server;
+	// This node's name
+	private final String self;
+	private final HashRing ring;
+	// Outgoing links to all other nodes, by node
+	private final Map<String, Link> links = new HashMap<String, Link>();
+	// Current incoming link from each node
+	private final Map<String, Peer> peers = new HashMap<String, Peer>();
+	// Node of every connected client which belongs to this node
+	private final ConcurrentMap<String, String> presence = new ConcurrentHashMap<String, String>();
+	// LOCATE requests waiting for answers, by ID
+	private final ConcurrentMap<Long, CompletableFuture<String>> locates =
+			new ConcurrentHashMap<Long, CompletableFuture<String>>();
+	private final AtomicLong nextLocateID = new AtomicLong();
+	private final ServerSocket serverSocket;
+	private volatile boolean running = true;
+
+	private final LongAdder framesSent;
+	private final LongAdder framesReceived;
+	private final LongAdder framesDropped;
+
+
+	/**
+	 * Creates new Cluster node and starts linking it with the others.
+	 * @param server this node's server
+	 * @param self this node (host:port the node's links are accepted on)
+	 * @param nodes all nodes of the cluster
+	 * @throws IOException if links can't be accepted
+	 */
+	public Cluster(Server server, String self, Collection<String> nodes) throws IOException {
+
+		this.server = server;
+		this.self = self;
+		Set<String> all = new LinkedHashSet<String>(nodes);
+		all.add(self);
+		for (String node : all) {
+			// Fail early on invalid names
+			address(node);
+		}
+		this.ring = new HashRing(all);
+
+		Metrics metrics = server.getMetrics();
+		framesSent = metrics.counter("cluster.frames.sent");
+		framesReceived = metrics.counter("cluster.frames.received");
+		framesDropped = metrics.counter("cluster.frames.dropped");
+		metrics.gauge("cluster.presence", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return presence.size();
+			}
+		});
+		metrics.gauge("cluster.links.up", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				int up = 0;
+				for (Link link : links.values()) {
+					if (link.isUp()) {
+						up++;
+					}
+				}
+				return up;
+			}
+		});
+
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(address(self).getPort()));
+
+		for (String node : all) {
+			if (!node.equals(self)) {
+				links.put(node, new Link(node));
+			}
+		}
+		new Listener().start();
+		for (Link link : links.values()) {
+			link.start();
+		}
+
+	}
+
+
+	/**
+	 * Stops all links.
+	 */
+	public void shutdown() {
+
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			logger.logp(Level.WARNING, "Cluster", "shutdown()", "Error closing listener!");
+		}
+		for (Link link : links.values()) {
+			link.close();
+		}
+
+	}
+
+
+	public String getSelf() {
+		return self;
+	}
+
+
+	/**
+	 * Records that a client registered on this node.
+	 * @param clientUID client's UID
+	 */
+	void clientRegistered(String clientUID) {
+
+		String home = ring.getNode(clientUID);
+		if (home.equals(self)) {
+			presence.put(clientUID, self);
+		} else {
+			send(home, "PRESENT " + clientUID);
+		}
+
+	}
+
+
+	/**
+	 * Records that a client unregistered from this node.
+	 * @param clientUID client's UID
+	 */
+	void clientUnregistered(String clientUID) {
+
+		String home = ring.getNode(clientUID);
+		if (home.equals(self)) {
+			presence.remove(clientUID, self);
+		} else {
+			send(home, "ABSENT " + clientUID);
+		}
+
+	}
+
+
+	/**
+	 * Delivers a message submitted to this node to its recipients,
+	 * wherever in the cluster they are connected.
+	 * @param message message
+	 */
+	public void route(Message message) {
+
+		if (message == null) {
+			return;
+		}
+		if (message.isBroadcast()) {
+			server.getConnectionManager().processMessage(message);
+			String frame = "DELIVER " + toFrame(message);
+			for (String node : links.keySet()) {
+				send(node, frame);
+			}
+			return;
+		}
+		route(message, true);
+
+	}
+
+
+	/**
+	 * Splits recipients by the node they are connected to. Recipients
+	 * belonging to other nodes are routed to those nodes (only if the
+	 * message was submitted to this node, routed messages are never
+	 * routed further).
+	 */
+	private void route(Message message, boolean submitted) {
+
+		ConnectionManager connectionManager = server.getConnectionManager();
+		Set<String> local = new HashSet<String>();
+		Map<String, Set<String>> deliver = new HashMap<String, Set<String>>();
+		Map<String, Set<String>> routed = new HashMap<String, Set<String>>();
+
+		for (String clientUID : message.getRecipients().keySet()) {
+			if (connectionManager.isRegistered(clientUID)) {
+				local.add(clientUID);
+				continue;
+			}
+			String home = ring.getNode(clientUID);
+			if (home.equals(self)) {
+				String node = presence.get(clientUID);
+				if (node != null && !node.equals(self)) {
+					add(deliver, node, clientUID);
+				}
+				// Otherwise the client is offline
+			} else if (submitted) {
+				add(routed, home, clientUID);
+			}
+		}
+
+		if (!local.isEmpty()) {
+			if (submitted) {
+				connectionManager.processMessage(subset(message, local));
+			} else {
+				server.deliver(subset(message, local));
+			}
+		}
+		for (Map.Entry<String, Set<String>> e : deliver.entrySet()) {
+			send(e.getKey(), "DELIVER " + toFrame(subset(message, e.getValue())));
+		}
+		for (Map.Entry<String, Set<String>> e : routed.entrySet()) {
+			send(e.getKey(), "ROUTE " + toFrame(subset(message, e.getValue())));
+		}
+
+	}
+
+
+	/**
+	 * Finds the node a client is connected to, asking the client's home
+	 * node if necessary (waiting for clientResponseTimeout at most).
+	 * @param clientUID client's UID
+	 * @return node, or null if the client is not connected (or its home
+	 * node didn't answer)
+	 */
+	public String locate(String clientUID) {
+
+		if (server.getConnectionManager().isRegistered(clientUID)) {
+			return self;
+		}
+		String home = ring.getNode(clientUID);
+		if (home.equals(self)) {
+			return presence.get(clientUID);
+		}
+
+		long id = nextLocateID.incrementAndGet();
+		CompletableFuture<String> answer = new CompletableFuture<String>();
+		locates.put(id, answer);
+		try {
+			send(home, "LOCATE " + id + " " + clientUID);
+			String node = answer.get(server.getOptions().getClientResponseTimeout(), TimeUnit.SECONDS);
+			return node.isEmpty() ? null : node;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException | TimeoutException e) {
+			logger.logp(Level.WARNING, "Cluster", "locate()", "Node " + home + " didn't answer.");
+			return null;
+		} finally {
+			locates.remove(id);
+		}
+
+	}
+
+
+	/**
+	 * Handles a frame received from another node.
+	 */
+	private void receive(String node, String line) {
+
+		if (line.isEmpty()) {
+			// Heartbeat
+			return;
+		}
+		framesReceived.increment();
+		int space = line.indexOf(' ');
+		String command = (space < 0) ? line : line.substring(0, space);
+		String argument = (space < 0) ? "" : line.substring(space + 1);
+
+		switch (command) {
+			case "PRESENT":
+				presence.put(argument, node);
+				break;
+			case "ABSENT":
+				presence.remove(argument, node);
+				break;
+			case "ROUTE":
+			case "DELIVER":
+				Message message = fromFrame(argument);
+				if (message == null) {
+					logger.logp(Level.SEVERE, "Cluster", "receive()", "Invalid message from " + node + "!");
+				} else if ("DELIVER".equals(command)) {
+					server.deliver(message);
+				} else {
+					route(message, false);
+				}
+				break;
+			case "LOCATE":
+				space = argument.indexOf(' ');
+				String clientUID = argument.substring(space + 1);
+				String located = server.getConnectionManager().isRegistered(clientUID) ?
+						self : presence.get(clientUID);
+				send(node, "LOCATED " + argument.substring(0, Math.max(space, 0)) + " " +
+						(located == null ? "" : located));
+				break;
+			case "LOCATED":
+				space = argument.indexOf(' ');
+				try {
+					CompletableFuture<String> answer = locates.get(Long.parseLong(argument.substring(0, space)));
+					if (answer != null) {
+						answer.complete(argument.substring(space + 1));
+					}
+				} catch (NumberFormatException | IndexOutOfBoundsException e) {
+					logger.logp(Level.SEVERE, "Cluster", "receive()", "Invalid answer from " + node + "!");
+				}
+				break;
+			default:
+				logger.logp(Level.SEVERE, "Cluster", "receive()", "Unknown frame from " + node + "!");
+		}
+
+	}
+
+
+	private void send(String node, String frame) {
+		Link link = links.get(node);
+		if (link != null) {
+			framesSent.increment();
+			link.send(frame);
+		}
+	}
+
+
+	/**
+	 * Queues presence of all clients connected to this node which belong
+	 * to the linked node (e.g. after it has restarted).
+	 */
+	private void announce(Link link) {
+		for (String clientUID : server.getConnectionManager().getRegisteredClients()) {
+			if (ring.getNode(clientUID).equals(link.node)) {
+				send(link.node, "PRESENT " + clientUID);
+			}
+		}
+	}
+
+
+	/**
+	 * Forgets presence of all clients connected to a node.
+	 */
+	private void forget(String node) {
+		Iterator<String> i = presence.values().iterator();
+		while (i.hasNext()) {
+			if (i.next().equals(node)) {
+				i.remove();
+			}
+		}
+	}
+
+
+	private static void add(Map<String, Set<String>> map, String node, String clientUID) {
+		Set<String> clients = map.get(node);
+		if (clients == null) {
+			map.put(node, clients = new HashSet<String>());
+		}
+		clients.add(clientUID);
+	}
+
+
+	/**
+	 * Returns a copy of a message addressed only to some of its recipients.
+	 */
+	private static Message subset(Message message, Set<String> clientUIDs) {
+		Message ret = new Message();
+		ret.setId(message.getId());
+		ret.setText(message.getText());
+		ret.setDateSent(message.getDateSent());
+		ret.setPriority(message.getPriority());
+		ret.setExpires(message.getExpires());
+		for (String clientUID : clientUIDs) {
+			ret.getRecipients().put(clientUID, false);
+		}
+		return ret;
+	}
+
+
+	private static String toFrame(Message message) {
+		JSONObject ret = new JSONObject();
+		ret.put("type", "message");
+		ret.put("message", message.toJSON());
+		return ret.toString();
+	}
+
+
+	private static Message fromFrame(String frame) {
+		try {
+			SubmissionParser parser = new SubmissionParser(frame);
+			return parser.parse() ? parser.getMessage() : null;
+		} catch (JSONException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Parses a node's name (host:port).
+	 */
+	static InetSocketAddress address(String node) {
+		int colon = node.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("Node " + node + " is not host:port");
+		}
+		return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+	}
+
+}
@@ -1,18 +1,46 @@
 package com.ambraspace.pushservice.server;
 
 import java.nio.channels.SocketChannel;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ConnectedClient {
 
 	private final String clientUID;
 	private final SocketChannel connection;
 	private Date nextPingTime;
+	// Handle of this client's entry in ConnectionManager's keep-alive wheel
+	private volatile TimingWheel.Timeout<ConnectedClient> keepAliveTimeout;
+	// Session owning the connection (non-blocking mode only, null otherwise)
+	private final SelectorLoop.Session session;
+	// Agreed protocol version
+	private volatile int protocolVersion = 1;
+	// Agreed keep-alive interval (null for keepAliveTimeout)
+	private volatile KeepAlive keepAlive;
+	// Application the client belongs to and topics it subscribed to
+	private volatile String appUID;
+	private volatile Set<String> topics = Collections.emptySet();
+	// Messages waiting to be written to the connection
+	private final Queue<OutboundMessage> outbound = new ConcurrentLinkedQueue<OutboundMessage>();
+	private final AtomicInteger outboundSize = new AtomicInteger();
+	// Set while a task is writing to the connection
+	private final AtomicBoolean writing = new AtomicBoolean();
 	
 	public ConnectedClient(String uid, SocketChannel socketChannel, Date pingTime) {
+		this(uid, socketChannel, pingTime, null);
+	}
+	
+	public ConnectedClient(String uid, SocketChannel socketChannel, Date pingTime,
+			SelectorLoop.Session session) {
 		this.clientUID = uid;
 		this.connection = socketChannel;
 		this.nextPingTime = pingTime;
+		this.session = session;
 	}
 	
 	public String getClientUID() {
@@ -27,25 +55,134 @@ public class ConnectedClient {
 		return nextPingTime;
 	}
 
+	public SelectorLoop.Session getSession() {
+		return session;
+	}
+
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	public String getAppUID() {
+		return appUID;
+	}
+
+	public Set<String> getTopics() {
+		return topics;
+	}
+
+	/**
+	 * Returns number of messages waiting in the outbound queue.
+	 * @return outbound queue size
+	 */
+	public int getOutboundSize() {
+		return outboundSize.get();
+	}
+
 	
 	/**
 	 * Sets the time when this client should be PINGed (so it stays alive).
-	 * NOTICE: This method should only be called when the client is detached
-	 * from ConnectionManager.PingTimer's queue (SortedSet).
+	 * This is informational only, the PING itself is scheduled by
+	 * ConnectionManager's keep-alive wheel.
 	 * @param nextPingTime time when this client should be PINGed
 	 */
 	void setNextPingTime(Date nextPingTime) {
 		this.nextPingTime = nextPingTime;
 	}
+
+	TimingWheel.Timeout<ConnectedClient> getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	void setKeepAliveTimeout(TimingWheel.Timeout<ConnectedClient> keepAliveTimeout) {
+		this.keepAliveTimeout = keepAliveTimeout;
+	}
+
+	KeepAlive getKeepAlive() {
+		return keepAlive;
+	}
+
+	void setKeepAlive(KeepAlive keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	void setProtocolVersion(int protocolVersion) {
+		this.protocolVersion = protocolVersion;
+	}
+
+	void setAppUID(String appUID) {
+		this.appUID = appUID;
+	}
+
+	void setTopics(Set<String> topics) {
+		this.topics = Collections.unmodifiableSet(topics);
+	}
+
+
+	/**
+	 * Adds a message to the outbound queue, unless the queue is full.
+	 * Never blocks.
+	 * @param m message
+	 * @param capacity maximum number of waiting messages
+	 * @return true if the message is queued
+	 */
+	boolean offer(OutboundMessage m, int capacity) {
+		if (outboundSize.incrementAndGet() > capacity) {
+			outboundSize.decrementAndGet();
+			return false;
+		}
+		outbound.add(m);
+		return true;
+	}
+
+	OutboundMessage peekOutbound() {
+		return outbound.peek();
+	}
+
+	OutboundMessage pollOutbound() {
+		OutboundMessage m = outbound.poll();
+		if (m != null) {
+			outboundSize.decrementAndGet();
+		}
+		return m;
+	}
+
+
+	/**
+	 * Makes the calling task the only writer to this client's connection.
+	 * @return true if successful, false if another task is writing
+	 */
+	boolean acquireWriter() {
+		return writing.compareAndSet(false, true);
+	}
+
+	void releaseWriter() {
+		writing.set(false);
+	}
+
+	boolean isWriting() {
+		return writing.get();
+	}
 	
 
+	/**
+	 * Clients are equal if they have the same UID, even if they are
+	 * different connections. Code telling connections apart (e.g. an old
+	 * connection from a newer one of the same client) compares references.
+	 */
 	@Override
 	public boolean equals(Object obj) {
-		if (!getClass().equals(obj.getClass())) {
+		if (obj == null || !getClass().equals(obj.getClass())) {
 			return false;
 		}
 		ConnectedClient c = (ConnectedClient) obj;
 		return (clientUID.equals(c.getClientUID()));
 	}
+
+
+	@Override
+	public int hashCode() {
+		return clientUID.hashCode();
+	}
 	
 }
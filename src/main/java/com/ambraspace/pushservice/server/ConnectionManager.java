@@ -4,25 +4,37 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,17 +43,86 @@ public class ConnectionManager {
 	
 	private static Logger logger = Logger.getLogger("ConnectionManager");
 	
-	// Holds all clients sorted by their nextPingTime
-	private SortedSet<ConnectedClient> clientSet;
+	// Duration of one tick of the keep-alive wheel (milliseconds)
+	private static final long KEEP_ALIVE_TICK = 100;
+	
+	/*
+	 * Highest supported protocol version. Version 2 tags every MESSAGE with its ID and lets the client acknowledge
+	 * several messages out of lock-step ("OK <id>" or cumulative "ACK <id>").
+	 * Version 3 lets the client ask for adaptive keep-alive ("TIMEOUT <seconds>").
+	 */
+	static final int PROTOCOL_VERSION = 3;
+	
+	// Maximum number of topics a client may subscribe to
+	private static final int MAX_TOPICS = 64;
+	
+	// Number of lock stripes of the client registry (power of two)
+	private static final int REGISTRY_STRIPES = 64;
+	
+	// Holds all clients waiting for their next PING
+	private TimingWheel<ConnectedClient> keepAliveWheel;
+	/*
+	 * Registering and unregistering a client (and pushing it into the
+	 * keep-alive wheel) takes the lock of the stripe its client UID falls
+	 * into, so clients with different UIDs hardly ever contend. Lookups take
+	 * no lock at all. ReentrantLocks rather than monitors, so that virtual
+	 * threads blocking while holding one don't pin their carrier threads.
+	 */
+	private final ReentrantLock[] stripes;
 	// Holds all registered clients
-	private Map<String, ConnectedClient> clientMap;
-	// PingTimer thread which takes care for keeping connections alive
-	private PingTimer pingTimer;
+	private ConcurrentMap<String, ConnectedClient> clientMap;
+	// Number of registered clients
+	private final AtomicInteger clientCount = new AtomicInteger();
+	// Registered clients by application UID. Index sets hash clients by UID
+	// (see ConnectedClient.equals()), which is safe since only the registered
+	// connection of a client is ever in them: it is unindexed (under the
+	// stripe lock) before a newer connection of the same client is indexed.
+	private ConcurrentMap<String, Set<ConnectedClient>> appIndex;
+	// Registered clients by application UID and topic (see topicKey())
+	private ConcurrentMap<String, Set<ConnectedClient>> topicIndex;
 	// timed ExecutorService  - all threads get interrupted after specified time
 	private ExecutorService timedThreadPool;
 	// general purpose ExecutorService (for e.g. MessageProcessor)
 	// Make sure that these threads will not run indefinitely
 	private ExecutorService generalThreadPool;
+	// Database calls of NIO handshakes (null in other modes). Kept apart
+	// from generalThreadPool, whose MessageProcessors block until their
+	// deliveries are done, so new clients can still connect while that
+	// pool is saturated.
+	private ExecutorService handshakeThreadPool;
+	// SelectorLoops owning all connections in non-blocking mode
+	// (null in blocking mode)
+	private SelectorLoop[] selectorLoops;
+	// Used to distribute new connections among SelectorLoops
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	// Collects delivery results and writes them to the database
+	private DeliveryJournal journal;
+	// From ClientID to the authorization decision
+	private final LatencyRecorder authLatency;
+	// From PING to PONG
+	private final LatencyRecorder pingRtt;
+	// From start of a MessageProcessor until all deliveries are done
+	private final LatencyRecorder fanOutDuration;
+	private final LongAdder deliveriesSucceeded;
+	private final LongAdder deliveriesFailed;
+	// Messages which expired before their fan-out started
+	private final LongAdder messagesExpired;
+	// Deliveries dropped from outbound queues because the message expired
+	private final LongAdder deliveriesExpired;
+	/*
+	 * Messages waiting for generalThreadPool, most urgent first. Every
+	 * submitted message adds one task to the pool, which runs whichever
+	 * message is the most urgent when the task starts.
+	 */
+	private final PriorityBlockingQueue<MessageProcessor> pendingMessages =
+			new PriorityBlockingQueue<MessageProcessor>();
+	// Keeps messages of the same urgency in the order of submission
+	private final AtomicLong messageSequence = new AtomicLong();
+	// Limits new handshakes
+	private final AdmissionController admission;
+	// Keep-alive learned for disconnected clients with adaptive keep-alive
+	private final Map<String, KeepAlive> keepAliveHistory;
+	private final LongAdder handshakesRejected;
 
 	// Server object which this ConnectionMannager will serve
 	// We need it for server options and dbManager
@@ -53,7 +134,7 @@ public class ConnectionManager {
 	 * new connection request. It checks for validity of the connection and,
 	 * if successful, it registers the client.
 	 */
-	private class Authenticator implements Runnable {
+	private class Authenticator implements Runnable, VirtualThreadExecutor.Abortable {
 
 		private SocketChannel connection;
 
@@ -63,8 +144,23 @@ public class ConnectionManager {
 			
 		}
 		
+		@Override
+		public void abort() {
+			close(connection);
+		}
+		
 		@Override
 		public void run() {
+			
+			try {
+				authenticate();
+			} finally {
+				admission.release();
+			}
+			
+		}
+		
+		private void authenticate() {
 
 			BufferedReader input = new BufferedReader(
 					new InputStreamReader(
@@ -73,11 +169,25 @@ public class ConnectionManager {
 					Channels.newOutputStream(connection), true);
 
 			String response;
+			int protocolVersion = 1;
 			try {
 				response = input.readLine();
 				if (response == null) {
 					throw new IOException();
 				}
+				if (response.startsWith("Protocol=")) {
+					protocolVersion = negotiateProtocol(response.substring(9));
+					if (protocolVersion < 1) {
+						output.println("ERR");
+						throw new IOException();
+					}
+					output.println("OK");
+					output.println(protocolVersion);
+					response = input.readLine();
+					if (response == null) {
+						throw new IOException();
+					}
+				}
 				if (!response.startsWith("ApplicationID=")) {
 					output.println("ERR");
 					throw new IOException();
@@ -93,43 +203,62 @@ public class ConnectionManager {
 					throw new IOException();
 				}
 				String clientUID = response.substring(9);
-				if ("NEW".equals(clientUID)) {
+				long authStart = System.nanoTime();
+				boolean isNew = "NEW".equals(clientUID);
+				boolean authorized;
+				if (isNew) {
 					clientUID = server.getDbManager().getNewClientUID(appUID);
-					if (clientUID == null) {
-						output.println("ERR");
-						throw new IOException();
-					} else {
-						output.println("OK");
-						output.println(clientUID);
-					}
+					authorized = (clientUID != null);
 				} else {
-					if (isRegistered(clientUID)) {
-						synchronized (ConnectionManager.this) {
-							ConnectedClient c = clientMap.get(clientUID);
-							unregisterClient(c);
-						}
-					}
-					if (server.getDbManager().isClientAuthorized(appUID, clientUID)) {
-						output.println("OK");
-					} else {
-						output.println("ERR");
-						throw new IOException();
+					ConnectedClient c = clientMap.get(clientUID);
+					if (c != null) {
+						unregisterClient(c);
 					}
+					authorized = server.getDbManager().isClientAuthorized(appUID, clientUID);
+				}
+				authLatency.record(System.nanoTime() - authStart, TimeUnit.NANOSECONDS);
+				if (!authorized) {
+					output.println("ERR");
+					throw new IOException();
+				}
+				output.println("OK");
+				if (isNew) {
+					output.println(clientUID);
 				}
 				response = input.readLine();
 				if (response == null) {
 					throw new IOException();
 				}
-				if (!"TIMEOUT".equals(response)) {
+				Set<String> topics = new HashSet<String>();
+				while (response.startsWith("Subscribe=")) {
+					if (!subscribe(topics, response.substring(10))) {
+						output.println("ERR");
+						throw new IOException();
+					}
+					output.println("OK");
+					response = input.readLine();
+					if (response == null) {
+						throw new IOException();
+					}
+				}
+				KeepAlive keepAlive = negotiateKeepAlive(clientUID, response, protocolVersion);
+				if (keepAlive == null) {
 					output.println("ERR");
 					throw new IOException();
 				}
-				output.println(server.getOptions().getKeepAliveTimeout());
+				output.println(keepAlive.getMax() / 1000);
 				
-				registerClient(new ConnectedClient(
+				ConnectedClient client = new ConnectedClient(
 						clientUID,
 						connection,
-						new Date()));
+						new Date());
+				client.setProtocolVersion(protocolVersion);
+				client.setKeepAlive(keepAlive);
+				client.setAppUID(appUID);
+				client.setTopics(topics);
+				if (!registerClient(client)) {
+					throw new IOException();
+				}
 				
 			} catch (IOException e) {
 				try {
@@ -148,8 +277,12 @@ public class ConnectionManager {
 	 * Pinger tasks takes a client and sends a PING. If the client responds
 	 * the Pinger tasks returns it to the queue. If something's wrong with the
 	 * client the Pinger task unregisters the client.
+	 * The PING is skipped if a ClientWriter is talking to the client
+	 * (delivery of a message also proves the connection is alive).
+	 * The task may run for pingResponseTimeout at most.
 	 */
-	private class Pinger implements Runnable {
+	private class Pinger implements Runnable, TimedFixedThreadPool.Timed,
+			VirtualThreadExecutor.Abortable {
 
 		private ConnectedClient client;
 
@@ -159,39 +292,61 @@ public class ConnectionManager {
 
 		}
 		
+		@Override
+		public long getMaxRunTime(TimeUnit unit) {
+			return unit.convert(server.getOptions().getPingResponseTimeout(), TimeUnit.SECONDS);
+		}
+		
+		@Override
+		public void abort() {
+			close(client.getConnection());
+		}
+		
 		@Override
 		public void run() {
 			
-			synchronized (client) {
+			if (!client.acquireWriter()) {
+				return;
+			}
+			
+			try {
 				
 				BufferedReader input = new BufferedReader(new InputStreamReader(
 						Channels.newInputStream(client.getConnection())));
 				PrintWriter output = new PrintWriter(
 						Channels.newOutputStream(client.getConnection()), true);
 				
-				if (!isRegistered(client.getClientUID())) {
+				if (!isCurrent(client)) {
 					return;
 				}
 
-				try {
-					
-					output.println("PING");
-					String response = null;
-					response = input.readLine();
-					if (response == null) {
-						throw new IOException();
-					}
-					if (!"PONG".equals(response)) {
-						output.println("ERR");
-						throw new IOException();
-					}
-					
-					push(client);
-
-				} catch (IOException e) {
+				long pingStart = System.nanoTime();
+				output.println("PING");
+				String response = null;
+				response = input.readLine();
+				if (response == null) {
+					// The client closed the connection itself
 					unregisterClient(client);
+					return;
 				}
+				if (!"PONG".equals(response)) {
+					output.println("ERR");
+					throw new IOException();
+				}
+				pingRtt.record(System.nanoTime() - pingStart, TimeUnit.NANOSECONDS);
+				keepAliveSucceeded(client);
 				
+				push(client);
+
+			} catch (IOException e) {
+				// No answer or connection reset, the connection was idle too long
+				keepAliveFailed(client);
+				unregisterClient(client);
+			} finally {
+				client.releaseWriter();
+				if (client.getOutboundSize() > 0) {
+					scheduleWriter(client);
+				}
 			}
 
 		}
@@ -200,70 +355,16 @@ public class ConnectionManager {
 	
 	/**
 	 * PingTimer takes care for keeping connections alive.
-	 * It wakes up when it needs to PING a client. Underlying SortedSet keeps
-	 * all ConnectedClient objects sorted.
+	 * It is called by the keep-alive wheel's thread with all clients
+	 * whose PING is due in the current tick.
 	 */
-	private class PingTimer extends Thread {
-		
-		public PingTimer() {
-			setName("ConnectionManager.PingTimer");
-			setDaemon(true);
-		}
+	private class PingTimer implements TimingWheel.Handler<ConnectedClient> {
 
 		@Override
-		public void run() {
-
-			while(true) {
-
-				if (clientSet.size()>0) {
-					
-					ConnectedClient cc = null;
-					
-					synchronized (ConnectionManager.this) {
-						/*
-						 * Check again because the queue could have been
-						 * emptied before we acquired the mutex.
-						 */
-						if (clientSet.size()>0) {
-							cc = clientSet.first();
-						} else {
-							continue;
-						}
-					}
-					
-					long duration = cc.getNextPingTime().getTime() -
-							System.currentTimeMillis();
-					
-					// Sleep until we need to ping the first client
-					try {
-						TimeUnit.MILLISECONDS.sleep(duration);
-					} catch (InterruptedException e) {
-						continue;
-					}
-						
-					synchronized (ConnectionManager.this) {
-					// Proceed only if the client we've been waiting for is 
-					// still there.
-						if (clientSet.size()>0 && cc.equals(clientSet.first())) {
-							/*
-							 * We need to call pop() here, so that PingTimer
-							 * can move to the next client.
-							 * Pinger task should call push() method.
-							 */
-							pop(cc);
-							timedThreadPool.execute(new Pinger(cc));
-						}
-					}
-					
-				} else {
-					// If the queue is empty sleep for an hour.
-					try {
-						TimeUnit.HOURS.sleep(1);
-					} catch (InterruptedException e) {
-						continue;
-					}
-				}
+		public void expired(List<ConnectedClient> clients) {
 
+			for (ConnectedClient cc : clients) {
+				ping(cc);
 			}
 
 		}
@@ -272,84 +373,105 @@ public class ConnectionManager {
 	
 	
 	/**
-	 * Messenger task takes a client and sends it supplied text message.
-	 * If successful, it returns the client to the queue. If not, it
-	 * unregisters the client.
-	 * The task will return true all false whether the client received the message
-	 * or not.
+	 * ClientWriter task is the only one writing messages to a client's
+	 * connection at a time. It takes messages from the client's outbound
+	 * queue, sends them (up to deliveryWindow at once with protocol version 2)
+	 * and waits until the client acknowledges all of them. If successful,
+	 * it returns the client to the queue. If not, it unregisters the client.
+	 * If more messages are waiting afterwards, another ClientWriter is started.
+	 * The task may run for clientResponseTimeout at most.
 	 */
-	private class Messenger implements Callable<Boolean> {
+	private class ClientWriter implements Runnable, TimedFixedThreadPool.Timed,
+			VirtualThreadExecutor.Abortable {
 
 		private ConnectedClient client;
-		private String message;
 		
-		public Messenger(ConnectedClient client, String message) {
+		public ClientWriter(ConnectedClient client) {
 
 			this.client = client;
-			this.message = message;
 			
 		}
-		
-		
-		
-
-		public ConnectedClient getClient() {
-			return client;
-		}
-
 
 
-
-		@SuppressWarnings("unused")
-		public String getMessage() {
-			return message;
+		@Override
+		public long getMaxRunTime(TimeUnit unit) {
+			return unit.convert(server.getOptions().getClientResponseTimeout(), TimeUnit.SECONDS);
 		}
 
 
+		@Override
+		public void abort() {
+			close(client.getConnection());
+		}
 
 
 		@Override
-		public Boolean call() {
+		public void run() {
+			
+			Deque<OutboundMessage> inFlight = new ArrayDeque<OutboundMessage>();
 			
-			synchronized (client) {
+			try {
 				
-				pop(client);
-
-				if (!isRegistered(client.getClientUID())) {
-					return false;
+				if (!isCurrent(client)) {
+					failOutbound(client);
+					return;
+				}
+				
+				List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+				int window = getWindow(client);
+				long now = System.currentTimeMillis();
+				OutboundMessage m;
+				while (inFlight.size() < window && (m = client.peekOutbound()) != null) {
+					if (m.isExpired(now)) {
+						client.pollOutbound();
+						expire(m);
+						continue;
+					}
+					if (containsMessage(inFlight, m.getMessageID())) {
+						// Acknowledgements wouldn't tell the two apart
+						break;
+					}
+					client.pollOutbound();
+					inFlight.add(m);
+					m.getFrame().appendTo(frames, client.getProtocolVersion());
 				}
 				
+				if (inFlight.isEmpty()) {
+					return;
+				}
+				
+				pop(client);
+				
 				BufferedReader input = new BufferedReader(new InputStreamReader(
 						Channels.newInputStream(client.getConnection())));
 				PrintWriter output = new PrintWriter(
 						Channels.newOutputStream(client.getConnection()), true);
 				
-				try {
-					output.println("MESSAGE");
-					output.println(message);
-					String response = null;
-					try {
-						response = input.readLine();
-					} catch (IOException err) {
-						throw new IOException();
-					}
-					if (response==null) {
+				write(client.getConnection(), frames.toArray(new ByteBuffer[frames.size()]));
+				
+				while (!inFlight.isEmpty()) {
+					String response = input.readLine();
+					if (response == null) {
 						throw new IOException();
 					}
-					if (!"OK".equals(response)) {
+					if (!acknowledge(response, client.getProtocolVersion(), inFlight)) {
 						output.println("ERR");
 						throw new IOException();
 					}
-					
-					push(client);
-					
-					return true;
-
-				} catch (IOException e) {
-					unregisterClient(client);
-					return false;
 				}
 				
+				push(client);
+				
+			} catch (IOException e) {
+				for (OutboundMessage m : inFlight) {
+					m.complete(false);
+				}
+				unregisterClient(client);
+			} finally {
+				client.releaseWriter();
+				if (client.getOutboundSize() > 0) {
+					scheduleWriter(client);
+				}
 			}
 				
 		}
@@ -358,69 +480,102 @@ public class ConnectionManager {
 	
 	
 	/**
-	 * MesageProcessor task takes a Message object and for each
-	 * recipient it starts separate Messenger task. It waits for all
-	 * Messenger task to finish and report success of message delivery.
-	 * In the end, it updates database so that failed message delivery
-	 * can be tried again when corresponding client reconnects. 
+	 * MesageProcessor task takes a Message object and queues it for
+	 * each recipient (for broadcast messages, each client of the application
+	 * or topic registered when the task starts). At most fanOutWindow deliveries are pending at a time;
+	 * a new recipient gets the message whenever an earlier delivery finishes,
+	 * so a large broadcast never holds a Future per recipient and slow
+	 * clients don't hold back the rest.
+	 * Results are recorded in the DeliveryJournal as soon as they are
+	 * known, which updates database so that failed message delivery can be
+	 * tried again when corresponding client reconnects. 
+	 * Processors are ordered by urgency: priority class first, then
+	 * expiration time (earliest deadline first), then order of submission.
+	 * Once the message expires, it is not given to any more recipients.
 	 */
-	private class MessageProcessor implements Runnable {
+	private class MessageProcessor implements Runnable, Comparable<MessageProcessor> {
 
 		private Message message; 
+		private final long sequence;
+		// Expiration time (milliseconds), 0 if the message never expires
+		private final long expires;
 		
 		public MessageProcessor(Message message) {
 
 			this.message = message;
+			this.sequence = messageSequence.incrementAndGet();
+			this.expires = message.getExpires() == null ? 0 : message.getExpires().getTime();
 			
 		}
 		
 		@Override
-		public void run() {
-			
-			List<Messenger> tasks = new ArrayList<Messenger>();
-			List<Future<Boolean>> results;
-			
-			{
-				Iterator<String> i = message.getRecipients().keySet().iterator();
-				String clientUID;
-				ConnectedClient client;
-				while (i.hasNext()) {
-					clientUID = i.next();
-					client = clientMap.get(clientUID);
-					if (client!=null) {
-						tasks.add(new Messenger(client, message.getText()));
-					}
-				}
+		public int compareTo(MessageProcessor o) {
+			int c = message.getPriority().compareTo(o.message.getPriority());
+			if (c == 0) {
+				c = Long.compare(expires == 0 ? Long.MAX_VALUE : expires,
+						o.expires == 0 ? Long.MAX_VALUE : o.expires);
 			}
+			return c != 0 ? c : Long.compare(sequence, o.sequence);
+		}
+		
+		@Override
+		public void run() {
 			
-			try {
-				results = timedThreadPool.invokeAll(tasks);
-			} catch (InterruptedException e) {
+			if (message.isExpired(System.currentTimeMillis())) {
+				messagesExpired.increment();
 				return;
 			}
 			
+			long start = System.nanoTime();
+			// Filled by the threads completing deliveries
+			final BlockingQueue<DeliveryReport> finished = new LinkedBlockingQueue<DeliveryReport>();
+			// Encoded once, shared by all recipients
+			MessageFrame frame = new MessageFrame(message.getId(), message.getText());
+			int window = Math.max(1, server.getOptions().getFanOutWindow());
+			int pending = 0;
 			
-			{
-				Iterator<Future<Boolean>> i = results.iterator();
-				Future<Boolean> res;
-				Boolean resB;
-				while (i.hasNext()) {
-					res = i.next();
-					try {
-						resB = res.get();
-					} catch (InterruptedException e) {
-						resB = false;
-					} catch (ExecutionException e) {
-						resB = false;
+			Iterator<String> i = (message.isBroadcast() ?
+					getRegisteredClients(message.getApplicationUID(), message.getTopic()) :
+					message.getRecipients().keySet()).iterator();
+			
+			try {
+				while (true) {
+					if (i.hasNext() && message.isExpired(System.currentTimeMillis())) {
+						// Deliveries already queued are dropped by the writers
+						messagesExpired.increment();
+						i = Collections.<String>emptySet().iterator();
+					}
+					while (pending < window && i.hasNext()) {
+						final String clientUID = i.next();
+						ConnectedClient client = clientMap.get(clientUID);
+						if (client==null) {
+							continue;
+						}
+						deliver(client, frame, expires).whenComplete(
+								new BiConsumer<Boolean, Throwable>() {
+									@Override
+									public void accept(Boolean delivered, Throwable t) {
+										finished.add(new DeliveryReport(message.getId(), clientUID,
+												Boolean.TRUE.equals(delivered)));
+									}
+								});
+						pending++;
+					}
+					if (pending == 0) {
+						break;
 					}
-					message.getRecipients().put(
-							tasks.get(results.indexOf(res)).getClient().getClientUID(),
-							resB);
+					DeliveryReport report = finished.take();
+					do {
+						pending--;
+						message.getRecipients().put(report.getClientUID(), report.isDelivered());
+						recordDelivery(report.getMessageID(), report.getClientUID(), report.isDelivered());
+					} while ((report = finished.poll()) != null);
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				fanOutDuration.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
 			}
-				
-
-			server.getDbManager().updateMessageStatus(message);
 			
 		}
 		
@@ -428,281 +583,1331 @@ public class ConnectionManager {
 
 	
 	/**
-	 * DelayedMessagesSender sends delayed messages, i.e. messages
-	 * not delivered to a client (client offline or other reasons).
-	 * It must also report whether messages are delivered or not.
+	 * BacklogReplayer sends delayed messages, i.e. messages
+	 * not delivered to a client (client offline or other reasons),
+	 * after the client registers. The backlog is read from the database
+	 * a page at a time; the next page is read only when the client has
+	 * acknowledged the previous one, so a long backlog is never held in
+	 * memory and never floods client's outbound queue.
+	 * The replayer doesn't wait for the client: when all deliveries of a
+	 * page are finished, it is submitted to generalThreadPool again to
+	 * record their results and read the next page.
+	 * Replay stops when a delivery fails or the client goes away; the
+	 * rest of the backlog is replayed when it reconnects. Messages which
+	 * expired in the meantime are skipped.
 	 * Number of delayed messages to be sent depends on server configuration.
 	 */
-	private class DelayedMessagesSender implements Runnable {
+	private class BacklogReplayer implements Runnable {
 
-		List<DelayedMessage> messages;
+		private final ConnectedClient client;
+		private final int pageSize;
+		private long cursor = Long.MIN_VALUE;
+		// Page being delivered and results of its deliveries
+		private List<DelayedMessage> page;
+		private List<CompletableFuture<Boolean>> results;
 		
-		public DelayedMessagesSender(List<DelayedMessage> messages) {
+		public BacklogReplayer(ConnectedClient client) {
 
-			this.messages = messages;
+			this.client = client;
+			this.pageSize = Math.max(1, Math.min(
+					server.getOptions().getBacklogPageSize(),
+					server.getOptions().getOutboundQueueSize()));
 			
 		}
 
 		@Override
 		public void run() {
 			
-			List<Messenger> tasks = new ArrayList<Messenger>();
-			List<Future<Boolean>> results;
+			if (page != null && !finishPage()) {
+				return;
+			}
 			
-			{
-				Iterator<DelayedMessage> i = messages.iterator();
-				DelayedMessage message;
-				ConnectedClient client;
-				while (i.hasNext()) {
-					message = i.next();
-					client = clientMap.get(message.getClientUID());
-					if (client!=null) {
-						tasks.add(new Messenger(client, message.getText()));
-					}
-				}
+			if (!isCurrent(client)) {
+				return;
 			}
-
 			
-			try {
-				results = timedThreadPool.invokeAll(tasks);
-			} catch (InterruptedException e) {
+			page = server.getDbManager().getDelayedMessages(
+					client.getClientUID(),
+					server.getOptions().getDelayedMessagesQty(),
+					cursor,
+					pageSize);
+			if (page == null || page.isEmpty()) {
 				return;
 			}
 			
-
-			Map<String, Boolean> mapping = new HashMap<String, Boolean>();
-
-			{
-				Iterator<Future<Boolean>> i = results.iterator();
-				Future<Boolean> res;
-				Boolean resB;
-				while (i.hasNext()) {
-					res = i.next();
-					try {
-						resB = res.get();
-					} catch (InterruptedException e) {
-						resB = false;
-					} catch (ExecutionException e) {
-						resB = false;
-					}
-					mapping.put(
-							tasks.get(results.indexOf(res)).getClient().getClientUID(),
-							resB);
-				}
+			results = new ArrayList<CompletableFuture<Boolean>>(page.size());
+			for (DelayedMessage message : page) {
+				results.add(deliver(client,
+						new MessageFrame(message.getMessageID(), message.getText()),
+						message.getExpires() == null ? 0 : message.getExpires().getTime()));
 			}
 			
-			{
-				Iterator<DelayedMessage> i = messages.iterator();
-				DelayedMessage message;
-				Boolean resB;
-				while (i.hasNext()) {
-					message = i.next();
-					resB = mapping.get(message.getClientUID());
-					if (resB == null)
-						resB = false;
-					message.setSent(resB);
-				}
+			CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()])).whenComplete(
+					new BiConsumer<Void, Throwable>() {
+						@Override
+						public void accept(Void v, Throwable t) {
+							generalThreadPool.execute(BacklogReplayer.this);
+						}
+					});
+			
+		}
+		
+		/**
+		 * Records results of the page just delivered.
+		 * @return true if the next page should be replayed
+		 */
+		private boolean finishPage() {
+			
+			boolean allSent = true;
+			long now = System.currentTimeMillis();
+			Iterator<CompletableFuture<Boolean>> i = results.iterator();
+			for (DelayedMessage message : page) {
+				boolean resB = Boolean.TRUE.equals(i.next().getNow(Boolean.FALSE));
+				message.setSent(resB);
+				recordDelivery(message.getMessageID(), message.getClientUID(), resB);
+				// An expired message isn't a failure of the client
+				allSent &= resB || (message.getExpires() != null && message.getExpires().getTime() <= now);
 			}
 			
-			server.getDbManager().updateDelayedMessageStatus(messages);
+			boolean more = allSent && page.size() >= pageSize;
+			cursor = page.get(page.size() - 1).getMessageID();
+			page = null;
+			results = null;
+			return more;
 			
 		}
 		
 	}
-	
-	
-	/**
-	 * Instantiates new ConnectionManager object responsible for all
-	 * operations on connection requests and ConnectedClient objects.
-	 * @param server server which this ConnectionManager will serve
-	 */
-	public ConnectionManager(Server server) {
-		this.server = server;
-		timedThreadPool = new TimedFixedThreadPool(
-				server.getOptions().getTimedThreadPoolSize(),
-				server.getOptions().getClientResponseTimeout(),
-				TimeUnit.SECONDS,
-				new ThreadFactory() {
-					@Override
-					public Thread newThread(Runnable r) {
-						Thread t = new Thread(r);
-						t.setDaemon(true);
-						t.setName("TimedThread");
-						return t;
-					}
-				});
-		generalThreadPool = Executors.newFixedThreadPool(
-				server.getOptions().getTimedThreadPoolSize(),
-				new ThreadFactory() {
-					@Override
-					public Thread newThread(Runnable r) {
-						Thread t = new Thread(r);
-						t.setDaemon(true);
-						return t;
-					}
-				});
-		clientMap = new HashMap<String, ConnectedClient>();
-		clientSet = new TreeSet<ConnectedClient>(new PingTimeComparator());
-		pingTimer = new PingTimer();
-		pingTimer.start();
-	}
-	
-	
-	/**
-	 * Returns total number of currently registered clients (connections).
-	 * @return number of registered clients
-	 */
-	public synchronized int getClientCount() {
-		
-		return clientMap.size();
 
+
+	private enum SessionState {
+		APP_ID,
+		CLIENT_ID,
+		AUTHORIZING,
+		TIMEOUT,
+		IDLE,
+		AWAIT_PONG,
+		AWAIT_OK
 	}
-	
-	/**
-	 * This method accepts SocketChannel object which represents
-	 * new connection request. The SocketChannel object and corresponding
-	 * client will be checked for validity. If connection is valid, a new
-	 * ConnectedClient object will be created, containing client's unique ID,
-	 * and this SocketChannel object, and will be added to underlying containers.
-	 * @param connection SocketChannel object representing new connection request
-	 */
-	public void submit(SocketChannel connection) {
-		
-		timedThreadPool.execute(new Authenticator(connection));
-		
-	}
-	
-	
+
+
 	/**
-	 * Registers new ConnectedClient after corresponding client is Authenticated.
-	 * This method should only be called by Authenticator thread following
-	 * successful authentication procedure.
-	 * @param client client to be registered
+	 * ClientSession is the non-blocking counterpart of Authenticator, Pinger
+	 * and ClientWriter tasks. It speaks the same protocol, but as a state
+	 * machine driven by a SelectorLoop, so no thread is ever parked waiting
+	 * for the client. Database calls are made from handshakeThreadPool and
+	 * their results are handed back to the loop thread.
+	 * Messages are taken from the client's outbound queue, the loop thread
+	 * being the only writer.
 	 */
-	private synchronized void registerClient(ConnectedClient client) {
-		
-		/*
-		 * If the client is already registered, don't do anything.
-		 * The new client will not be registered until existing client is
-		 * unregistered.
-		 * This (rare) situation can happen when a client connects to
-		 * the server, while existing connection has not been unregistered (or in
-		 * case of client UID spoofing). The only way for a client to connect is to
-		 * wait until PingTimer discovers failed connection and unregisters existing
-		 * connection associated with the same client UID.
-		 */
-		if (isRegistered(client.getClientUID())) {
-			logger.logp(Level.WARNING, "ConnectionManager", "registerClient()", "Already registered! Skipping.");
-			return;
-		}
+	private class ClientSession extends SelectorLoop.Session {
 
-		clientMap.put(client.getClientUID(), client);
+		private SessionState state = SessionState.APP_ID;
+		private int protocolVersion = 1;
+		private String appUID;
+		private String clientUID;
+		private final Set<String> topics = new HashSet<String>();
+		private ConnectedClient client;
+		// Messages sent but not yet acknowledged, in the order they were sent
+		private final Deque<OutboundMessage> inFlight = new ArrayDeque<OutboundMessage>(1);
+		// When the last CLIENT_ID or PING was received or sent (System.nanoTime())
+		private long started;
+		// Until the handshake is over, successfully or not
+		private boolean admitted = true;
 
-		push(client);
-		
-		List<DelayedMessage> delayedMessages = 
-				server.getDbManager().getDelayedMessages(client.getClientUID(),
-						server.getOptions().getDelayedMessagesQty());
 
-		if (delayedMessages.size()>0) {
-			generalThreadPool.submit(
-					new DelayedMessagesSender(delayedMessages));
+		@Override
+		protected void onOpen() {
+			setDeadline(server.getOptions().getClientResponseTimeout() * 1000L);
 		}
-		
-		logger.logp(Level.INFO, "ConnectionManager", "registerClient()", "Client #" + client.getClientUID() + " registered.");
-		logger.logp(Level.INFO, "ConnectionManager", "registerClient()", "Total clients: " + getClientCount() + ".");
-	}
-	
-	/**
-	 * Unregisters the client. This method should be invoked only when
-	 * client connection becomes unusable (the client doesn't respond to PING),
-	 * the client's connection is broken or the client doesn't reply as expected
-	 * (protocol mismatch). After this method is called, the client will be
-	 * permanently removed from underlying containers and client will be considered
-	 * offline.
-	 * @param client client to be unregistered.
-	 */
-	private synchronized void unregisterClient(ConnectedClient client) {
-		
-		pop(client);
-		
-		clientMap.remove(client.getClientUID());
 
-		/*
-		 * Try to close related SocketChannel.
-		 */
-		try {
-			client.getConnection().close();
-		} catch (IOException e) {
-			logger.logp(Level.SEVERE, "ConnectionManager", "unregisterClient()", "Error closing connection!");
-			e.printStackTrace();
-		}
 
-		logger.logp(Level.INFO, "ConnectionManager", "unregisterClient()", "Client #" + client.getClientUID() + " unregistered.");
-		logger.logp(Level.INFO, "ConnectionManager", "unregisterClient()", "Total clients: " + getClientCount() + ".");
-	}
+		@Override
+		protected void onLine(String line) {
 
-	
-	
-	/**
-	 * Pushes a client into underlying queue which takes care for clients to
-	 * be PINGed in timely fashion. This method should be called by tasks that
-	 * temporary take a client to communicate with it, after being finished with it.
-	 * @param c client to be pushed into the queue
-	 */
-	private synchronized void push(ConnectedClient c) {
-		
-		/*
-		 * Don't take the client into clientSet if it's not already in clientMap.
-		 * clientMap must always contain all registered clients, so if the client
-		 * supplied in not there, we won't accept it in clientSet.
+			switch (state) {
+				case APP_ID:
+					if (line.startsWith("Protocol=")) {
+						negotiate(line.substring(9));
+						return;
+					}
+					if (!line.startsWith("ApplicationID=")) {
+						fail();
+						return;
+					}
+					appUID = line.substring(14);
+					send("OK");
+					state = SessionState.CLIENT_ID;
+					break;
+				case CLIENT_ID:
+					if (!line.startsWith("ClientID=")) {
+						fail();
+						return;
+					}
+					clientUID = line.substring(9);
+					started = System.nanoTime();
+					state = SessionState.AUTHORIZING;
+					suspendReads();
+					handshakeThreadPool.execute(new Runnable() {
+						@Override
+						public void run() {
+							authorize();
+						}
+					});
+					break;
+				case TIMEOUT:
+					if (line.startsWith("Subscribe=")) {
+						if (!subscribe(topics, line.substring(10))) {
+							fail();
+							return;
+						}
+						send("OK");
+						return;
+					}
+					KeepAlive keepAlive = negotiateKeepAlive(clientUID, line, protocolVersion);
+					if (keepAlive == null) {
+						fail();
+						return;
+					}
+					clearDeadline();
+					send("" + keepAlive.getMax() / 1000);
+					release();
+					client = new ConnectedClient(clientUID, getChannel(), new Date(), this);
+					client.setProtocolVersion(protocolVersion);
+					client.setKeepAlive(keepAlive);
+					client.setAppUID(appUID);
+					client.setTopics(topics);
+					state = SessionState.IDLE;
+					handshakeThreadPool.execute(new Runnable() {
+						@Override
+						public void run() {
+							if (!registerClient(client)) {
+								close();
+							}
+						}
+					});
+					break;
+				case AWAIT_PONG:
+					clearDeadline();
+					if (!"PONG".equals(line)) {
+						fail();
+						return;
+					}
+					pingRtt.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+					keepAliveSucceeded(client);
+					state = SessionState.IDLE;
+					push(client);
+					sendNext();
+					break;
+				case AWAIT_OK:
+					if (!acknowledge(line, protocolVersion, inFlight)) {
+						fail();
+						return;
+					}
+					if (inFlight.isEmpty()) {
+						clearDeadline();
+						state = SessionState.IDLE;
+						push(client);
+					} else {
+						// The client is making progress, give it more time
+						setDeadline(server.getOptions().getClientResponseTimeout() * 1000L);
+					}
+					sendNext();
+					break;
+				default:
+					// The client is not supposed to talk unless asked
+					fail();
+			}
+
+		}
+
+
+		/**
+		 * Agrees on protocol version: the highest version supported by
+		 * both sides.
 		 */
-		if (!clientMap.containsKey(c.getClientUID())) {
-			logger.logp(Level.WARNING, "ConnectedClient", "push()", "Client #" + c.getClientUID() + " not registered! Skipping.");
-			return;
+		private void negotiate(String requested) {
+			protocolVersion = negotiateProtocol(requested);
+			if (protocolVersion < 1) {
+				fail();
+				return;
+			}
+			send("OK");
+			send("" + protocolVersion);
 		}
 
-		/*
-		 * Makes sure that the client is removed from clientSet before trying to
-		 * change its nextPingTime.
+
+		/**
+		 * Checks client's credentials (or creates a new client).
+		 * Runs on handshakeThreadPool because it talks to the database.
+		 */
+		private void authorize() {
+
+			final boolean isNew = "NEW".equals(clientUID);
+			final String uid;
+			final boolean authorized;
+
+			if (isNew) {
+				uid = server.getDbManager().getNewClientUID(appUID);
+				authorized = (uid != null);
+			} else {
+				uid = clientUID;
+				ConnectedClient c = clientMap.get(uid);
+				if (c != null) {
+					unregisterClient(c);
+				}
+				authorized = server.getDbManager().isClientAuthorized(appUID, uid);
+			}
+			authLatency.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					if (isClosed()) {
+						return;
+					}
+					if (!authorized) {
+						fail();
+						return;
+					}
+					send("OK");
+					if (isNew) {
+						send(uid);
+					}
+					clientUID = uid;
+					state = SessionState.TIMEOUT;
+					resumeReads();
+				}
+			});
+
+		}
+
+
+		/**
+		 * Sends a PING, unless the client is busy with messages
+		 * (delivery of a message also proves the connection is alive).
+		 * A busy client goes back to the keep-alive wheel, since the queued
+		 * messages may all expire before anything is sent.
 		 */
-		if (clientSet.contains(c)) {
-			clientSet.remove(c);
-			logger.logp(Level.WARNING, "ConnectedClient", "push()", "clientSet already contained client #" + c.getClientUID() + ". Removed.");
+		private void ping() {
+			if (isClosed() || state != SessionState.IDLE) {
+				return;
+			}
+			if (client.getOutboundSize() > 0) {
+				push(client);
+				return;
+			}
+			started = System.nanoTime();
+			send("PING");
+			state = SessionState.AWAIT_PONG;
+			setDeadline(server.getOptions().getPingResponseTimeout() * 1000L);
+		}
+
+
+		/**
+		 * Sends messages from client's outbound queue as long as
+		 * the window allows. Protocol version 1 allows one message in flight.
+		 */
+		private void sendNext() {
+
+			if (client == null) {
+				return;
+			}
+
+			if (isClosed()) {
+				failOutbound(client);
+				return;
+			}
+
+			if (state == SessionState.AWAIT_PONG) {
+				return;
+			}
+
+			List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+			int window = getWindow(client);
+			long now = System.currentTimeMillis();
+			OutboundMessage m;
+
+			while (inFlight.size() < window && (m = client.peekOutbound()) != null) {
+				if (m.isExpired(now)) {
+					client.pollOutbound();
+					expire(m);
+					continue;
+				}
+				if (containsMessage(inFlight, m.getMessageID())) {
+					// Acknowledgements wouldn't tell the two apart
+					break;
+				}
+				client.pollOutbound();
+				if (state == SessionState.IDLE) {
+					pop(client);
+					if (!isCurrent(client)) {
+						m.complete(false);
+						continue;
+					}
+					state = SessionState.AWAIT_OK;
+					setDeadline(server.getOptions().getClientResponseTimeout() * 1000L);
+				}
+				inFlight.add(m);
+				m.getFrame().appendTo(frames, protocolVersion);
+			}
+
+			if (!frames.isEmpty()) {
+				send(frames.toArray(new ByteBuffer[frames.size()]));
+			}
+
+		}
+
+
+		private void fail() {
+			send("ERR");
+			close();
+		}
+
+
+		private void release() {
+			if (admitted) {
+				admitted = false;
+				admission.release();
+			}
 		}
 
-		c.setNextPingTime(new Date(System.currentTimeMillis() + 
-				server.getOptions().getKeepAliveTimeout()*1000));
 
+		@Override
+		protected void onTimeout() {
+			close();
+		}
+
+
+		@Override
+		protected void onClosed() {
+			if (state == SessionState.AWAIT_PONG && !isEndOfStream()) {
+				// No answer or connection reset, the connection was idle too
+				// long (as in Pinger, a client closing it itself doesn't count)
+				keepAliveFailed(client);
+			}
+			release();
+			for (OutboundMessage m : inFlight) {
+				m.complete(false);
+			}
+			inFlight.clear();
+			if (client != null) {
+				failOutbound(client);
+				unregisterClient(client);
+			}
+		}
+
+	}
+
+
+	/**
+	 * Instantiates new ConnectionManager object responsible for all
+	 * operations on connection requests and ConnectedClient objects.
+	 * @param server server which this ConnectionManager will serve
+	 */
+	public ConnectionManager(Server server) {
+		this.server = server;
+		Metrics metrics = server.getMetrics();
+		authLatency = metrics.histogram("auth.latency");
+		pingRtt = metrics.histogram("ping.rtt");
+		fanOutDuration = metrics.histogram("fanout.duration");
+		deliveriesSucceeded = metrics.counter("deliveries.succeeded");
+		deliveriesFailed = metrics.counter("deliveries.failed");
+		deliveriesExpired = metrics.counter("deliveries.expired");
+		messagesExpired = metrics.counter("messages.expired");
+		handshakesRejected = metrics.counter("handshakes.rejected");
+		admission = new AdmissionController(
+				server.getOptions().getHandshakeRate(),
+				server.getOptions().getHandshakeBurst(),
+				server.getOptions().getMaxPendingHandshakes());
+		if (server.getOptions().getIoMode() == ServerOptions.IOMode.VIRTUAL) {
+			if (!VirtualThreadExecutor.isVirtualThreadSupported()) {
+				logger.logp(Level.WARNING, "ConnectionManager", "ConnectionManager()", "Virtual threads need Java 21 or newer. Running a platform thread per task.");
+			}
+			timedThreadPool = new VirtualThreadExecutor(
+					"TimedThread",
+					server.getOptions().getClientResponseTimeout(),
+					TimeUnit.SECONDS);
+			generalThreadPool = new VirtualThreadExecutor(
+					"GeneralThread",
+					0,
+					TimeUnit.SECONDS);
+		} else {
+			timedThreadPool = new TimedFixedThreadPool(
+					server.getOptions().getTimedThreadPoolSize(),
+					server.getOptions().getClientResponseTimeout(),
+					TimeUnit.SECONDS,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r);
+							t.setDaemon(true);
+							t.setName("TimedThread");
+							return t;
+						}
+					});
+			generalThreadPool = Executors.newFixedThreadPool(
+					server.getOptions().getTimedThreadPoolSize(),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		if (server.getOptions().getIoMode() == ServerOptions.IOMode.NIO) {
+			int loops = server.getOptions().getSelectorThreads();
+			if (loops <= 0) {
+				loops = Runtime.getRuntime().availableProcessors();
+			}
+			selectorLoops = new SelectorLoop[loops];
+			for (int i = 0; i < loops; i++) {
+				try {
+					selectorLoops[i] = new SelectorLoop("ConnectionManager.SelectorLoop-" + i);
+				} catch (IOException e) {
+					logger.logp(Level.SEVERE, "ConnectionManager", "ConnectionManager()", "Cannot open Selector!");
+					throw new IllegalStateException(e);
+				}
+				selectorLoops[i].start();
+			}
+			handshakeThreadPool = Executors.newFixedThreadPool(
+					server.getOptions().getHandshakeThreadPoolSize(),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r);
+							t.setDaemon(true);
+							t.setName("HandshakeThread");
+							return t;
+						}
+					});
+		}
+		journal = new DeliveryJournal(
+				server.getDbManager(),
+				server.getOptions().getJournalCapacity(),
+				server.getOptions().getJournalBatchSize(),
+				server.getOptions().getJournalFlushInterval(),
+				TimeUnit.MILLISECONDS);
+		stripes = new ReentrantLock[REGISTRY_STRIPES];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		final int historySize = server.getOptions().getMaxClients();
+		keepAliveHistory = Collections.synchronizedMap(
+				new LinkedHashMap<String, KeepAlive>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, KeepAlive> eldest) {
+						return size() > historySize;
+					}
+				});
+		clientMap = new ConcurrentHashMap<String, ConnectedClient>();
+		appIndex = new ConcurrentHashMap<String, Set<ConnectedClient>>();
+		topicIndex = new ConcurrentHashMap<String, Set<ConnectedClient>>();
 		/*
-		 * The following piece of code makes sure that all registered
-		 * clients are evenly spaced in time, so that PingTimer wakes up
-		 * periodically and that CPU and memory usage are nice and flat.
+		 * One rotation of the wheel covers the longest keep-alive interval,
+		 * so PINGs can be spread over its slots.
 		 */
-		Date newDate = new Date();
+		long longestKeepAlive = Math.max(
+				server.getOptions().getKeepAliveTimeout(),
+				server.getOptions().getKeepAliveMaxTimeout());
+		keepAliveWheel = new TimingWheel<ConnectedClient>(
+				"ConnectionManager.PingTimer",
+				KEEP_ALIVE_TICK,
+				TimeUnit.MILLISECONDS,
+				(int) (longestKeepAlive * 1000L / KEEP_ALIVE_TICK) + 1,
+				new PingTimer());
+		registerGauges(metrics);
+	}
+	
+	
+	/**
+	 * Exposes sizes of thread pools, the registry and the journal
+	 * as gauges.
+	 */
+	private void registerGauges(Metrics metrics) {
 		
-		if (!clientSet.isEmpty()) {
-			newDate.setTime((clientSet.last().getNextPingTime().getTime()));
+		registerPoolGauges(metrics, "pool.timed", timedThreadPool);
+		registerPoolGauges(metrics, "pool.general", generalThreadPool);
+		if (handshakeThreadPool != null) {
+			registerPoolGauges(metrics, "pool.handshake", handshakeThreadPool);
 		}
+		metrics.gauge("handshakes.pending", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return admission.getPendingCount();
+			}
+		});
+		metrics.gauge("clients.registered", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return clientCount.get();
+			}
+		});
+		metrics.gauge("messages.pending", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return pendingMessages.size();
+			}
+		});
+		metrics.gauge("journal.pending", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return journal.getPendingCount();
+			}
+		});
+		metrics.gauge("journal.lag.ms", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return journal.getLag(TimeUnit.MILLISECONDS);
+			}
+		});
+		metrics.gauge("journal.failed", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return journal.getFailedCount();
+			}
+		});
 		
-		long delta = server.getOptions().getKeepAliveTimeout()*1000 /
-			getClientCount(); // da li dijeliti sa brojem klijenata u Set-u, a ne Map-i?
+	}
 	
-		if (delta>0) {
-			newDate.setTime(newDate.getTime() + delta);
-			
-			if (newDate.before(c.getNextPingTime())) {
-				c.setNextPingTime(newDate);
+	
+	private static void registerPoolGauges(Metrics metrics, String name, final ExecutorService pool) {
+		
+		if (pool instanceof ThreadPoolExecutor) {
+			metrics.gauge(name + ".queued", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return ((ThreadPoolExecutor) pool).getQueue().size();
+				}
+			});
+			metrics.gauge(name + ".active", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return ((ThreadPoolExecutor) pool).getActiveCount();
+				}
+			});
+		} else if (pool instanceof VirtualThreadExecutor) {
+			// Every task gets a thread of its own, nothing is queued
+			metrics.gauge(name + ".active", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return ((VirtualThreadExecutor) pool).getActiveCount();
+				}
+			});
+			metrics.gauge(name + ".timedOut", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return ((VirtualThreadExecutor) pool).getTimedOutTaskCount();
+				}
+			});
+		}
+		if (pool instanceof TimedFixedThreadPool) {
+			metrics.gauge(name + ".timedOut", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return ((TimedFixedThreadPool) pool).getTimedOutTaskCount();
+				}
+			});
+		}
+		
+	}
+	
+	
+	/**
+	 * Stops accepting work and waits (up to clientResponseTimeout) for
+	 * running deliveries to finish, then writes all pending delivery
+	 * results to the database.
+	 */
+	public void shutdown() {
+		
+		if (handshakeThreadPool != null) {
+			handshakeThreadPool.shutdown();
+		}
+		generalThreadPool.shutdown();
+		try {
+			generalThreadPool.awaitTermination(
+					server.getOptions().getClientResponseTimeout(), TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		journal.close(server.getOptions().getClientResponseTimeout(), TimeUnit.SECONDS);
+		
+	}
+	
+	
+	/**
+	 * Returns the journal of delivery results (e.g. to check its lag).
+	 * @return delivery journal
+	 */
+	public DeliveryJournal getJournal() {
+		return journal;
+	}
+	
+	
+	/**
+	 * Records result of a delivery in the journal and in delivery counters.
+	 */
+	private void recordDelivery(long messageID, String clientUID, boolean delivered) {
+		journal.record(messageID, clientUID, delivered);
+		if (delivered) {
+			deliveriesSucceeded.increment();
+		} else {
+			deliveriesFailed.increment();
+		}
+	}
+	
+	
+	/**
+	 * Returns total number of currently registered clients (connections).
+	 * @return number of registered clients
+	 */
+	public int getClientCount() {
+		
+		return clientCount.get();
+
+	}
+	
+	/**
+	 * This method accepts SocketChannel object which represents
+	 * new connection request. The SocketChannel object and corresponding
+	 * client will be checked for validity. If connection is valid, a new
+	 * ConnectedClient object will be created, containing client's unique ID,
+	 * and this SocketChannel object, and will be added to underlying containers.
+	 * If too many handshakes are starting or in progress, the client is told
+	 * to retry later ("BUSY &lt;seconds&gt;") and the connection is closed.
+	 * @param connection SocketChannel object representing new connection request
+	 */
+	public void submit(SocketChannel connection) {
+		
+		if (!admission.tryAdmit()) {
+			handshakesRejected.increment();
+			reject(connection, admission.getRetryAfter());
+			return;
+		}
+		
+		if (selectorLoops != null) {
+			SelectorLoop loop = selectorLoops[
+					(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % selectorLoops.length];
+			loop.register(connection, new ClientSession());
+		} else {
+			timedThreadPool.execute(new Authenticator(connection));
+		}
+		
+	}
+	
+	
+	/**
+	 * Tells a client which was not admitted when to retry and closes
+	 * the connection. Never blocks the accepting thread.
+	 * @param connection connection to reject
+	 * @param retryAfter seconds the client should wait
+	 */
+	private static void reject(SocketChannel connection, int retryAfter) {
+		
+		try {
+			connection.configureBlocking(false);
+			connection.write(SelectorLoop.CHARSET.encode(
+					"BUSY " + retryAfter + SelectorLoop.LINE_SEPARATOR));
+		} catch (IOException e) {
+			logger.logp(Level.FINE, "ConnectionManager", "reject()", "Error writing to rejected connection.");
+		}
+		close(connection);
+		
+	}
+	
+	
+	/**
+	 * Closes a connection of a task which hit its deadline, so that
+	 * blocked reads and writes fail immediately.
+	 * @param connection connection to close
+	 */
+	private static void close(SocketChannel connection) {
+		
+		try {
+			connection.close();
+		} catch (IOException e) {
+			logger.logp(Level.WARNING, "ConnectionManager", "close()", "Error closing connection!");
+		}
+		
+	}
+	
+	
+	/**
+	 * Sends a PING to the client. In blocking mode a Pinger task is started,
+	 * in non-blocking mode client's ClientSession takes care of it.
+	 * A client with an active ClientWriter is not PINGed but rescheduled,
+	 * because the writer returns it to the wheel only if it sends something.
+	 * @param client client to be PINGed
+	 */
+	private void ping(ConnectedClient client) {
+		
+		if (client.getSession() != null) {
+			final ClientSession session = (ClientSession) client.getSession();
+			session.execute(new Runnable() {
+				@Override
+				public void run() {
+					session.ping();
+				}
+			});
+		} else if (!client.isWriting()) {
+			timedThreadPool.execute(new Pinger(client));
+		} else {
+			push(client);
+		}
+		
+	}
+	
+	
+	/**
+	 * Queues a message for delivery to the client. This method never
+	 * blocks: if client's outbound queue is full, the delivery fails
+	 * immediately (and the message stays undelivered in the database).
+	 * @param client recipient
+	 * @param frame encoded message, may be shared by many recipients
+	 * @param expires expiration time of the message (milliseconds), 0 if never;
+	 * an expired message is dropped instead of being written to the client
+	 * @return Future reporting whether the client received the message
+	 */
+	private CompletableFuture<Boolean> deliver(ConnectedClient client, MessageFrame frame, long expires) {
+		
+		OutboundMessage m = new OutboundMessage(frame, expires);
+		
+		if (!client.offer(m, server.getOptions().getOutboundQueueSize())) {
+			logger.logp(Level.FINE, "ConnectionManager", "deliver()", "Outbound queue of client #" + client.getClientUID() + " is full!");
+			m.complete(false);
+			return m.getResult();
+		}
+		
+		scheduleWriter(client);
+		
+		return m.getResult();
+		
+	}
+	
+	
+	/**
+	 * Makes sure someone is writing messages queued for the client,
+	 * unless there is a writer already. In blocking mode a ClientWriter
+	 * task is started, in non-blocking mode client's ClientSession is asked
+	 * to send them.
+	 * @param client client with queued messages
+	 */
+	private void scheduleWriter(final ConnectedClient client) {
+		
+		if (!client.acquireWriter()) {
+			return;
+		}
+		
+		if (client.getSession() != null) {
+			final ClientSession session = (ClientSession) client.getSession();
+			session.execute(new Runnable() {
+				@Override
+				public void run() {
+					// The loop thread is the writer, so just coalesce wake-ups
+					client.releaseWriter();
+					session.sendNext();
+				}
+			});
+		} else {
+			timedThreadPool.execute(new ClientWriter(client));
+		}
+		
+	}
+	
+	
+	/**
+	 * Drops an expired message taken from an outbound queue. It counts as
+	 * undelivered, so nothing is written to the database.
+	 * @param m expired message
+	 */
+	private void expire(OutboundMessage m) {
+		
+		deliveriesExpired.increment();
+		m.complete(false);
+		
+	}
+	
+	
+	/**
+	 * Fails all messages waiting in client's outbound queue.
+	 * @param client client
+	 */
+	private void failOutbound(ConnectedClient client) {
+		
+		OutboundMessage m;
+		while ((m = client.pollOutbound()) != null) {
+			m.complete(false);
+		}
+		
+	}
+	
+	
+	/**
+	 * Returns how many messages may be in flight to the client at once.
+	 * @param client client
+	 * @return 1 for protocol version 1, deliveryWindow otherwise
+	 */
+	private int getWindow(ConnectedClient client) {
+		
+		if (client.getProtocolVersion() == 1) {
+			return 1;
+		}
+		return Math.max(1, server.getOptions().getDeliveryWindow());
+		
+	}
+	
+	
+	/**
+	 * Adds topics from a comma separated list sent by a client.
+	 * @param topics topics subscribed so far
+	 * @param list comma separated list of topics
+	 * @return false if the client subscribes to too many topics
+	 */
+	private static boolean subscribe(Set<String> topics, String list) {
+		
+		for (String topic : list.split(",")) {
+			topic = topic.trim();
+			if (!topic.isEmpty()) {
+				topics.add(topic);
+			}
+		}
+		return topics.size() <= MAX_TOPICS;
+		
+	}
+	
+	
+	private static String topicKey(String appUID, String topic) {
+		// Line breaks can't be part of application UID
+		return appUID + "\n" + topic;
+	}
+	
+	
+	/**
+	 * Adds a newly registered client to appIndex and topicIndex.
+	 * Must be called while holding the client's stripe lock.
+	 * @param client client
+	 */
+	private void index(ConnectedClient client) {
+		
+		if (client.getAppUID() == null) {
+			return;
+		}
+		add(appIndex, client.getAppUID(), client);
+		for (String topic : client.getTopics()) {
+			add(topicIndex, topicKey(client.getAppUID(), topic), client);
+		}
+		
+	}
+	
+	
+	/**
+	 * Removes an unregistered client from appIndex and topicIndex.
+	 * Must be called while holding the client's stripe lock.
+	 * @param client client
+	 */
+	private void unindex(ConnectedClient client) {
+		
+		if (client.getAppUID() == null) {
+			return;
+		}
+		remove(appIndex, client.getAppUID(), client);
+		for (String topic : client.getTopics()) {
+			remove(topicIndex, topicKey(client.getAppUID(), topic), client);
+		}
+		
+	}
+	
+	
+	private static void add(ConcurrentMap<String, Set<ConnectedClient>> index, String key,
+			final ConnectedClient client) {
+		
+		index.compute(key, new BiFunction<String, Set<ConnectedClient>, Set<ConnectedClient>>() {
+			@Override
+			public Set<ConnectedClient> apply(String k, Set<ConnectedClient> clients) {
+				if (clients == null) {
+					clients = Collections.newSetFromMap(new ConcurrentHashMap<ConnectedClient, Boolean>());
+				}
+				clients.add(client);
+				return clients;
+			}
+		});
+		
+	}
+	
+	
+	private static void remove(ConcurrentMap<String, Set<ConnectedClient>> index, String key,
+			final ConnectedClient client) {
+		
+		// Removes the set when it becomes empty
+		index.computeIfPresent(key, new BiFunction<String, Set<ConnectedClient>, Set<ConnectedClient>>() {
+			@Override
+			public Set<ConnectedClient> apply(String k, Set<ConnectedClient> clients) {
+				clients.remove(client);
+				return clients.isEmpty() ? null : clients;
+			}
+		});
+		
+	}
+	
+	
+	/**
+	 * Returns the lock of the registry stripe the client UID falls into.
+	 * @param clientUID client's unique ID
+	 * @return stripe lock
+	 */
+	private ReentrantLock stripe(String clientUID) {
+		
+		int h = clientUID.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+		
+	}
+	
+	
+	/**
+	 * Agrees on protocol version requested by a client: the highest version
+	 * supported by both sides.
+	 * @param requested version requested by the client
+	 * @return agreed version, or 0 if the request is invalid
+	 */
+	private static int negotiateProtocol(String requested) {
+		
+		int version;
+		try {
+			version = Integer.parseInt(requested.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+		if (version < 1) {
+			return 0;
+		}
+		return Math.min(version, PROTOCOL_VERSION);
+		
+	}
+	
+	
+	/**
+	 * Agrees on keep-alive in the TIMEOUT step of the handshake.
+	 * "TIMEOUT" gets the fixed keepAliveTimeout. With protocol version 3
+	 * "TIMEOUT &lt;seconds&gt;" asks for adaptive keep-alive, seconds being the
+	 * longest idle period the client accepts. The interval then adapts
+	 * between keepAliveMinTimeout and the agreed longest one, which is sent
+	 * to the client; what was learned during the client's previous
+	 * connection is used again. Asking for less than keepAliveMinTimeout
+	 * gets a fixed keepAliveMinTimeout, anything but a positive number of
+	 * seconds is rejected.
+	 * @param clientUID client's UID
+	 * @param request client's TIMEOUT line
+	 * @param protocolVersion agreed protocol version
+	 * @return keep-alive, or null if the request is invalid
+	 */
+	private KeepAlive negotiateKeepAlive(String clientUID, String request, int protocolVersion) {
+		
+		long fixed = server.getOptions().getKeepAliveTimeout() * 1000L;
+		if ("TIMEOUT".equals(request)) {
+			return new KeepAlive(fixed);
+		}
+		if (protocolVersion < 3 || !request.startsWith("TIMEOUT ")) {
+			return null;
+		}
+		
+		long requested;
+		try {
+			requested = Integer.parseInt(request.substring(8).trim()) * 1000L;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (requested <= 0) {
+			return null;
+		}
+		long min = server.getOptions().getKeepAliveMinTimeout() * 1000L;
+		long max = Math.min(requested, server.getOptions().getKeepAliveMaxTimeout() * 1000L);
+		if (max < min) {
+			// The client wants PINGs more often than allowed, it gets the floor
+			return new KeepAlive(min);
+		}
+		
+		KeepAlive keepAlive = keepAliveHistory.remove(clientUID);
+		if (keepAlive == null) {
+			return new KeepAlive(min, max, fixed);
+		}
+		keepAlive.setBounds(min, max);
+		return keepAlive;
+		
+	}
+	
+	
+	/**
+	 * Records that the client's connection survived its keep-alive interval.
+	 */
+	private static void keepAliveSucceeded(ConnectedClient client) {
+		if (client.getKeepAlive() != null) {
+			client.getKeepAlive().succeeded();
+		}
+	}
+	
+	
+	/**
+	 * Records that the client's connection didn't survive its keep-alive interval.
+	 */
+	private static void keepAliveFailed(ConnectedClient client) {
+		if (client != null && client.getKeepAlive() != null) {
+			client.getKeepAlive().failed();
+		}
+	}
+	
+	
+	/**
+	 * Writes all buffers to a blocking channel with gathering writes.
+	 * @param channel channel in blocking mode
+	 * @param buffers buffers to write
+	 * @throws IOException if writing fails
+	 */
+	private static void write(SocketChannel channel, ByteBuffer[] buffers) throws IOException {
+		
+		int i = 0;
+		while (i < buffers.length) {
+			channel.write(buffers, i, buffers.length - i);
+			while (i < buffers.length && !buffers[i].hasRemaining()) {
+				i++;
+			}
+		}
+		
+	}
+	
+	
+	/**
+	 * Processes client's response to MESSAGE frames. Acknowledged messages
+	 * (with cumulative acknowledgement also all messages sent before) are
+	 * completed and removed from inFlight.
+	 * @param response line received from the client
+	 * @param protocolVersion agreed protocol version
+	 * @param inFlight messages sent but not acknowledged, in the order they were sent
+	 * @return false if the response is not a valid acknowledgement
+	 */
+	private static boolean acknowledge(String response, int protocolVersion,
+			Deque<OutboundMessage> inFlight) {
+		
+		long messageID;
+		boolean cumulative;
+		
+		try {
+			if (protocolVersion == 1) {
+				if (!"OK".equals(response)) {
+					return false;
+				}
+				messageID = inFlight.peek().getMessageID();
+				cumulative = false;
+			} else if (response.startsWith("OK ")) {
+				messageID = Long.parseLong(response.substring(3).trim());
+				cumulative = false;
+			} else if (response.startsWith("ACK ")) {
+				messageID = Long.parseLong(response.substring(4).trim());
+				cumulative = true;
+			} else {
+				return false;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		
+		if (!containsMessage(inFlight, messageID)) {
+			logger.logp(Level.FINE, "ConnectionManager", "acknowledge()", "Unknown message #" + messageID + " acknowledged.");
+			return true;
+		}
+		
+		Iterator<OutboundMessage> i = inFlight.iterator();
+		while (i.hasNext()) {
+			OutboundMessage m = i.next();
+			if (cumulative || m.getMessageID() == messageID) {
+				i.remove();
+				m.complete(true);
+			}
+			if (m.getMessageID() == messageID) {
+				break;
+			}
+		}
+		
+		return true;
+		
+	}
+	
+	
+	private static boolean containsMessage(Deque<OutboundMessage> messages, long messageID) {
+		
+		for (OutboundMessage m : messages) {
+			if (m.getMessageID() == messageID) {
+				return true;
+			}
+		}
+		return false;
+		
+	}
+	
+	
+	/**
+	 * Registers new ConnectedClient after corresponding client is Authenticated.
+	 * This method should only be called by Authenticator thread following
+	 * successful authentication procedure.
+	 * @param client client to be registered
+	 * @return true if the client is registered, false otherwise
+	 */
+	boolean registerClient(ConnectedClient client) {
+		
+		ReentrantLock stripe = stripe(client.getClientUID());
+		stripe.lock();
+		try {
+			/*
+			 * If the client is already registered, don't do anything.
+			 * The new client will not be registered until existing client is
+			 * unregistered.
+			 * This (rare) situation can happen when a client connects to
+			 * the server, while existing connection has not been unregistered (or in
+			 * case of client UID spoofing). The only way for a client to connect is to
+			 * wait until PingTimer discovers failed connection and unregisters existing
+			 * connection associated with the same client UID.
+			 */
+			if (clientMap.putIfAbsent(client.getClientUID(), client) != null) {
+				logger.logp(Level.WARNING, "ConnectionManager", "registerClient()", "Already registered! Skipping.");
+				return false;
+			}
+
+			clientCount.incrementAndGet();
+			index(client);
+
+			push(client);
+			if (server.getCluster() != null) {
+				server.getCluster().clientRegistered(client.getClientUID());
 			}
+		} finally {
+			stripe.unlock();
 		}
+		
+		// The backlog is read from the database by the replayer, not under the lock
+		generalThreadPool.execute(new BacklogReplayer(client));
+		
+		logger.logp(Level.INFO, "ConnectionManager", "registerClient()", "Client #" + client.getClientUID() + " registered.");
+		logger.logp(Level.INFO, "ConnectionManager", "registerClient()", "Total clients: " + getClientCount() + ".");
+		
+		return true;
+		
+	}
 	
-		clientSet.add(c);
+	/**
+	 * Unregisters the client. This method should be invoked only when
+	 * client connection becomes unusable (the client doesn't respond to PING),
+	 * the client's connection is broken or the client doesn't reply as expected
+	 * (protocol mismatch). After this method is called, the client will be
+	 * permanently removed from underlying containers and client will be considered
+	 * offline.
+	 * @param client client to be unregistered.
+	 */
+	private void unregisterClient(ConnectedClient client) {
 		
 		/*
-		 * Underlying SortedSet is changed, so we need to wake up PingTimer
-		 * thread. 
+		 * Try to close related SocketChannel. In non-blocking mode
+		 * the SelectorLoop owning the connection closes it.
 		 */
-		pingTimer.interrupt();
+		if (client.getSession() != null) {
+			client.getSession().close();
+		} else {
+			try {
+				client.getConnection().close();
+			} catch (IOException e) {
+				logger.logp(Level.SEVERE, "ConnectionManager", "unregisterClient()", "Error closing connection!");
+				e.printStackTrace();
+			}
+		}
+		
+		/*
+		 * Let the writer fail messages still waiting for the client.
+		 */
+		if (client.getOutboundSize() > 0) {
+			scheduleWriter(client);
+		}
+		
+		ReentrantLock stripe = stripe(client.getClientUID());
+		stripe.lock();
+		try {
+			/*
+			 * The client could have been unregistered already, or even replaced
+			 * by a newer connection with the same client UID. The newer one
+			 * equals() this one, so the entry is compared by reference.
+			 */
+			if (clientMap.get(client.getClientUID()) != client) {
+				return;
+			}
+			clientMap.remove(client.getClientUID());
+		
+			clientCount.decrementAndGet();
+			pop(client);
+			unindex(client);
+			if (server.getCluster() != null) {
+				server.getCluster().clientUnregistered(client.getClientUID());
+			}
+		} finally {
+			stripe.unlock();
+		}
+		
+		KeepAlive keepAlive = client.getKeepAlive();
+		if (keepAlive != null && keepAlive.isAdaptive()) {
+			// Remember what was learned until the client reconnects
+			keepAliveHistory.put(client.getClientUID(), keepAlive);
+		}
+
+		logger.logp(Level.INFO, "ConnectionManager", "unregisterClient()", "Client #" + client.getClientUID() + " unregistered.");
+		logger.logp(Level.INFO, "ConnectionManager", "unregisterClient()", "Total clients: " + getClientCount() + ".");
+		
+	}
+
+	
+	
+	/**
+	 * Pushes a client into underlying queue which takes care for clients to
+	 * be PINGed in timely fashion. This method should be called by tasks that
+	 * temporary take a client to communicate with it, after being finished with it.
+	 * @param c client to be pushed into the queue
+	 */
+	void push(ConnectedClient c) {
+		
+		ReentrantLock stripe = stripe(c.getClientUID());
+		stripe.lock();
+		try {
+			/*
+			 * Don't schedule the client if it's not already in clientMap.
+			 * clientMap must always contain all registered clients, so if the client
+			 * supplied in not there, we won't accept it in the wheel. A connection
+			 * replaced by a newer one with the same client UID is not there either.
+			 */
+			if (!isCurrent(c)) {
+				logger.logp(Level.WARNING, "ConnectedClient", "push()", "Client #" + c.getClientUID() + " not registered! Skipping.");
+				return;
+			}
+
+			/*
+			 * Makes sure that the client is not scheduled twice.
+			 */
+			TimingWheel.Timeout<ConnectedClient> timeout = c.getKeepAliveTimeout();
+			if (timeout != null && timeout.cancel()) {
+				logger.logp(Level.WARNING, "ConnectedClient", "push()", "Client #" + c.getClientUID() + " was already scheduled. Removed.");
+			}
+
+			/*
+			 * The PING may come up to a quarter of keepAliveTimeout earlier,
+			 * in the least loaded slot of the wheel. This keeps all registered
+			 * clients evenly spaced in time, so that PingTimer handles batches
+			 * of similar size and CPU and memory usage are nice and flat.
+			 */
+			long keepAlive = (c.getKeepAlive() != null) ? c.getKeepAlive().getInterval() :
+					server.getOptions().getKeepAliveTimeout() * 1000L;
+			timeout = keepAliveWheel.schedule(c, keepAlive, keepAlive / 4, TimeUnit.MILLISECONDS);
+			c.setKeepAliveTimeout(timeout);
+			c.setNextPingTime(new Date(timeout.getDeadline()));
+		} finally {
+			stripe.unlock();
+		}
 		
 	}
 	
@@ -710,33 +1915,22 @@ public class ConnectionManager {
 	/**
 	 * Pops a client from underlying queue.
 	 * This method should be called by tasks that temporary take a client
-	 * to communicate with it (e.g. Pinger or Messenger tasks).
-	 * The removal is necessary so that PingerThread can move to another client.
+	 * to communicate with it (e.g. Pinger or ClientWriter tasks).
+	 * The removal is necessary so that the client doesn't get PINGed while
+	 * another task talks to it.
 	 * After being finished the tasks should call push() method to return the
 	 * client to the queue.
 	 * @param c client to be popped from the queue
 	 */
-	private synchronized void pop(ConnectedClient c) {
+	void pop(ConnectedClient c) {
 		
 		/*
 		 * If the client is not in the queue, don't do anything. This can
 		 * happen when another task already holds that client.
-		 * If underlying queue in not changed no need to interrupt PingTimer.
 		 */
-		if (!clientSet.contains(c)) {
-			logger.logp(Level.WARNING, "ConnectionManager", "pop()", "Client #" + c.getClientUID() + " is not in the Set! Skipping.");
-			return;
-		}
-
-		clientSet.remove(c);
-
-		/*
-		 * This will interrupt PingTimer only if this method is called
-		 * by a different thread. Prevents PingerThread to interrupt itself
-		 * by calling this method.
-		 */
-		if (!Thread.currentThread().equals(pingTimer)) {
-			pingTimer.interrupt();
+		TimingWheel.Timeout<ConnectedClient> timeout = c.getKeepAliveTimeout();
+		if (timeout == null || !timeout.cancel()) {
+			logger.logp(Level.WARNING, "ConnectionManager", "pop()", "Client #" + c.getClientUID() + " is not in the queue! Skipping.");
 		}
 		
 	}
@@ -747,12 +1941,27 @@ public class ConnectionManager {
 	 * @param clientUID client's unique ID
 	 * @return true if the client is already registered, false othrewise
 	 */
-	public synchronized boolean isRegistered(String clientUID) {
+	public boolean isRegistered(String clientUID) {
+		
 		if (clientMap.containsKey(clientUID)) {
 			return true;
 		} else {
 			return false;
 		}
+		
+	}
+	
+	
+	/**
+	 * Checks whether the client is registered, i.e. it has not been
+	 * unregistered or replaced by a newer connection with the same client UID.
+	 * @param client client
+	 * @return true if the client is registered, false otherwise
+	 */
+	private boolean isCurrent(ConnectedClient client) {
+		
+		return clientMap.get(client.getClientUID()) == client;
+		
 	}
 	
 	
@@ -760,8 +1969,31 @@ public class ConnectionManager {
 	 * Gets a list of all registered (i.e. online) clients.
 	 * @return set of client unique IDs
 	 */
-	public synchronized Set<String> getRegisteredClients() {
+	public Set<String> getRegisteredClients() {
+		
 		return new HashSet<String>(clientMap.keySet());
+		
+	}
+	
+	
+	/**
+	 * Gets a list of registered clients of an application.
+	 * @param appUID application's unique ID
+	 * @param topic if not null, only clients subscribed to this topic
+	 * @return set of client unique IDs
+	 */
+	public Set<String> getRegisteredClients(String appUID, String topic) {
+		
+		Set<ConnectedClient> clients = (topic == null ?
+				appIndex.get(appUID) : topicIndex.get(topicKey(appUID, topic)));
+		Set<String> ret = new HashSet<String>();
+		if (clients != null) {
+			for (ConnectedClient c : clients) {
+				ret.add(c.getClientUID());
+			}
+		}
+		return ret;
+		
 	}
 	
 	
@@ -772,13 +2004,28 @@ public class ConnectionManager {
 	 * the recipients belong to (because Message object doesn't contain
 	 * that information). The job of the user of this method is to check the
 	 * validity of data contained within Message object.
+	 * Messages of higher priority (and sooner expiring ones within a priority
+	 * class) are processed first; expired messages are dropped.
 	 * @param message a Message object to process
 	 */
 	public void processMessage(Message message) {
 		if (message == null) {
 			return;
 		}
-		generalThreadPool.execute(new MessageProcessor(message));
+		if (message.isExpired(System.currentTimeMillis())) {
+			messagesExpired.increment();
+			return;
+		}
+		pendingMessages.add(new MessageProcessor(message));
+		generalThreadPool.execute(new Runnable() {
+			@Override
+			public void run() {
+				MessageProcessor processor = pendingMessages.poll();
+				if (processor != null) {
+					processor.run();
+				}
+			}
+		});
 	}
 
 	
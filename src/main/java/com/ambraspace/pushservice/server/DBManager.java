@@ -12,8 +12,37 @@ public interface DBManager {
 	
 	public void updateMessageStatus(Message message);
 	
-	public List<DelayedMessage> getDelayedMessages(String clientUID, int limit);
+	/**
+	 * Stores what the database doesn't know yet about a message submitted
+	 * through the service port. Applications write messages to a MySQL
+	 * database themselves, so only its expiration time (from "ttl") is
+	 * written there; InMemoryDBManager stores the whole message.
+	 * @param message submitted message
+	 */
+	public void storeMessage(Message message);
+	
+	/**
+	 * Returns one page of messages not delivered to the client, oldest
+	 * first. Expired messages are left out. Only the last limit messages addressed to the client are
+	 * considered (all of them if limit is less than 1). Pages are
+	 * requested with the ID of the last message of the previous page,
+	 * so the backlog never has to be held in memory at once.
+	 * @param clientUID client's UID
+	 * @param limit number of the client's last messages to consider
+	 * @param afterMessageID only messages with greater IDs are returned
+	 * (Long.MIN_VALUE for the first page)
+	 * @param pageSize maximum number of returned messages
+	 * @return undelivered messages, or null on error
+	 */
+	public List<DelayedMessage> getDelayedMessages(String clientUID, int limit, long afterMessageID, int pageSize);
 	
 	public void updateDelayedMessageStatus(List<DelayedMessage> messages);
+	
+	/**
+	 * Marks messages as delivered to clients.
+	 * @param reports delivery results
+	 * @return true if written, false on error (writing them again is safe)
+	 */
+	public boolean updateDeliveryStatus(List<DeliveryReport> reports);
 
 }
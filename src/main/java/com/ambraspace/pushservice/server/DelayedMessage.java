@@ -9,15 +9,25 @@ public class DelayedMessage {
 	private String clientUID;
 	private String text;
 	private Date dateSent;
+	// null if the message never expires
+	private Date expires;
 	boolean sent;
 	
 	
 	public DelayedMessage(long messageID, String clientUID, String text, Date dateSent, boolean sent) {
 
+		this(messageID, clientUID, text, dateSent, null, sent);
+		
+	}
+	
+	
+	public DelayedMessage(long messageID, String clientUID, String text, Date dateSent, Date expires, boolean sent) {
+
 		this.messageID = messageID;
 		this.clientUID = clientUID;
 		this.text = text;
 		this.dateSent = dateSent;
+		this.expires = expires;
 		this.sent = sent;
 		
 	}
@@ -43,6 +53,11 @@ public class DelayedMessage {
 	}
 
 	
+	public Date getExpires() {
+		return expires;
+	}
+
+	
 	public boolean isSent() {
 		return sent;
 	}
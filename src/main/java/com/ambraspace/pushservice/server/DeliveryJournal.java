@@ -0,0 +1,267 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * DeliveryJournal is a bounded in-memory journal of delivery results.
+ * Tasks delivering messages only record results here, and a background
+ * flusher writes them to the database in batches, grouping results of
+ * many messages into one DBManager call. A batch is written when it
+ * reaches batchSize or when its oldest result is flushInterval old.
+ * Only successful deliveries are journaled, because undelivered is what
+ * the database already holds. A batch the database fails to write is
+ * tried again (up to WRITE_ATTEMPTS times), since marking messages as
+ * delivered twice does no harm.
+ */
+public class DeliveryJournal {
+
+	private static Logger logger = Logger.getLogger("DeliveryJournal");
+
+	// Times a batch is written before its results are given up
+	private static final int WRITE_ATTEMPTS = 3;
+	// Delay before a failed batch is written again (milliseconds)
+	private static final long RETRY_DELAY = 500;
+
+
+	private class Flusher extends Thread {
+
+		public Flusher() {
+			setName("DeliveryJournal.Flusher");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+
+			while (!closed || !queue.isEmpty()) {
+
+				List<DeliveryReport> batch = new ArrayList<DeliveryReport>();
+
+				try {
+					DeliveryReport first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					oldestInFlight = first.getTime();
+					long deadline = first.getTime() + flushInterval;
+					while (batch.size() < batchSize) {
+						queue.drainTo(batch, batchSize - batch.size());
+						long remaining = deadline - System.currentTimeMillis();
+						if (batch.size() >= batchSize || remaining <= 0 || closed) {
+							break;
+						}
+						DeliveryReport next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+						if (next == null) {
+							break;
+						}
+						batch.add(next);
+					}
+				} catch (InterruptedException e) {
+					// Nobody should interrupt the flusher, close() only sets
+					// the flag; write what we have and carry on
+					queue.drainTo(batch);
+				}
+
+				write(batch);
+
+			}
+
+		}
+
+	}
+
+
+	private final DBManager dbManager;
+	private final BlockingQueue<DeliveryReport> queue;
+	private final int batchSize;
+	private final long flushInterval; // milliseconds
+	private final Flusher flusher;
+
+	private volatile boolean closed = false;
+	// Time of the oldest result being written (0 if none)
+	private volatile long oldestInFlight = 0;
+
+	private final AtomicLong flushedCount = new AtomicLong();
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+
+	/**
+	 * Creates and starts a new DeliveryJournal.
+	 * @param dbManager database the results are written to
+	 * @param capacity maximum number of results waiting to be written
+	 * @param batchSize maximum number of results written at once
+	 * @param flushInterval maximum time a result waits to be written
+	 * @param unit time unit of flushInterval
+	 */
+	public DeliveryJournal(DBManager dbManager, int capacity, int batchSize,
+			long flushInterval, TimeUnit unit) {
+
+		this.dbManager = dbManager;
+		this.queue = new ArrayBlockingQueue<DeliveryReport>(capacity);
+		this.batchSize = batchSize;
+		this.flushInterval = unit.toMillis(flushInterval);
+		this.flusher = new Flusher();
+		this.flusher.start();
+
+	}
+
+
+	/**
+	 * Records the result of a delivery. If the journal is full, this method
+	 * waits until the flusher makes room.
+	 * @param messageID message ID
+	 * @param clientUID client's unique ID
+	 * @param delivered whether the client received the message
+	 */
+	public void record(long messageID, String clientUID, boolean delivered) {
+
+		if (!delivered) {
+			return;
+		}
+
+		DeliveryReport report = new DeliveryReport(messageID, clientUID, delivered);
+
+		if (closed) {
+			write(Collections.singletonList(report));
+			return;
+		}
+
+		try {
+			queue.put(report);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.logp(Level.WARNING, "DeliveryJournal", "record()", "Interrupted! Writing synchronously.");
+			write(Collections.singletonList(report));
+		}
+
+	}
+
+
+	/**
+	 * Returns number of results not yet written to the database.
+	 * @return number of pending results
+	 */
+	public int getPendingCount() {
+		return queue.size();
+	}
+
+
+	/**
+	 * Returns how far the database is behind, i.e. age of the oldest
+	 * result not yet written.
+	 * @param unit time unit of the result
+	 * @return lag, or 0 if everything is written
+	 */
+	public long getLag(TimeUnit unit) {
+		long oldest = oldestInFlight;
+		if (oldest == 0) {
+			DeliveryReport head = queue.peek();
+			if (head == null) {
+				return 0;
+			}
+			oldest = head.getTime();
+		}
+		return unit.convert(Math.max(0, System.currentTimeMillis() - oldest), TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Returns number of results written to the database so far.
+	 * @return number of written results
+	 */
+	public long getFlushedCount() {
+		return flushedCount.get();
+	}
+
+
+	/**
+	 * Returns number of batches written to the database so far.
+	 * @return number of written batches
+	 */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+
+	/**
+	 * Returns number of results given up because the database failed
+	 * to write them.
+	 * @return number of lost results
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+
+	/**
+	 * Writes all pending results and stops the flusher.
+	 * Results recorded afterwards are written synchronously.
+	 * The flusher is not interrupted, so a batch being written (e.g. waiting
+	 * for a database connection) isn't lost; it sees the flag after at
+	 * most flushInterval and drains the queue.
+	 * @param timeout maximum time to wait for pending results to be written
+	 * @param unit time unit of timeout
+	 */
+	public void close(long timeout, TimeUnit unit) {
+
+		closed = true;
+		try {
+			flusher.join(unit.toMillis(timeout));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (flusher.isAlive() || !queue.isEmpty()) {
+			logger.logp(Level.SEVERE, "DeliveryJournal", "close()", queue.size() + " results not written!");
+		}
+
+	}
+
+
+	private void write(List<DeliveryReport> batch) {
+
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		try {
+			for (int attempt = 1; attempt <= WRITE_ATTEMPTS; attempt++) {
+				if (attempt > 1) {
+					try {
+						Thread.sleep(RETRY_DELAY);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				try {
+					if (dbManager.updateDeliveryStatus(batch)) {
+						flushedCount.addAndGet(batch.size());
+						batchCount.incrementAndGet();
+						logger.logp(Level.FINE, "DeliveryJournal", "write()", batch.size() + " results written.");
+						return;
+					}
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				logger.logp(Level.WARNING, "DeliveryJournal", "write()", "Error writing " + batch.size() + " results (attempt " + attempt + ")!");
+			}
+			failedCount.addAndGet(batch.size());
+			logger.logp(Level.SEVERE, "DeliveryJournal", "write()", batch.size() + " results not written!");
+		} finally {
+			oldestInFlight = 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,44 @@
+package com.ambraspace.pushservice.server;
+
+/**
+ * Result of delivering one message to one client.
+ */
+public class DeliveryReport {
+
+	private final long messageID;
+	private final String clientUID;
+	private final boolean delivered;
+	// When the result was recorded (milliseconds since the epoch)
+	private final long time;
+
+
+	public DeliveryReport(long messageID, String clientUID, boolean delivered) {
+
+		this.messageID = messageID;
+		this.clientUID = clientUID;
+		this.delivered = delivered;
+		this.time = System.currentTimeMillis();
+
+	}
+
+
+	public long getMessageID() {
+		return messageID;
+	}
+
+
+	public String getClientUID() {
+		return clientUID;
+	}
+
+
+	public boolean isDelivered() {
+		return delivered;
+	}
+
+
+	public long getTime() {
+		return time;
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Consistent-hash ring of cluster nodes. Every key (client UID) belongs
+ * to the first node clockwise from the key's position on the ring.
+ * Each node is placed on the ring VIRTUAL_NODES times, so keys are spread
+ * evenly, and adding or removing a node moves only the keys of that node.
+ * Positions depend only on node names and keys, so all nodes of a
+ * cluster configured with the same node list agree on the owners.
+ */
+class HashRing {
+
+	// Positions of every node on the ring
+	static final int VIRTUAL_NODES = 128;
+
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+
+	public HashRing(Collection<String> nodes) {
+
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("No nodes");
+		}
+		for (String node : nodes) {
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				ring.put(hash(node + "#" + i), node);
+			}
+		}
+
+	}
+
+
+	/**
+	 * Returns the node a key belongs to.
+	 * @param key key (e.g. client UID)
+	 * @return node's name
+	 */
+	public String getNode(String key) {
+
+		Map.Entry<Long, String> e = ring.ceilingEntry(hash(key));
+		if (e == null) {
+			e = ring.firstEntry();
+		}
+		return e.getValue();
+
+	}
+
+
+	/**
+	 * 64-bit FNV-1a followed by the MurmurHash3 finalizer, which spreads
+	 * similar keys (e.g. "node#1", "node#2") all over the ring.
+	 */
+	static long hash(String key) {
+
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93fe53e1a87L;
+		h ^= h >>> 33;
+		return h;
+
+	}
+
+}
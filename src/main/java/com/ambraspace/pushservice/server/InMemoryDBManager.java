@@ -0,0 +1,737 @@
+package com.ambraspace.pushservice.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.json.JSONWriter;
+
+
+/**
+ * DBManager keeping applications, clients, messages and per-client
+ * delivery state in memory, for benchmarks, tests and small nodes without
+ * a database. Every client has an index of its pending (not delivered)
+ * messages, so backlogs are read without scanning. A message is forgotten
+ * as soon as all its recipients have received it, or by a periodic purge
+ * once it expires or gets older than the retention time (so messages
+ * waiting for clients which never come back don't pile up).
+ * Optionally the whole state is written to a snapshot file periodically
+ * (and on close()), and read back on start. Snapshots are taken while the
+ * server runs, so a snapshot may miss changes made while it was written.
+ * Messages submitted through the service port must be stored with
+ * storeMessage() (Server does it), since there is no application writing
+ * them to a database.
+ * With autoRegister it is also the database stand-in of the benchmarks
+ * and the load generator.
+ */
+public class InMemoryDBManager implements DBManager {
+
+	private static Logger logger = Logger.getLogger("InMemoryDBManager");
+
+	public static final int DEFAULT_SNAPSHOT_INTERVAL = 60; // seconds
+	public static final int DEFAULT_MESSAGE_RETENTION = 7 * 24 * 3600; // seconds
+
+	private static final int SNAPSHOT_VERSION = 1;
+
+
+	private static class Application {
+
+		private final String uid;
+		private volatile boolean disabled;
+		private final Set<Client> clients =
+				Collections.newSetFromMap(new ConcurrentHashMap<Client, Boolean>());
+
+		public Application(String uid) {
+			this.uid = uid;
+		}
+
+	}
+
+
+	private static class Client {
+
+		private final String uid;
+		private final Application application;
+		private volatile boolean disabled;
+		// Messages addressed to the client: message ID -> delivered
+		private final ConcurrentSkipListMap<Long, Boolean> messages =
+				new ConcurrentSkipListMap<Long, Boolean>();
+		// IDs of messages not delivered yet
+		private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<Long>();
+
+		public Client(String uid, Application application) {
+			this.uid = uid;
+			this.application = application;
+		}
+
+	}
+
+
+	private static class StoredMessage {
+
+		private final long id;
+		private final String text;
+		private final Date date;
+		// null if the message never expires
+		private final Date expires;
+		private final List<Client> recipients;
+		// Number of recipients which haven't received the message yet
+		private final AtomicInteger pending;
+
+		public StoredMessage(long id, String text, Date date, Date expires, List<Client> recipients) {
+			this.id = id;
+			this.text = text;
+			this.date = date;
+			this.expires = expires;
+			this.recipients = recipients;
+			this.pending = new AtomicInteger(recipients.size());
+		}
+
+	}
+
+
+	private final boolean autoRegister;
+	private final ConcurrentMap<String, Application> applications =
+			new ConcurrentHashMap<String, Application>();
+	private final ConcurrentMap<String, Client> clients =
+			new ConcurrentHashMap<String, Client>();
+	private final ConcurrentMap<Long, StoredMessage> messages =
+			new ConcurrentHashMap<Long, StoredMessage>();
+
+	private final File snapshotFile;
+	private final long retention; // milliseconds, 0 for none
+	private final ScheduledExecutorService timer;
+
+	// Successful deliveries reported through updateDeliveryStatus()
+	private final LongAdder reportedDeliveries = new LongAdder();
+
+
+	/**
+	 * Creates an empty in-memory database without snapshots. Messages are
+	 * kept until delivered, unless purge() is called.
+	 * @param autoRegister if true, unknown applications and clients are
+	 * created on first use instead of being rejected
+	 */
+	public InMemoryDBManager(boolean autoRegister) {
+
+		this.autoRegister = autoRegister;
+		this.snapshotFile = null;
+		this.retention = 0;
+		this.timer = null;
+
+	}
+
+
+	/**
+	 * Creates an in-memory database purging old messages periodically,
+	 * optionally backed by a snapshot file. If the file exists, the
+	 * database is loaded from it.
+	 * @param autoRegister if true, unknown applications and clients are
+	 * created on first use instead of being rejected
+	 * @param snapshotFile snapshot file, null for none
+	 * @param snapshotInterval time between snapshots and purges, 0 for
+	 * snapshots on close() only (purges then run every DEFAULT_SNAPSHOT_INTERVAL)
+	 * @param retention how long undelivered messages are kept, 0 until delivered or expired
+	 * @param unit time unit of snapshotInterval and retention
+	 * @throws IOException if the snapshot file cannot be read
+	 */
+	public InMemoryDBManager(boolean autoRegister, File snapshotFile,
+			long snapshotInterval, long retention, TimeUnit unit) throws IOException {
+
+		this.autoRegister = autoRegister;
+		this.snapshotFile = snapshotFile;
+		this.retention = unit.toMillis(retention);
+
+		if (snapshotFile != null && snapshotFile.exists()) {
+			load();
+		}
+
+		final boolean snapshots = snapshotInterval > 0;
+		long period = snapshots ? unit.toMillis(snapshotInterval) : DEFAULT_SNAPSHOT_INTERVAL * 1000L;
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				t.setName("InMemoryDBManager.Timer");
+				return t;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				purge();
+				if (!snapshots) {
+					return;
+				}
+				try {
+					snapshot();
+				} catch (IOException e) {
+					logger.logp(Level.SEVERE, "InMemoryDBManager", "snapshot()", "Cannot write snapshot: " + e.getMessage());
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+
+	}
+
+
+	@Override
+	public String getNewClientUID(String appUID) {
+
+		Application app = getApplication(appUID);
+		if (app == null || app.disabled) {
+			return null;
+		}
+		String clientUID = UUID.randomUUID().toString().replace("-", "").toUpperCase();
+		addClient(app, clientUID);
+		return clientUID;
+
+	}
+
+
+	@Override
+	public boolean isClientAuthorized(String appUID, String clientUID) {
+
+		if (appUID == null || clientUID == null) {
+			return false;
+		}
+		Client c = clients.get(clientUID);
+		if (c == null && autoRegister) {
+			Application app = getApplication(appUID);
+			if (app != null) {
+				c = addClient(app, clientUID);
+			}
+		}
+		return c != null && !c.disabled && !c.application.disabled &&
+				c.application.uid.equals(appUID);
+
+	}
+
+
+	@Override
+	public Message getMessage(long messageID) {
+
+		StoredMessage m = messages.get(messageID);
+		if (m == null) {
+			return null;
+		}
+		Message ret = new Message();
+		ret.setId(m.id);
+		ret.setText(m.text);
+		ret.setDateSent(m.date);
+		ret.setExpires(m.expires);
+		for (Client c : m.recipients) {
+			Boolean delivered = c.messages.get(messageID);
+			if (!c.disabled && delivered != null) {
+				ret.getRecipients().put(c.uid, delivered);
+			}
+		}
+		return ret;
+
+	}
+
+
+	@Override
+	public void updateMessageStatus(Message message) {
+
+		for (Map.Entry<String, Boolean> e : message.getRecipients().entrySet()) {
+			if (Boolean.TRUE.equals(e.getValue())) {
+				markDelivered(e.getKey(), message.getId());
+			}
+		}
+
+	}
+
+
+	@Override
+	public void storeMessage(Message message) {
+		addMessage(message);
+	}
+
+
+	/**
+	 * Returns a page of undelivered messages among the last limit
+	 * messages addressed to the client, oldest first.
+	 */
+	@Override
+	public List<DelayedMessage> getDelayedMessages(String clientUID, int limit, long afterMessageID, int pageSize) {
+
+		List<DelayedMessage> ret = new ArrayList<DelayedMessage>();
+		Client c = clients.get(clientUID);
+		if (c == null || c.disabled) {
+			return ret;
+		}
+
+		long from = afterMessageID;
+		if (limit > 0) {
+			// Oldest of the last limit messages
+			int n = 0;
+			for (Long id : c.messages.descendingKeySet()) {
+				if (++n == limit) {
+					from = Math.max(from, id - 1);
+					break;
+				}
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		Iterator<Long> ids = c.pending.tailSet(from, false).iterator();
+		while (ret.size() < pageSize && ids.hasNext()) {
+			StoredMessage m = messages.get(ids.next());
+			if (m != null && !isExpired(m, now)) {
+				ret.add(new DelayedMessage(m.id, clientUID, m.text, m.date, m.expires, false));
+			}
+		}
+		return ret;
+
+	}
+
+
+	@Override
+	public void updateDelayedMessageStatus(List<DelayedMessage> messages) {
+
+		if (messages == null) {
+			return;
+		}
+		for (DelayedMessage d : messages) {
+			if (d.isSent()) {
+				markDelivered(d.getClientUID(), d.getMessageID());
+			}
+		}
+
+	}
+
+
+	@Override
+	public boolean updateDeliveryStatus(List<DeliveryReport> reports) {
+
+		if (reports == null) {
+			return true;
+		}
+		for (DeliveryReport r : reports) {
+			if (r.isDelivered()) {
+				reportedDeliveries.increment();
+				markDelivered(r.getClientUID(), r.getMessageID());
+			}
+		}
+		return true;
+
+	}
+
+
+	/**
+	 * Creates an application (enabled).
+	 * @param appUID application's unique ID
+	 * @return false if the application already exists
+	 */
+	public boolean addApplication(String appUID) {
+		return applications.putIfAbsent(appUID, new Application(appUID)) == null;
+	}
+
+
+	/**
+	 * Disables or enables an application. Clients of a disabled application
+	 * are not authorized.
+	 * @param appUID application's unique ID
+	 * @param disabled true to disable, false to enable
+	 * @return false if there is no such application
+	 */
+	public boolean setApplicationDisabled(String appUID, boolean disabled) {
+		Application app = applications.get(appUID);
+		if (app == null) {
+			return false;
+		}
+		app.disabled = disabled;
+		return true;
+	}
+
+
+	/**
+	 * Creates a client (enabled) of an existing application.
+	 * @param appUID application's unique ID
+	 * @param clientUID client's unique ID
+	 * @return false if there is no such application or the client already exists
+	 */
+	public boolean addClient(String appUID, String clientUID) {
+		Application app = applications.get(appUID);
+		if (app == null || clients.containsKey(clientUID)) {
+			return false;
+		}
+		return addClient(app, clientUID).application == app;
+	}
+
+
+	/**
+	 * Disables or enables a client. A disabled client is not authorized
+	 * and gets no delayed messages.
+	 * @param clientUID client's unique ID
+	 * @param disabled true to disable, false to enable
+	 * @return false if there is no such client
+	 */
+	public boolean setClientDisabled(String clientUID, boolean disabled) {
+		Client c = clients.get(clientUID);
+		if (c == null) {
+			return false;
+		}
+		c.disabled = disabled;
+		return true;
+	}
+
+
+	/**
+	 * Stores a message and marks it pending for all its recipients.
+	 * A broadcast to a whole application is addressed to all its
+	 * current clients. Broadcasts to a topic are not stored, since
+	 * subscriptions only live as long as connections. Unknown recipients
+	 * are skipped.
+	 * @param message message
+	 * @return false if a message with the same ID is already stored
+	 * or the message has no known recipients
+	 */
+	public boolean addMessage(Message message) {
+
+		List<Client> recipients = new ArrayList<Client>();
+		if (message.isBroadcast()) {
+			Application app = applications.get(message.getApplicationUID());
+			if (app == null || message.getTopic() != null) {
+				return false;
+			}
+			recipients.addAll(app.clients);
+		} else {
+			for (String uid : message.getRecipients().keySet()) {
+				Client c = clients.get(uid);
+				if (c != null) {
+					recipients.add(c);
+				}
+			}
+		}
+		if (recipients.isEmpty()) {
+			return false;
+		}
+
+		StoredMessage m = new StoredMessage(message.getId(), message.getText(),
+				message.getDateSent(), message.getExpires(), recipients);
+		if (messages.putIfAbsent(m.id, m) != null) {
+			return false;
+		}
+		for (Client c : recipients) {
+			c.messages.put(m.id, false);
+			c.pending.add(m.id);
+		}
+		return true;
+
+	}
+
+
+	public int getApplicationCount() {
+		return applications.size();
+	}
+
+
+	public int getClientCount() {
+		return clients.size();
+	}
+
+
+	public int getMessageCount() {
+		return messages.size();
+	}
+
+
+	/**
+	 * Returns number of successful deliveries reported so far (including
+	 * deliveries of messages which were never stored).
+	 * @return number of reported deliveries
+	 */
+	public long getReportedDeliveryCount() {
+		return reportedDeliveries.sum();
+	}
+
+
+	/**
+	 * Returns number of messages the client hasn't received yet.
+	 * @param clientUID client's unique ID
+	 * @return number of pending messages
+	 */
+	public int getPendingCount(String clientUID) {
+		Client c = clients.get(clientUID);
+		return c == null ? 0 : c.pending.size();
+	}
+
+
+	/**
+	 * Forgets messages which will never be delivered: expired ones and
+	 * ones older than the retention time.
+	 * @return number of forgotten messages
+	 */
+	public int purge() {
+
+		long now = System.currentTimeMillis();
+		int purged = 0;
+		for (StoredMessage m : messages.values()) {
+			boolean old = retention > 0 && m.date != null && now - m.date.getTime() > retention;
+			if ((old || isExpired(m, now)) && forget(m)) {
+				purged++;
+			}
+		}
+		if (purged > 0) {
+			logger.logp(Level.INFO, "InMemoryDBManager", "purge()", purged + " undelivered messages purged.");
+		}
+		return purged;
+
+	}
+
+
+	/**
+	 * Writes the whole database to the snapshot file. The snapshot is
+	 * written to a temporary file first, so a crash never leaves a
+	 * half-written snapshot behind.
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public synchronized void snapshot() throws IOException {
+
+		if (snapshotFile == null) {
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+
+		try (Writer w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+			JSONWriter json = new JSONWriter(w);
+			json.object().key("version").value(SNAPSHOT_VERSION);
+			json.key("applications").array();
+			for (Application app : applications.values()) {
+				json.object()
+						.key("uid").value(app.uid)
+						.key("disabled").value(app.disabled)
+						.endObject();
+			}
+			json.endArray();
+			json.key("clients").array();
+			for (Client c : clients.values()) {
+				json.object()
+						.key("uid").value(c.uid)
+						.key("application").value(c.application.uid)
+						.key("disabled").value(c.disabled)
+						.endObject();
+			}
+			json.endArray();
+			json.key("messages").array();
+			long now = System.currentTimeMillis();
+			for (StoredMessage m : messages.values()) {
+				if (isExpired(m, now)) {
+					// Never delivered again, so not worth keeping
+					continue;
+				}
+				json.object()
+						.key("id").value(m.id)
+						.key("text").value(m.text)
+						.key("date").value(m.date == null ? 0 : m.date.getTime());
+				if (m.expires != null) {
+					json.key("expires").value(m.expires.getTime());
+				}
+				json.key("pending").array();
+				for (Client c : m.recipients) {
+					if (Boolean.FALSE.equals(c.messages.get(m.id))) {
+						json.value(c.uid);
+					}
+				}
+				json.endArray();
+				json.endObject();
+			}
+			json.endArray();
+			json.endObject();
+		} catch (JSONException e) {
+			throw new IOException(e);
+		}
+
+		try {
+			Files.move(tmp.toPath(), snapshotFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		logger.logp(Level.FINE, "InMemoryDBManager", "snapshot()", "Snapshot written (" + applications.size() + " applications, " + clients.size() + " clients, " + messages.size() + " messages) in " + (System.currentTimeMillis() - start) + " ms.");
+
+	}
+
+
+	/**
+	 * Stops periodic snapshots and writes the last one.
+	 */
+	public void close() {
+
+		if (timer != null) {
+			timer.shutdown();
+		}
+		try {
+			snapshot();
+		} catch (IOException e) {
+			logger.logp(Level.SEVERE, "InMemoryDBManager", "close()", "Cannot write snapshot: " + e.getMessage());
+		}
+
+	}
+
+
+	/**
+	 * Reads the database from the snapshot file. Only messages still
+	 * pending for someone are kept in a snapshot, and only pending
+	 * deliveries are restored.
+	 */
+	private void load() throws IOException {
+
+		try (Reader r = Files.newBufferedReader(snapshotFile.toPath(), StandardCharsets.UTF_8)) {
+
+			JSONObject json = new JSONObject(new JSONTokener(r));
+			if (json.getInt("version") != SNAPSHOT_VERSION) {
+				throw new IOException("Unsupported snapshot version " + json.getInt("version") + ".");
+			}
+
+			JSONArray apps = json.getJSONArray("applications");
+			for (int i = 0; i < apps.length(); i++) {
+				JSONObject a = apps.getJSONObject(i);
+				Application app = new Application(a.getString("uid"));
+				app.disabled = a.getBoolean("disabled");
+				applications.put(app.uid, app);
+			}
+
+			JSONArray cls = json.getJSONArray("clients");
+			for (int i = 0; i < cls.length(); i++) {
+				JSONObject o = cls.getJSONObject(i);
+				Application app = applications.get(o.getString("application"));
+				if (app == null) {
+					continue;
+				}
+				Client c = addClient(app, o.getString("uid"));
+				c.disabled = o.getBoolean("disabled");
+			}
+
+			JSONArray msgs = json.getJSONArray("messages");
+			for (int i = 0; i < msgs.length(); i++) {
+				JSONObject o = msgs.getJSONObject(i);
+				JSONArray pending = o.getJSONArray("pending");
+				List<Client> recipients = new ArrayList<Client>();
+				for (int j = 0; j < pending.length(); j++) {
+					Client c = clients.get(pending.getString(j));
+					if (c != null) {
+						recipients.add(c);
+					}
+				}
+				if (recipients.isEmpty()) {
+					continue;
+				}
+				StoredMessage m = new StoredMessage(o.getLong("id"), o.getString("text"),
+						new Date(o.getLong("date")),
+						o.has("expires") ? new Date(o.getLong("expires")) : null,
+						recipients);
+				messages.put(m.id, m);
+				for (Client c : recipients) {
+					c.messages.put(m.id, false);
+					c.pending.add(m.id);
+				}
+			}
+
+		} catch (JSONException e) {
+			throw new IOException("Invalid snapshot " + snapshotFile + ".", e);
+		}
+
+		logger.logp(Level.INFO, "InMemoryDBManager", "load()", "Snapshot loaded (" + applications.size() + " applications, " + clients.size() + " clients, " + messages.size() + " messages).");
+
+	}
+
+
+	private static boolean isExpired(StoredMessage m, long now) {
+		return m.expires != null && m.expires.getTime() <= now;
+	}
+
+
+	private Application getApplication(String appUID) {
+		Application app = applications.get(appUID);
+		if (app == null && autoRegister) {
+			addApplication(appUID);
+			app = applications.get(appUID);
+		}
+		return app;
+	}
+
+
+	/**
+	 * Creates a client, or returns the existing one with the same UID.
+	 */
+	private Client addClient(Application app, String clientUID) {
+		Client c = new Client(clientUID, app);
+		Client existing = clients.putIfAbsent(clientUID, c);
+		if (existing != null) {
+			return existing;
+		}
+		app.clients.add(c);
+		return c;
+	}
+
+
+	private void markDelivered(String clientUID, long messageID) {
+
+		Client c = clients.get(clientUID);
+		if (c == null || !c.messages.replace(messageID, false, true)) {
+			return;
+		}
+		c.pending.remove(messageID);
+
+		StoredMessage m = messages.get(messageID);
+		if (m != null && m.pending.decrementAndGet() == 0) {
+			// Everybody has it, forget it
+			forget(m);
+		}
+
+	}
+
+
+	/**
+	 * Removes a message and its delivery state of all recipients.
+	 * @return false if the message has already been removed
+	 */
+	private boolean forget(StoredMessage m) {
+
+		if (!messages.remove(m.id, m)) {
+			return false;
+		}
+		for (Client r : m.recipients) {
+			r.pending.remove(m.id);
+			r.messages.remove(m.id);
+		}
+		return true;
+
+	}
+
+}
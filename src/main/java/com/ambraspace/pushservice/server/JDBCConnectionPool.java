@@ -0,0 +1,272 @@
+package com.ambraspace.pushservice.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Bounded pool of JDBC connections.
+ * At most size connections are borrowed at the same time; other callers
+ * wait up to borrowTimeout. Idle connections are validated on borrow, but
+ * only if they have been idle longer than validationIdleTime.
+ */
+public class JDBCConnectionPool {
+
+	private static Logger logger = Logger.getLogger("JDBCConnectionPool");
+
+	// Seconds to wait for Connection.isValid()
+	private static final int VALIDATION_TIMEOUT = 5;
+
+
+	/**
+	 * Connection borrowed from the pool. Closing it returns the connection
+	 * to the pool, so it can be used with try-with-resources.
+	 */
+	public class PooledConnection implements AutoCloseable {
+
+		private final Connection connection;
+		private long lastUsed;
+		private boolean borrowed;
+
+		private PooledConnection(Connection connection) {
+			this.connection = connection;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		public Connection getConnection() {
+			return connection;
+		}
+
+		@Override
+		public void close() {
+			release(this);
+		}
+
+	}
+
+
+	private final String url;
+	private final int size;
+	private final long validationIdleTime; // milliseconds
+	private final long borrowTimeout; // milliseconds
+
+	private final Semaphore permits;
+	// Idle connections, most recently used first
+	private final ConcurrentLinkedDeque<PooledConnection> idle =
+			new ConcurrentLinkedDeque<PooledConnection>();
+
+	private final AtomicLong borrowCount = new AtomicLong();
+	private final AtomicLong borrowTimeoutCount = new AtomicLong();
+	private final AtomicLong totalWaitTime = new AtomicLong(); // nanoseconds
+	private final AtomicLong maxWaitTime = new AtomicLong(); // nanoseconds
+
+
+	/**
+	 * Creates a new pool. Connections are opened on demand.
+	 * @param url JDBC URL
+	 * @param size maximum number of connections
+	 * @param validationIdleTime connections idle longer than this are validated on borrow
+	 * @param borrowTimeout maximum time to wait for a connection
+	 * @param unit time unit of validationIdleTime and borrowTimeout
+	 */
+	public JDBCConnectionPool(String url, int size, long validationIdleTime,
+			long borrowTimeout, TimeUnit unit) {
+
+		if (size <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.url = url;
+		this.size = size;
+		this.validationIdleTime = unit.toMillis(validationIdleTime);
+		this.borrowTimeout = unit.toMillis(borrowTimeout);
+		this.permits = new Semaphore(size, true);
+
+	}
+
+
+	/**
+	 * Borrows a connection from the pool, opening a new one if there are
+	 * no idle connections.
+	 * @return borrowed connection
+	 * @throws SQLException if no connection is available within borrowTimeout
+	 * or a new connection cannot be opened
+	 */
+	public PooledConnection borrow() throws SQLException {
+
+		long start = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLTransientConnectionException("Interrupted while waiting for connection!");
+		}
+		long wait = System.nanoTime() - start;
+		totalWaitTime.addAndGet(wait);
+		long max = maxWaitTime.get();
+		while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+			max = maxWaitTime.get();
+		}
+
+		if (!acquired) {
+			borrowTimeoutCount.incrementAndGet();
+			logger.logp(Level.WARNING, "JDBCConnectionPool", "borrow()", "Timeout waiting for connection!");
+			throw new SQLTransientConnectionException("Timeout waiting for connection!");
+		}
+
+		try {
+			PooledConnection pc;
+			while ((pc = idle.pollFirst()) != null) {
+				if (System.currentTimeMillis() - pc.lastUsed < validationIdleTime ||
+						isValid(pc.connection)) {
+					break;
+				}
+				discard(pc);
+			}
+			if (pc == null) {
+				pc = new PooledConnection(open());
+			}
+			pc.borrowed = true;
+			borrowCount.incrementAndGet();
+			return pc;
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		}
+
+	}
+
+
+	/**
+	 * Returns number of connections currently borrowed.
+	 * @return number of active connections
+	 */
+	public int getActiveConnections() {
+		return size - permits.availablePermits();
+	}
+
+
+	public int getIdleConnections() {
+		return idle.size();
+	}
+
+
+	public int getSize() {
+		return size;
+	}
+
+
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+
+
+	/**
+	 * Returns number of borrow attempts which gave up after borrowTimeout.
+	 * @return number of timed out borrow attempts
+	 */
+	public long getBorrowTimeoutCount() {
+		return borrowTimeoutCount.get();
+	}
+
+
+	/**
+	 * Returns total time spent waiting for connections.
+	 * @param unit time unit of the result
+	 * @return total wait time
+	 */
+	public long getTotalWaitTime(TimeUnit unit) {
+		return unit.convert(totalWaitTime.get(), TimeUnit.NANOSECONDS);
+	}
+
+
+	/**
+	 * Returns the longest time spent waiting for a connection.
+	 * @param unit time unit of the result
+	 * @return maximum wait time
+	 */
+	public long getMaxWaitTime(TimeUnit unit) {
+		return unit.convert(maxWaitTime.get(), TimeUnit.NANOSECONDS);
+	}
+
+
+	/**
+	 * Closes all idle connections.
+	 */
+	public void close() {
+		PooledConnection pc;
+		while ((pc = idle.pollFirst()) != null) {
+			discard(pc);
+		}
+	}
+
+
+	private void release(PooledConnection pc) {
+
+		if (!pc.borrowed) {
+			return;
+		}
+		pc.borrowed = false;
+
+		try {
+			/*
+			 * Don't return broken connections or connections left in
+			 * a transaction.
+			 */
+			if (pc.connection.isClosed()) {
+				discard(pc);
+			} else {
+				if (!pc.connection.getAutoCommit()) {
+					pc.connection.rollback();
+					pc.connection.setAutoCommit(true);
+				}
+				pc.lastUsed = System.currentTimeMillis();
+				idle.addFirst(pc);
+			}
+		} catch (SQLException e) {
+			discard(pc);
+		} finally {
+			permits.release();
+		}
+
+	}
+
+
+	private Connection open() throws SQLException {
+		try {
+			Connection connection = DriverManager.getConnection(url);
+			connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			return connection;
+		} catch (SQLException e) {
+			logger.logp(Level.SEVERE, "JDBCConnectionPool", "open()", "Error establishing connection!");
+			throw new SQLException("Error establishing connection!");
+		}
+	}
+
+
+	private boolean isValid(Connection connection) {
+		try {
+			return connection.isValid(VALIDATION_TIMEOUT);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+
+	private void discard(PooledConnection pc) {
+		try {
+			pc.connection.close();
+		} catch (SQLException e) {
+			logger.logp(Level.WARNING, "JDBCConnectionPool", "discard()", "Error closing connection!");
+		}
+	}
+
+}
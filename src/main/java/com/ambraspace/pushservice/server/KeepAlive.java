@@ -0,0 +1,111 @@
+package com.ambraspace.pushservice.server;
+
+
+/**
+ * Keep-alive interval of a client, i.e. how long its connection may stay
+ * idle before it is PINGed.
+ * The interval is fixed for clients which didn't negotiate adaptive
+ * keep-alive. Otherwise it grows by a quarter after every PING which found
+ * the idle connection alive, and is halved after an idle connection was
+ * lost, since it was most likely dropped by a NAT or firewall in between.
+ * The interval then stays below the one which failed, until it succeeds
+ * PROBE_AFTER times in a row and may grow further again.
+ * Intervals are kept between the negotiated bounds.
+ */
+class KeepAlive {
+
+	// Successful PINGs after which the interval may grow past a failed one
+	static final int PROBE_AFTER = 10;
+
+	private long min; // milliseconds
+	private long max;
+	private long interval;
+	// Shortest interval which failed, 0 if none
+	private long ceiling;
+	private int successes;
+
+
+	/**
+	 * Creates a fixed keep-alive interval.
+	 * @param interval interval in milliseconds
+	 */
+	public KeepAlive(long interval) {
+		this(interval, interval, interval);
+	}
+
+
+	/**
+	 * Creates an adaptive keep-alive interval.
+	 * @param min shortest interval in milliseconds
+	 * @param max longest interval in milliseconds
+	 * @param interval initial interval in milliseconds
+	 */
+	public KeepAlive(long min, long max, long interval) {
+		setBounds(min, max);
+		this.interval = clamp(interval);
+	}
+
+
+	/**
+	 * Changes the bounds (e.g. when a client reconnects and negotiates
+	 * again), keeping what has been learned.
+	 * @param min shortest interval in milliseconds
+	 * @param max longest interval in milliseconds
+	 */
+	public synchronized void setBounds(long min, long max) {
+		this.min = Math.min(min, max);
+		this.max = max;
+		this.interval = clamp(interval);
+	}
+
+
+	public synchronized long getInterval() {
+		return interval;
+	}
+
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+
+	public synchronized boolean isAdaptive() {
+		return min < max;
+	}
+
+
+	/**
+	 * Records that the connection survived being idle for the current interval.
+	 */
+	public synchronized void succeeded() {
+
+		if (++successes >= PROBE_AFTER) {
+			// Conditions may have changed, try longer intervals again
+			ceiling = 0;
+		}
+		long next = interval + interval / 4;
+		if (ceiling > 0) {
+			next = Math.min(next, ceiling - ceiling / 10);
+		}
+		interval = clamp(Math.max(interval, next));
+
+	}
+
+
+	/**
+	 * Records that the connection was lost while idle for the current interval.
+	 */
+	public synchronized void failed() {
+
+		successes = 0;
+		ceiling = (ceiling > 0) ? Math.min(ceiling, interval) : interval;
+		interval = clamp(interval / 2);
+
+	}
+
+
+	private long clamp(long value) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+}
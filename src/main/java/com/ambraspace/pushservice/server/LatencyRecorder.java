@@ -0,0 +1,136 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Lock-free latency histogram. Values are kept in microseconds in
+ * log-linear buckets (64 sub-buckets per power of two), so percentiles are
+ * exact below 128 microseconds and within 1.6% above. Percentiles of an
+ * interval are computed from the difference of two snapshots.
+ */
+public class LatencyRecorder {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Values below this are recorded exactly
+	private static final int LINEAR = SUB_BUCKETS * 2;
+	// Enough for values up to 2^62 microseconds
+	private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	// Sum of all recorded values (microseconds)
+	private final LongAdder sum = new LongAdder();
+
+
+	public LatencyRecorder(String name) {
+		this.name = name;
+	}
+
+
+	public String getName() {
+		return name;
+	}
+
+
+	/**
+	 * Records one latency.
+	 * @param latency latency
+	 * @param unit time unit of latency
+	 */
+	public void record(long latency, TimeUnit unit) {
+		long micros = Math.max(0, unit.toMicros(latency));
+		counts.incrementAndGet(bucket(micros));
+		sum.add(micros);
+	}
+
+
+	/**
+	 * Returns sum of all recorded values.
+	 * @return sum in microseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+
+	/**
+	 * Returns a copy of all bucket counts.
+	 * @return snapshot
+	 */
+	public long[] snapshot() {
+		long[] ret = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			ret[i] = counts.get(i);
+		}
+		return ret;
+	}
+
+
+	/**
+	 * Returns number of values recorded between two snapshots.
+	 * @param from earlier snapshot, null for the start
+	 * @param to later snapshot
+	 * @return number of values
+	 */
+	public static long count(long[] from, long[] to) {
+		long ret = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			ret += to[i] - (from == null ? 0 : from[i]);
+		}
+		return ret;
+	}
+
+
+	/**
+	 * Returns a percentile of values recorded between two snapshots.
+	 * @param from earlier snapshot, null for the start
+	 * @param to later snapshot
+	 * @param percentile percentile (0 - 100), 100 for the maximum
+	 * @return latency in microseconds, or -1 if there are no values
+	 */
+	public static long percentile(long[] from, long[] to, double percentile) {
+
+		long total = count(from, to);
+		if (total == 0) {
+			return -1;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += to[i] - (from == null ? 0 : from[i]);
+			if (seen >= rank) {
+				return value(i);
+			}
+		}
+		return value(BUCKETS - 1);
+
+	}
+
+
+	private static int bucket(long micros) {
+		if (micros < LINEAR) {
+			return (int) micros;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+	}
+
+
+	/**
+	 * Returns the middle of the bucket.
+	 */
+	private static long value(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+		long base = (long) ((bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return base + (1L << shift) / 2;
+	}
+
+}
@@ -11,10 +11,27 @@ import org.json.JSONObject;
 
 public class Message {
 
+	/**
+	 * Priority class of a message. Messages of a higher class are
+	 * handed over for delivery first.
+	 */
+	public enum Priority {
+		HIGH,
+		NORMAL,
+		LOW
+	}
+
 	private long id;
 	private String text;
 	private Date dateSent;
 	private Map<String, Boolean> clientUIDs = new HashMap<String, Boolean>();
+	// Broadcast messages go to all connected clients of the application
+	// (or only to those subscribed to the topic), instead of clientUIDs
+	private String applicationUID;
+	private String topic;
+	private Priority priority = Priority.NORMAL;
+	// null if the message never expires
+	private Date expires;
 	
 	
 	
@@ -48,6 +65,53 @@ public class Message {
 
 
 
+	public String getApplicationUID() {
+		return applicationUID;
+	}
+
+
+
+	public String getTopic() {
+		return topic;
+	}
+
+
+
+	public Priority getPriority() {
+		return priority;
+	}
+
+
+
+	public Date getExpires() {
+		return expires;
+	}
+
+
+
+	/**
+	 * Checks whether the message is too old to be delivered.
+	 * @param now current time (milliseconds)
+	 * @return true if the message has expired
+	 */
+	public boolean isExpired(long now) {
+		return expires != null && expires.getTime() <= now;
+	}
+
+
+
+	/**
+	 * Broadcast messages have no list of recipients, they are sent to
+	 * connected clients of an application (and topic) instead.
+	 * Recipients are filled in with delivery results.
+	 * @return true if this is a broadcast message
+	 */
+	public boolean isBroadcast() {
+		return applicationUID != null;
+	}
+
+
+
 	public void setId(long id) {
 		this.id = id;
 	}
@@ -66,6 +130,78 @@ public class Message {
 
 
 
+	public void setApplicationUID(String applicationUID) {
+		this.applicationUID = applicationUID;
+	}
+
+
+
+	public void setTopic(String topic) {
+		this.topic = topic;
+	}
+
+
+
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+
+
+	public void setExpires(Date expires) {
+		this.expires = expires;
+	}
+
+
+
+	/**
+	 * Parses priority of a submitted message ("high", "normal" or "low").
+	 * @param priority priority
+	 * @return priority class, or null if invalid
+	 */
+	public static Priority parsePriority(String priority) {
+		for (Priority p : Priority.values()) {
+			if (p.name().equalsIgnoreCase(priority)) {
+				return p;
+			}
+		}
+		return null;
+	}
+
+
+
+	/**
+	 * Returns the message in the format accepted by parseJSONMessage().
+	 * @return message as JSON
+	 */
+	public JSONObject toJSON() {
+
+		JSONObject ret = new JSONObject();
+		ret.put("id", id);
+		ret.put("text", text);
+		ret.put("date", dateSent.getTime());
+		if (isBroadcast()) {
+			ret.put("application", applicationUID);
+			if (topic != null) {
+				ret.put("topic", topic);
+			}
+		} else {
+			ret.put("to", new JSONArray(clientUIDs.keySet()));
+		}
+		if (priority != Priority.NORMAL) {
+			ret.put("priority", priority.name().toLowerCase());
+		}
+		if (expires != null) {
+			// Rounded up, so the message doesn't expire earlier
+			long ttl = expires.getTime() - dateSent.getTime();
+			ret.put("ttl", (ttl + 999) / 1000);
+		}
+		return ret;
+
+	}
+
+
+
 	public static Message parseJSONMessage(JSONObject jSONMessage) {
 		
 		Message ret = new Message();
@@ -74,6 +210,24 @@ public class Message {
 			ret.setId(jSONMessage.getLong("id"));
 			ret.setText(jSONMessage.getString("text"));
 			ret.setDateSent(new Date(jSONMessage.getLong("date")));
+			if (jSONMessage.has("ttl")) {
+				// Seconds from the date the message was sent
+				ret.setExpires(new Date(ret.getDateSent().getTime() + jSONMessage.getLong("ttl") * 1000));
+			}
+			if (jSONMessage.has("priority")) {
+				ret.setPriority(parsePriority(jSONMessage.getString("priority")));
+				if (ret.getPriority() == null) {
+					return null;
+				}
+			}
+			if (!jSONMessage.has("to")) {
+				// Broadcast
+				ret.setApplicationUID(jSONMessage.getString("application"));
+				if (jSONMessage.has("topic")) {
+					ret.setTopic(jSONMessage.getString("topic"));
+				}
+				return ret;
+			}
 			JSONArray tos = jSONMessage.getJSONArray("to");
 			Iterator<Object> i = tos.iterator();
 			while (i.hasNext()) {
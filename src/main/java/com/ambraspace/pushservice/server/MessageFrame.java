@@ -0,0 +1,64 @@
+package com.ambraspace.pushservice.server;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A message encoded for the wire. The text is encoded only once, into
+ * a read-only direct buffer shared by all recipients; every connection
+ * writes its own duplicate of it, so nothing is copied per recipient.
+ */
+public class MessageFrame {
+
+	// MESSAGE line of protocol version 1 is the same for all messages
+	private static final ByteBuffer HEADER_V1 = encode("MESSAGE" + SelectorLoop.LINE_SEPARATOR);
+
+	private final long messageID;
+	private final String text;
+	// MESSAGE line of protocol version 2, tagged with the message ID
+	private final ByteBuffer header;
+	private final ByteBuffer body;
+
+
+	public MessageFrame(long messageID, String text) {
+
+		this.messageID = messageID;
+		this.text = text;
+		this.header = encode("MESSAGE " + messageID + SelectorLoop.LINE_SEPARATOR);
+		this.body = encode(text + SelectorLoop.LINE_SEPARATOR);
+
+	}
+
+
+	public long getMessageID() {
+		return messageID;
+	}
+
+
+	public String getText() {
+		return text;
+	}
+
+
+	/**
+	 * Adds buffers making up the frame to a list of buffers to be written
+	 * with one gathering write. The buffers are fresh duplicates, so they
+	 * can be consumed independently of other connections.
+	 * @param buffers list of buffers
+	 * @param protocolVersion agreed protocol version
+	 */
+	public void appendTo(List<ByteBuffer> buffers, int protocolVersion) {
+		buffers.add((protocolVersion == 1 ? HEADER_V1 : header).duplicate());
+		buffers.add(body.duplicate());
+	}
+
+
+	private static ByteBuffer encode(String s) {
+		byte[] bytes = s.getBytes(SelectorLoop.CHARSET);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes);
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+}
@@ -0,0 +1,220 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * DBManager decorator which records latency of every call to the
+ * underlying DBManager in a histogram per method ("db.<method>").
+ * Statistics of the authorization cache and the connection pool behind
+ * it (if any) are exposed as gauges ("db.cache.*", "db.pool.*").
+ */
+public class MeteredDBManager implements DBManager {
+
+	private final DBManager dbManager;
+
+	private final LatencyRecorder getNewClientUID;
+	private final LatencyRecorder isClientAuthorized;
+	private final LatencyRecorder getMessage;
+	private final LatencyRecorder updateMessageStatus;
+	private final LatencyRecorder storeMessage;
+	private final LatencyRecorder getDelayedMessages;
+	private final LatencyRecorder updateDelayedMessageStatus;
+	private final LatencyRecorder updateDeliveryStatus;
+
+
+	public MeteredDBManager(DBManager dbManager, Metrics metrics) {
+
+		if (dbManager == null) {
+			throw new NullPointerException();
+		}
+		this.dbManager = dbManager;
+		getNewClientUID = metrics.histogram("db.getNewClientUID");
+		isClientAuthorized = metrics.histogram("db.isClientAuthorized");
+		getMessage = metrics.histogram("db.getMessage");
+		updateMessageStatus = metrics.histogram("db.updateMessageStatus");
+		storeMessage = metrics.histogram("db.storeMessage");
+		getDelayedMessages = metrics.histogram("db.getDelayedMessages");
+		updateDelayedMessageStatus = metrics.histogram("db.updateDelayedMessageStatus");
+		updateDeliveryStatus = metrics.histogram("db.updateDeliveryStatus");
+		registerGauges(metrics, dbManager);
+
+	}
+
+
+	/**
+	 * Registers gauges of the cache and the connection pool found by
+	 * unwrapping the chain of DBManagers.
+	 */
+	private static void registerGauges(Metrics metrics, DBManager dbManager) {
+
+		if (dbManager instanceof CachingDBManager) {
+			final CachingDBManager cache = (CachingDBManager) dbManager;
+			metrics.gauge("db.cache.size", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return cache.getSize();
+				}
+			});
+			metrics.gauge("db.cache.hits", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return cache.getHitCount();
+				}
+			});
+			metrics.gauge("db.cache.misses", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return cache.getMissCount();
+				}
+			});
+			metrics.gauge("db.cache.evictions", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return cache.getEvictionCount();
+				}
+			});
+			registerGauges(metrics, cache.getDbManager());
+		} else if (dbManager instanceof MySQLDBManager) {
+			final JDBCConnectionPool pool = ((MySQLDBManager) dbManager).getConnectionPool();
+			metrics.gauge("db.pool.size", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return pool.getSize();
+				}
+			});
+			metrics.gauge("db.pool.active", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return pool.getActiveConnections();
+				}
+			});
+			metrics.gauge("db.pool.idle", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return pool.getIdleConnections();
+				}
+			});
+			metrics.gauge("db.pool.borrows", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return pool.getBorrowCount();
+				}
+			});
+			metrics.gauge("db.pool.borrowTimeouts", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return pool.getBorrowTimeoutCount();
+				}
+			});
+			metrics.gauge("db.pool.wait.total.ms", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return pool.getTotalWaitTime(TimeUnit.MILLISECONDS);
+				}
+			});
+			metrics.gauge("db.pool.wait.max.ms", new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return pool.getMaxWaitTime(TimeUnit.MILLISECONDS);
+				}
+			});
+		}
+
+	}
+
+
+	@Override
+	public String getNewClientUID(String appUID) {
+		long start = System.nanoTime();
+		try {
+			return dbManager.getNewClientUID(appUID);
+		} finally {
+			getNewClientUID.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+
+	@Override
+	public boolean isClientAuthorized(String appUID, String clientUID) {
+		long start = System.nanoTime();
+		try {
+			return dbManager.isClientAuthorized(appUID, clientUID);
+		} finally {
+			isClientAuthorized.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+
+	@Override
+	public Message getMessage(long messageID) {
+		long start = System.nanoTime();
+		try {
+			return dbManager.getMessage(messageID);
+		} finally {
+			getMessage.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+
+	@Override
+	public void updateMessageStatus(Message message) {
+		long start = System.nanoTime();
+		try {
+			dbManager.updateMessageStatus(message);
+		} finally {
+			updateMessageStatus.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+
+	@Override
+	public void storeMessage(Message message) {
+		long start = System.nanoTime();
+		try {
+			dbManager.storeMessage(message);
+		} finally {
+			storeMessage.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+
+	@Override
+	public List<DelayedMessage> getDelayedMessages(String clientUID, int limit, long afterMessageID, int pageSize) {
+		long start = System.nanoTime();
+		try {
+			return dbManager.getDelayedMessages(clientUID, limit, afterMessageID, pageSize);
+		} finally {
+			getDelayedMessages.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+
+	@Override
+	public void updateDelayedMessageStatus(List<DelayedMessage> messages) {
+		long start = System.nanoTime();
+		try {
+			dbManager.updateDelayedMessageStatus(messages);
+		} finally {
+			updateDelayedMessageStatus.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+
+	@Override
+	public boolean updateDeliveryStatus(List<DeliveryReport> reports) {
+		long start = System.nanoTime();
+		try {
+			return dbManager.updateDeliveryStatus(reports);
+		} finally {
+			updateDeliveryStatus.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+
+	public DBManager getDbManager() {
+		return dbManager;
+	}
+
+}
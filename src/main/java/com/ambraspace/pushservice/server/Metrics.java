@@ -0,0 +1,197 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+
+/**
+ * Registry of the server's metrics: counters (LongAdder), gauges (read
+ * when metrics are collected) and latency histograms (LatencyRecorder).
+ * Recording is lock-free and cheap, so hot paths keep references to
+ * their counters and histograms and update them unconditionally.
+ * Metrics are named with dots (e.g. "ping.rtt") and reported in name
+ * order, as JSON (getMetrics command) or as plain text in Prometheus
+ * exposition format (metrics port).
+ * Histogram percentiles cover the whole lifetime of the server.
+ */
+public class Metrics {
+
+	// Prefix of metric names in plain text format
+	private static final String TEXT_PREFIX = "pushservice_";
+
+	// Reported percentiles
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	// The same as quantiles, in plain text format
+	private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+
+	/**
+	 * A value read whenever metrics are collected (e.g. a queue size).
+	 */
+	public interface Gauge {
+
+		long getValue();
+
+	}
+
+
+	private final ConcurrentMap<String, LongAdder> counters =
+			new ConcurrentSkipListMap<String, LongAdder>();
+	private final ConcurrentMap<String, Gauge> gauges =
+			new ConcurrentSkipListMap<String, Gauge>();
+	private final ConcurrentMap<String, LatencyRecorder> histograms =
+			new ConcurrentSkipListMap<String, LatencyRecorder>();
+
+
+	/**
+	 * Returns the counter with the given name, creating it if necessary.
+	 * @param name counter's name
+	 * @return counter
+	 */
+	public LongAdder counter(String name) {
+		LongAdder c = counters.get(name);
+		if (c == null) {
+			LongAdder existing = counters.putIfAbsent(name, c = new LongAdder());
+			if (existing != null) {
+				c = existing;
+			}
+		}
+		return c;
+	}
+
+
+	/**
+	 * Returns the histogram with the given name, creating it if necessary.
+	 * @param name histogram's name
+	 * @return histogram
+	 */
+	public LatencyRecorder histogram(String name) {
+		LatencyRecorder h = histograms.get(name);
+		if (h == null) {
+			LatencyRecorder existing = histograms.putIfAbsent(name, h = new LatencyRecorder(name));
+			if (existing != null) {
+				h = existing;
+			}
+		}
+		return h;
+	}
+
+
+	/**
+	 * Registers a gauge, replacing a gauge with the same name.
+	 * @param name gauge's name
+	 * @param gauge gauge
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+
+	/**
+	 * Returns all metrics as JSON. Latencies are in microseconds.
+	 * @return metrics
+	 */
+	public JSONObject toJSON() {
+
+		JSONObject ret = new JSONObject();
+
+		JSONObject c = new JSONObject();
+		for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+			c.put(e.getKey(), e.getValue().sum());
+		}
+		ret.put("counters", c);
+
+		JSONObject g = new JSONObject();
+		for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+			g.put(e.getKey(), e.getValue().getValue());
+		}
+		ret.put("gauges", g);
+
+		JSONObject h = new JSONObject();
+		for (Map.Entry<String, LatencyRecorder> e : histograms.entrySet()) {
+			long[] snapshot = e.getValue().snapshot();
+			long count = LatencyRecorder.count(null, snapshot);
+			JSONObject o = new JSONObject();
+			o.put("count", count);
+			o.put("sum", e.getValue().getSum());
+			if (count > 0) {
+				for (double p : PERCENTILES) {
+					o.put("p" + format(p), LatencyRecorder.percentile(null, snapshot, p));
+				}
+				o.put("max", LatencyRecorder.percentile(null, snapshot, 100));
+			}
+			h.put(e.getKey(), o);
+		}
+		ret.put("histograms", h);
+
+		return ret;
+
+	}
+
+
+	/**
+	 * Returns all metrics in Prometheus text exposition format.
+	 * Histograms are reported as summaries in seconds.
+	 * @return metrics, one per line
+	 */
+	public String toText() {
+
+		StringBuilder sb = new StringBuilder();
+
+		for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+			String name = textName(e.getKey()) + "_total";
+			sb.append("# TYPE ").append(name).append(" counter\n");
+			sb.append(name).append(' ').append(e.getValue().sum()).append('\n');
+		}
+
+		for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+			String name = textName(e.getKey());
+			sb.append("# TYPE ").append(name).append(" gauge\n");
+			sb.append(name).append(' ').append(e.getValue().getValue()).append('\n');
+		}
+
+		for (Map.Entry<String, LatencyRecorder> e : histograms.entrySet()) {
+			String name = textName(e.getKey()) + "_seconds";
+			long[] snapshot = e.getValue().snapshot();
+			long count = LatencyRecorder.count(null, snapshot);
+			sb.append("# TYPE ").append(name).append(" summary\n");
+			if (count > 0) {
+				for (int i = 0; i < PERCENTILES.length; i++) {
+					sb.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+							.append(seconds(LatencyRecorder.percentile(null, snapshot, PERCENTILES[i]))).append('\n');
+				}
+			}
+			sb.append(name).append("_sum ").append(seconds(e.getValue().getSum())).append('\n');
+			sb.append(name).append("_count ").append(count).append('\n');
+		}
+
+		return sb.toString();
+
+	}
+
+
+	private static String textName(String name) {
+		StringBuilder sb = new StringBuilder(TEXT_PREFIX);
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			sb.append(Character.isLetterOrDigit(c) ? c : '_');
+		}
+		return sb.toString();
+	}
+
+
+	private static String seconds(long micros) {
+		return Double.toString(micros / 1000000.0);
+	}
+
+
+	private static String format(double percentile) {
+		return percentile == Math.floor(percentile) ?
+				Long.toString((long) percentile) : Double.toString(percentile);
+	}
+
+}
@@ -1,73 +1,112 @@
 package com.ambraspace.pushservice.server;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
+/**
+ * DBManager on the MySQL database the applications write messages to.
+ * messages.expires (DATETIME, NULL if the message never expires) holds
+ * expiration time of a message; expired messages are not replayed.
+ * The column is added by schema/001_messages_expires.sql. Databases
+ * without it still work, with message expiration disabled.
+ */
 public class MySQLDBManager implements DBManager {
 	
 	private static Logger logger = Logger.getLogger("MySQLDBManager");
 
-	private final String host;
-	private final int port;
-	private final String database;
-	private final String username;
-	private final String password;
+	public static final int DEFAULT_POOL_SIZE = 10;
+	public static final int DEFAULT_POOL_VALIDATION_IDLE = 30; // seconds
+	public static final int DEFAULT_POOL_BORROW_TIMEOUT = 10; // seconds
+	
+	// Maximum number of values in one IN list of an UPDATE
+	private static final int UPDATE_CHUNK_SIZE = 500;
+
 	private final String encPwd;
 	
-	private Connection connection;
+	private final JDBCConnectionPool pool;
+	// Whether messages.expires exists
+	private final boolean expiresColumn;
+	// Column list and condition reading messages.expires (or ignoring it)
+	private final String expiresSelect;
+	private final String expiresCondition;
 	
 	public MySQLDBManager(String host, int port, String database,
 			String username, String password, String encPwd) throws InstantiationException {
 
-			this.host = host;
-			this.port = port;
-			this.database = database;
-			this.username = username;
-			this.password = password;
+			this(host, port, database, username, password, encPwd,
+					DEFAULT_POOL_SIZE, DEFAULT_POOL_VALIDATION_IDLE, DEFAULT_POOL_BORROW_TIMEOUT);
+			
+	}
+	
+	/**
+	 * Creates new MySQLDBManager using a pool of connections.
+	 * @param poolSize maximum number of connections
+	 * @param poolValidationIdle connections idle longer than this (in seconds)
+	 * are validated before use
+	 * @param poolBorrowTimeout maximum time (in seconds) to wait for a connection
+	 */
+	public MySQLDBManager(String host, int port, String database,
+			String username, String password, String encPwd,
+			int poolSize, int poolValidationIdle, int poolBorrowTimeout) throws InstantiationException {
+
 			this.encPwd = encPwd;
 			
-			try {
-				establishConnection();
+			this.pool = new JDBCConnectionPool(
+					"jdbc:mariadb://" +
+					host +
+					(port <= 0 ? "/" : ":"+port+"/") +
+					database + "?user=" +
+					username + "&password=" +
+					(password != null ? password :  ""),
+					poolSize,
+					poolValidationIdle,
+					poolBorrowTimeout,
+					TimeUnit.SECONDS);
+			
+			// Fail early if the database is not reachable
+			try (JDBCConnectionPool.PooledConnection pc = pool.borrow()) {
+				expiresColumn = hasColumn(pc.getConnection(), "messages", "expires");
 			} catch (SQLException e) {
 				throw new InstantiationException();
 			}
+			if (expiresColumn) {
+				expiresSelect = "messages.expires expires";
+				expiresCondition = "(messages.expires IS NULL OR messages.expires>NOW())";
+			} else {
+				logger.logp(Level.WARNING, "MySQLDBManager", "MySQLDBManager()", "Column messages.expires missing (see schema/001_messages_expires.sql), messages never expire.");
+				expiresSelect = "NULL expires";
+				expiresCondition = "1=1";
+			}
 			
 	}
 	
-	private void establishConnection() throws SQLException {
-		
-		try {
-			if (connection == null || (!connection.isValid(5))) {
-				connection = DriverManager.getConnection("jdbc:mariadb://" +
-						this.host +
-						(this.port <= 0 ? "/" : ":"+port+"/") +
-						this.database + "?user=" +
-						this.username + "&password=" +
-						(this.password != null ? this.password :  ""));
-				connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
-			}
-		} catch (SQLException e) {
-			logger.logp(Level.SEVERE, "MySQLDBManager", "establishConnection()", "Error establishing connection!");
-			throw new SQLException("Error establishing connection!");
-		}
-
+	/**
+	 * Returns the underlying connection pool (e.g. for its statistics).
+	 * @return connection pool
+	 */
+	public JDBCConnectionPool getConnectionPool() {
+		return pool;
 	}
 	
 	@Override
-	public synchronized String getNewClientUID(String appUID) {
-        try {
-    		establishConnection();
+	public String getNewClientUID(String appUID) {
+        try (JDBCConnectionPool.PooledConnection pc = pool.borrow();
+        		Statement stmt = pc.getConnection().createStatement()) {
+        	Connection connection = pc.getConnection();
         	connection.setAutoCommit(false);
-        	Statement stmt = connection.createStatement();
         	stmt.execute("SELECT id FROM applications WHERE uid=\"" + appUID +
         			"\" AND disabled=0");
         	ResultSet rs = stmt.getResultSet();
@@ -89,10 +128,9 @@ public class MySQLDBManager implements DBManager {
 	}
 
 	@Override
-	public synchronized boolean isClientAuthorized(String appUID, String clientUID) {
-    	try {
-    		establishConnection();
-			Statement stmt = connection.createStatement();
+	public boolean isClientAuthorized(String appUID, String clientUID) {
+    	try (JDBCConnectionPool.PooledConnection pc = pool.borrow();
+    			Statement stmt = pc.getConnection().createStatement()) {
 			stmt.execute(
 					"SELECT COUNT(clients.uid) FROM clients " +
 					"JOIN applications ON clients.application_id=applications.id " +
@@ -113,13 +151,12 @@ public class MySQLDBManager implements DBManager {
 	}
 
 	@Override
-	public synchronized Message getMessage(long messageID) {
-		try {
-			establishConnection();
-			Statement stmt = connection.createStatement();
+	public Message getMessage(long messageID) {
+		try (JDBCConnectionPool.PooledConnection pc = pool.borrow();
+				Statement stmt = pc.getConnection().createStatement()) {
 			stmt.execute(
 					"SELECT messages.id id, messages.text text, messages.date date, " +
-							"clients.uid uid, " +
+							expiresSelect + ", clients.uid uid, " +
 							"client_messages.delivered delivered " +
 					"FROM messages " +
 					"LEFT JOIN client_messages ON messages.id=client_messages.message_id " +
@@ -131,6 +168,7 @@ public class MySQLDBManager implements DBManager {
 				ret.setId(rs.getLong("id"));
 				ret.setText(rs.getString("text"));
 				ret.setDateSent(rs.getDate("date"));
+				ret.setExpires(rs.getTimestamp("expires"));
 				do {
 					ret.getRecipients().put(rs.getString("uid"), rs.getBoolean("delivered"));
 				} while (rs.next());
@@ -145,56 +183,83 @@ public class MySQLDBManager implements DBManager {
 	}
 
 	@Override
-	public synchronized void updateMessageStatus(Message message) {
-        try {
-    		establishConnection();
-        	connection.setAutoCommit(false);
-        	Statement stmt = connection.createStatement();
-        	for (String uid : message.getRecipients().keySet()) {
-        		try {
-	            	logger.logp(Level.INFO, "MySQLDBManager", "updateMessageStatus()", "SELECT clients.id id FROM clients " +
-	        				"WHERE clients.uid=\"" + uid + "\" AND " +
-	        				"clients.disabled=0");
-	        		stmt.execute("SELECT clients.id id FROM clients " +
-	        				"WHERE clients.uid=\"" + uid + "\" AND " +
-	        				"clients.disabled=0");
-	        		ResultSet rs = stmt.getResultSet();
-	        		rs.next();
-	        		long clientID = rs.getLong("id");
-	            	logger.logp(Level.INFO, "MySQLDBManager", "updateMessageStatus()", "UPDATE client_messages SET delivered=" +
-	        				(message.getRecipients().get(uid) ? 1 : 0) +
-	        				" WHERE message_id=" + message.getId() + 
-	        				" AND client_id=" + clientID);
-	        		stmt.executeUpdate("UPDATE client_messages SET delivered=" +
-	        				(message.getRecipients().get(uid) ? 1 : 0) +
-	        				" WHERE message_id=" + message.getId() + 
-	        				" AND client_id=" + clientID);
-        		} catch (SQLException err) {
-        			logger.logp(Level.SEVERE, "MySQLDBManager", "updateMessageStatus()","Error updating record!");
-        			continue;
-        		}
+	public void updateMessageStatus(Message message) {
+		
+		/*
+		 * All records start with delivered=0, so only delivered
+		 * messages need to be written.
+		 */
+		List<String> delivered = new ArrayList<String>();
+		for (Map.Entry<String, Boolean> e : message.getRecipients().entrySet()) {
+			if (Boolean.TRUE.equals(e.getValue())) {
+				delivered.add(e.getKey());
 			}
+		}
+		
+		if (delivered.isEmpty()) {
+			return;
+		}
+		
+        try (JDBCConnectionPool.PooledConnection pc = pool.borrow()) {
+        	Connection connection = pc.getConnection();
+        	connection.setAutoCommit(false);
+        	int updated = markDelivered(connection, message.getId(), delivered);
         	connection.commit();
+        	logger.logp(Level.FINE, "MySQLDBManager", "updateMessageStatus()", "Message #" + message.getId() + ": " + updated + " records updated.");
         } catch (SQLException e) {
         	logger.logp(Level.SEVERE, "MySQLDBManager", "updateMessageStatus()","SQLException caught!");
         }
 	}
 
 	@Override
-	public synchronized List<DelayedMessage> getDelayedMessages(String clientUID, int limit) {
+	public void storeMessage(Message message) {
 
-		try {
-			establishConnection();
-			Statement stmt = connection.createStatement();
-			stmt.execute(
-					"SELECT id, text, date FROM " +
-					"(SELECT messages.id id, messages.text text, messages.date date, client_messages.delivered delivered " +
-					"FROM client_messages " +
-					"LEFT JOIN messages ON client_messages.message_id=messages.id " +
-					"LEFT JOIN clients ON client_messages.client_id=clients.id "+
-					"WHERE clients.uid=\"" + clientUID + "\" AND clients.disabled=0 " +
-					"ORDER BY client_messages.message_id DESC " + (limit < 1 ? "" : "LIMIT " + limit) + ") msgs " +
-					"WHERE delivered=0 ORDER BY id ASC");
+		if (message.getExpires() == null || !expiresColumn) {
+			return;
+		}
+
+		try (JDBCConnectionPool.PooledConnection pc = pool.borrow();
+				PreparedStatement stmt = pc.getConnection().prepareStatement(
+						"UPDATE messages SET expires=? WHERE id=?")) {
+			stmt.setTimestamp(1, new Timestamp(message.getExpires().getTime()));
+			stmt.setLong(2, message.getId());
+			stmt.executeUpdate();
+		} catch (SQLException e) {
+			logger.logp(Level.SEVERE, "MySQLDBManager", "storeMessage()", "SQLException caught!");
+		}
+
+	}
+
+	@Override
+	public List<DelayedMessage> getDelayedMessages(String clientUID, int limit, long afterMessageID, int pageSize) {
+
+		try (JDBCConnectionPool.PooledConnection pc = pool.borrow();
+				Statement stmt = pc.getConnection().createStatement()) {
+			if (limit < 1) {
+				// The cursor goes into the join, so only one page is read
+				stmt.execute(
+						"SELECT messages.id id, messages.text text, messages.date date, " + expiresSelect + " " +
+						"FROM client_messages " +
+						"LEFT JOIN messages ON client_messages.message_id=messages.id " +
+						"LEFT JOIN clients ON client_messages.client_id=clients.id "+
+						"WHERE clients.uid=\"" + clientUID + "\" AND clients.disabled=0 " +
+						"AND client_messages.delivered=0 AND client_messages.message_id>" + afterMessageID + " " +
+						"AND " + expiresCondition + " " +
+						"ORDER BY client_messages.message_id ASC LIMIT " + pageSize);
+			} else {
+				stmt.execute(
+						"SELECT id, text, date, expires FROM " +
+						"(SELECT messages.id id, messages.text text, messages.date date, " + expiresSelect + ", " +
+						"client_messages.delivered delivered " +
+						"FROM client_messages " +
+						"LEFT JOIN messages ON client_messages.message_id=messages.id " +
+						"LEFT JOIN clients ON client_messages.client_id=clients.id "+
+						"WHERE clients.uid=\"" + clientUID + "\" AND clients.disabled=0 " +
+						"ORDER BY client_messages.message_id DESC LIMIT " + limit + ") msgs " +
+						"WHERE delivered=0 AND id>" + afterMessageID + " " +
+						// Always selected, as NULL without the column
+						"AND (expires IS NULL OR expires>NOW()) ORDER BY id ASC LIMIT " + pageSize);
+			}
 			ResultSet rs = stmt.getResultSet();
 			List<DelayedMessage> retVal = new ArrayList<DelayedMessage>(); 
 			while (rs.next()) {
@@ -203,6 +268,7 @@ public class MySQLDBManager implements DBManager {
 						clientUID,
 						rs.getString("text"),
 						rs.getDate("date"),
+						rs.getTimestamp("expires"),
 						false);
 				retVal.add(dm);
 			}
@@ -215,32 +281,40 @@ public class MySQLDBManager implements DBManager {
 	}
 
 	@Override
-	public synchronized void updateDelayedMessageStatus(List<DelayedMessage> messages) {
+	public void updateDelayedMessageStatus(List<DelayedMessage> messages) {
 
 		if (messages == null || messages.size()==0) {
 			return;
 		}
 		
-		try {
-			establishConnection();
+		/*
+		 * Group delivered messages by client (usually there is only one),
+		 * skipping those still not delivered.
+		 */
+		Map<String, List<Long>> delivered = new HashMap<String, List<Long>>();
+		Iterator<DelayedMessage> i=messages.iterator();
+		while (i.hasNext()) {
+			DelayedMessage d = i.next();
+			if (!d.isSent()) {
+				continue;
+			}
+			List<Long> ids = delivered.get(d.getClientUID());
+			if (ids == null) {
+				ids = new ArrayList<Long>();
+				delivered.put(d.getClientUID(), ids);
+			}
+			ids.add(d.getMessageID());
+		}
+		
+		if (delivered.isEmpty()) {
+			return;
+		}
+		
+		try (JDBCConnectionPool.PooledConnection pc = pool.borrow()) {
+			Connection connection = pc.getConnection();
 			connection.setAutoCommit(false);
-			Statement stmt = connection.createStatement();
-			Iterator<DelayedMessage> i=messages.iterator();
-			while (i.hasNext()) {
-				DelayedMessage d = i.next();
-				try {
-					ResultSet rs = stmt.executeQuery("SELECT id FROM clients WHERE uid=\"" + 
-							d.getClientUID() + "\"");
-					rs.next();
-					Long clientID = rs.getLong("id");
-					stmt.execute("UPDATE client_messages SET delivered=" +
-							(d.isSent() ? 1 : 0) + " " + 
-							"WHERE message_id=" + d.getMessageID() + " AND " +
-							"client_id=" + clientID);
-				} catch (SQLException err) {
-					logger.logp(Level.SEVERE, "MySQLDBManager", "updateDelayedMessageStatus()","Error updating.");
-					continue;
-				}
+			for (Map.Entry<String, List<Long>> e : delivered.entrySet()) {
+				markDelivered(connection, e.getKey(), e.getValue());
 			}
 			connection.commit();
 		} catch (SQLException e) {
@@ -248,4 +322,135 @@ public class MySQLDBManager implements DBManager {
 		}
 	}
 
+	@Override
+	public boolean updateDeliveryStatus(List<DeliveryReport> reports) {
+
+		if (reports == null || reports.size()==0) {
+			return true;
+		}
+		
+		/*
+		 * Reports usually come from a few broadcasts (many clients per
+		 * message) or from backlogs (many messages per client), so group them
+		 * by whichever gives fewer statements.
+		 */
+		Map<Long, List<String>> byMessage = new HashMap<Long, List<String>>();
+		Map<String, List<Long>> byClient = new HashMap<String, List<Long>>();
+		for (DeliveryReport r : reports) {
+			if (!r.isDelivered()) {
+				continue;
+			}
+			List<String> uids = byMessage.get(r.getMessageID());
+			if (uids == null) {
+				uids = new ArrayList<String>();
+				byMessage.put(r.getMessageID(), uids);
+			}
+			uids.add(r.getClientUID());
+			List<Long> ids = byClient.get(r.getClientUID());
+			if (ids == null) {
+				ids = new ArrayList<Long>();
+				byClient.put(r.getClientUID(), ids);
+			}
+			ids.add(r.getMessageID());
+		}
+		
+		if (byMessage.isEmpty()) {
+			return true;
+		}
+		
+		try (JDBCConnectionPool.PooledConnection pc = pool.borrow()) {
+			Connection connection = pc.getConnection();
+			connection.setAutoCommit(false);
+			int updated = 0;
+			if (byMessage.size() <= byClient.size()) {
+				for (Map.Entry<Long, List<String>> e : byMessage.entrySet()) {
+					updated += markDelivered(connection, e.getKey(), e.getValue());
+				}
+			} else {
+				for (Map.Entry<String, List<Long>> e : byClient.entrySet()) {
+					updated += markDelivered(connection, e.getKey(), e.getValue());
+				}
+			}
+			connection.commit();
+			logger.logp(Level.FINE, "MySQLDBManager", "updateDeliveryStatus()", updated + " records updated.");
+			return true;
+		} catch (SQLException e) {
+			logger.logp(Level.SEVERE, "MySQLDBManager", "updateDeliveryStatus()","SQLException caught!");
+			return false;
+		}
+	}
+
+	/**
+	 * Marks a message as delivered to given clients, using one statement
+	 * per UPDATE_CHUNK_SIZE clients.
+	 * @return number of updated records
+	 */
+	private int markDelivered(Connection connection, long messageID, List<String> clientUIDs)
+			throws SQLException {
+		int updated = 0;
+		for (int from = 0; from < clientUIDs.size(); from += UPDATE_CHUNK_SIZE) {
+			List<String> chunk = clientUIDs.subList(from,
+					Math.min(from + UPDATE_CHUNK_SIZE, clientUIDs.size()));
+			try (PreparedStatement stmt = connection.prepareStatement(
+					"UPDATE client_messages " +
+					"JOIN clients ON client_messages.client_id=clients.id " +
+					"SET client_messages.delivered=1 " +
+					"WHERE client_messages.message_id=? AND clients.disabled=0 " +
+					"AND clients.uid IN (" + placeholders(chunk.size()) + ")")) {
+				stmt.setLong(1, messageID);
+				for (int j = 0; j < chunk.size(); j++) {
+					stmt.setString(j + 2, chunk.get(j));
+				}
+				updated += stmt.executeUpdate();
+			}
+		}
+		return updated;
+	}
+
+	/**
+	 * Marks messages as delivered to a client, using one statement
+	 * per UPDATE_CHUNK_SIZE messages.
+	 * @return number of updated records
+	 */
+	private int markDelivered(Connection connection, String clientUID, List<Long> messageIDs)
+			throws SQLException {
+		int updated = 0;
+		for (int from = 0; from < messageIDs.size(); from += UPDATE_CHUNK_SIZE) {
+			List<Long> chunk = messageIDs.subList(from,
+					Math.min(from + UPDATE_CHUNK_SIZE, messageIDs.size()));
+			try (PreparedStatement stmt = connection.prepareStatement(
+					"UPDATE client_messages " +
+					"JOIN clients ON client_messages.client_id=clients.id " +
+					"SET client_messages.delivered=1 " +
+					"WHERE clients.uid=? AND clients.disabled=0 " +
+					"AND client_messages.message_id IN (" + placeholders(chunk.size()) + ")")) {
+				stmt.setString(1, clientUID);
+				for (int j = 0; j < chunk.size(); j++) {
+					stmt.setLong(j + 2, chunk.get(j));
+				}
+				updated += stmt.executeUpdate();
+			}
+		}
+		return updated;
+	}
+
+	private static boolean hasColumn(Connection connection, String table, String column)
+			throws SQLException {
+		try (ResultSet rs = connection.getMetaData().getColumns(
+				connection.getCatalog(), null, table, column)) {
+			return rs.next();
+		}
+	}
+
+	private static String placeholders(int n) {
+		StringBuilder sb = new StringBuilder(n * 2);
+		for (int i = 0; i < n; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append('?');
+		}
+		return sb.toString();
+	}
+
 }
@@ -0,0 +1,65 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A message waiting in a client's outbound queue, together with
+ * the Future reporting whether the client received it.
+ */
+public class OutboundMessage {
+
+	// Shared by all recipients of the message
+	private final MessageFrame frame;
+	// Expiration time (milliseconds), 0 if the message never expires
+	private final long expires;
+	private final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+
+
+	public OutboundMessage(MessageFrame frame, long expires) {
+
+		this.frame = frame;
+		this.expires = expires;
+
+	}
+
+
+	public long getMessageID() {
+		return frame.getMessageID();
+	}
+
+
+	public String getText() {
+		return frame.getText();
+	}
+
+
+	public MessageFrame getFrame() {
+		return frame;
+	}
+
+
+	/**
+	 * Checks whether the message is too old to be sent.
+	 * @param now current time (milliseconds)
+	 * @return true if the message has expired
+	 */
+	public boolean isExpired(long now) {
+		return expires != 0 && expires <= now;
+	}
+
+
+	public CompletableFuture<Boolean> getResult() {
+		return result;
+	}
+
+
+	/**
+	 * Reports whether the client received the message. Only the first
+	 * call has any effect.
+	 * @param delivered true if the client acknowledged the message
+	 */
+	void complete(boolean delivered) {
+		result.complete(delivered);
+	}
+
+}
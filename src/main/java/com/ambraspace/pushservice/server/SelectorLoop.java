@@ -0,0 +1,499 @@
+package com.ambraspace.pushservice.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * SelectorLoop is a single thread which owns a number of non-blocking
+ * SocketChannels and multiplexes them through one Selector.
+ * Incoming data is split into lines which are handed to the Session
+ * attached to the channel. Sessions are only ever touched by the loop
+ * thread, so they don't need any synchronization. Other threads talk to
+ * a Session by submitting tasks through execute().
+ */
+public class SelectorLoop extends Thread {
+
+	private static Logger logger = Logger.getLogger("SelectorLoop");
+
+	private static final int READ_BUFFER_SIZE = 4096;
+	// Longer lines are considered a protocol violation
+	private static final int MAX_LINE_LENGTH = 65536;
+	// How often (in milliseconds) are Session deadlines checked
+	private static final long DEADLINE_CHECK_INTERVAL = 250;
+
+	static final Charset CHARSET = Charset.defaultCharset();
+	static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private final Selector selector;
+	// Tasks submitted by other threads
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	// Sessions waiting for a response with a deadline set
+	private final Set<Session> timedSessions = new HashSet<Session>();
+	// One read buffer shared by all Sessions of this loop
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+	private long lastDeadlineCheck = 0;
+
+
+	/**
+	 * Session holds the state of one connection owned by a SelectorLoop.
+	 * Subclasses implement the protocol by reacting on received lines,
+	 * expired deadlines and closed connections.
+	 * All methods (except close() and execute()) must be called from the
+	 * loop thread.
+	 */
+	public static abstract class Session {
+
+		private SelectorLoop loop;
+		private SocketChannel channel;
+		private SelectionKey key;
+
+		// Received bytes not yet dispatched as lines (null when empty)
+		private byte[] inbound;
+		private int inboundLength;
+		// Data waiting for the channel to become writable (null when empty)
+		private Deque<ByteBuffer> outbound;
+
+		private long deadline;
+		private boolean readsSuspended;
+		private boolean closed;
+		// Set when the other side closed the connection cleanly
+		private boolean endOfStream;
+
+
+		/**
+		 * Called once the channel is registered with the loop.
+		 */
+		protected abstract void onOpen();
+
+		/**
+		 * Called for every line received from the channel.
+		 * @param line received line, without line terminator
+		 */
+		protected abstract void onLine(String line);
+
+		/**
+		 * Called when the deadline set by setDeadline() expires.
+		 */
+		protected abstract void onTimeout();
+
+		/**
+		 * Called once after the channel is closed, no matter who closed it.
+		 */
+		protected abstract void onClosed();
+
+
+		public SocketChannel getChannel() {
+			return channel;
+		}
+
+
+		public SelectorLoop getLoop() {
+			return loop;
+		}
+
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+
+		/**
+		 * Tells a connection closed cleanly by the other side from one
+		 * which was reset, timed out or closed by us.
+		 * @return true if the other side closed the connection
+		 */
+		public boolean isEndOfStream() {
+			return endOfStream;
+		}
+
+
+		/**
+		 * Runs a task on this Session's loop thread.
+		 * @param task task to run
+		 */
+		public void execute(Runnable task) {
+			loop.execute(task);
+		}
+
+
+		/**
+		 * Sends one line (line separator is appended).
+		 * @param line line to send
+		 */
+		protected void send(String line) {
+			send(ByteBuffer.wrap((line + LINE_SEPARATOR).getBytes(CHARSET)));
+		}
+
+
+		/**
+		 * Writes as much of the buffers as the channel accepts right now
+		 * (with one gathering write) and queues the rest until the channel
+		 * becomes writable. Buffers are not copied, so they must not be
+		 * modified afterwards.
+		 * @param data data to send
+		 */
+		protected void send(ByteBuffer[] data) {
+			if (closed) {
+				return;
+			}
+			try {
+				int i = 0;
+				if (outbound == null || outbound.isEmpty()) {
+					channel.write(data);
+					while (i < data.length && !data[i].hasRemaining()) {
+						i++;
+					}
+					if (i == data.length) {
+						return;
+					}
+					if (outbound == null) {
+						outbound = new ArrayDeque<ByteBuffer>(data.length - i);
+					}
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+				for (; i < data.length; i++) {
+					outbound.add(data[i]);
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+
+		/**
+		 * Writes as much of the buffer as the channel accepts right now and
+		 * queues the rest until the channel becomes writable.
+		 * @param data data to send
+		 */
+		protected void send(ByteBuffer data) {
+			if (closed) {
+				return;
+			}
+			try {
+				if (outbound == null || outbound.isEmpty()) {
+					channel.write(data);
+					if (!data.hasRemaining()) {
+						return;
+					}
+					if (outbound == null) {
+						outbound = new ArrayDeque<ByteBuffer>(2);
+					}
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+				outbound.add(data);
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+
+		/**
+		 * Sets a deadline after which onTimeout() will be called, unless
+		 * clearDeadline() is called first.
+		 * @param timeout timeout in milliseconds
+		 */
+		protected void setDeadline(long timeout) {
+			deadline = System.currentTimeMillis() + timeout;
+			loop.timedSessions.add(this);
+		}
+
+
+		protected void clearDeadline() {
+			deadline = 0;
+			loop.timedSessions.remove(this);
+		}
+
+
+		/**
+		 * Stops dispatching lines (e.g. while waiting for a database result).
+		 * Data already received is kept and dispatched after resumeReads().
+		 */
+		protected void suspendReads() {
+			if (closed || readsSuspended) {
+				return;
+			}
+			readsSuspended = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+
+
+		protected void resumeReads() {
+			if (closed || !readsSuspended) {
+				return;
+			}
+			readsSuspended = false;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			loop.dispatchLines(this);
+		}
+
+
+		/**
+		 * Closes the connection. Can be called from any thread.
+		 */
+		public void close() {
+			if (Thread.currentThread() != loop) {
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						close();
+					}
+				});
+				return;
+			}
+			if (closed) {
+				return;
+			}
+			closed = true;
+			inbound = null;
+			outbound = null;
+			loop.timedSessions.remove(this);
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.logp(Level.SEVERE, "SelectorLoop.Session", "close()", "Error closing connection!");
+			}
+			onClosed();
+		}
+
+	}
+
+
+	public SelectorLoop(String name) throws IOException {
+		setName(name);
+		setDaemon(true);
+		selector = Selector.open();
+	}
+
+
+	/**
+	 * Hands a connection over to this loop. The channel is switched to
+	 * non-blocking mode and session.onOpen() is called from the loop thread.
+	 * @param channel connection
+	 * @param session Session which will handle the connection
+	 */
+	public void register(final SocketChannel channel, final Session session) {
+		session.loop = this;
+		session.channel = channel;
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.configureBlocking(false);
+					session.key = channel.register(selector, SelectionKey.OP_READ, session);
+				} catch (IOException e) {
+					session.close();
+					return;
+				}
+				session.onOpen();
+			}
+		});
+	}
+
+
+	/**
+	 * Runs a task on the loop thread.
+	 * @param task task to run
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+
+	@Override
+	public void run() {
+
+		while (!Thread.interrupted()) {
+
+			try {
+				selector.select(timedSessions.isEmpty() ? 0 : DEADLINE_CHECK_INTERVAL);
+			} catch (IOException e) {
+				logger.logp(Level.SEVERE, "SelectorLoop", "run()", "Selector failed!");
+				return;
+			}
+
+			runTasks();
+
+			Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+			while (i.hasNext()) {
+				SelectionKey key = i.next();
+				i.remove();
+				Session s = (Session) key.attachment();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isWritable()) {
+					flush(s);
+				}
+				if (key.isValid() && key.isReadable()) {
+					read(s);
+				}
+			}
+
+			checkDeadlines();
+
+		}
+
+	}
+
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.logp(Level.SEVERE, "SelectorLoop", "runTasks()", "Task failed!");
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	private void read(Session s) {
+
+		readBuffer.clear();
+		int n;
+		try {
+			n = s.channel.read(readBuffer);
+		} catch (IOException e) {
+			s.close();
+			return;
+		}
+		if (n < 0) {
+			s.endOfStream = true;
+			s.close();
+			return;
+		}
+		if (n == 0) {
+			return;
+		}
+		readBuffer.flip();
+
+		if (s.inbound == null) {
+			s.inbound = new byte[Math.max(n, 256)];
+		} else if (s.inbound.length - s.inboundLength < n) {
+			byte[] tmp = new byte[Math.max(s.inbound.length * 2, s.inboundLength + n)];
+			System.arraycopy(s.inbound, 0, tmp, 0, s.inboundLength);
+			s.inbound = tmp;
+		}
+		readBuffer.get(s.inbound, s.inboundLength, n);
+		s.inboundLength += n;
+
+		dispatchLines(s);
+
+	}
+
+
+	/**
+	 * Hands all complete lines buffered in the Session to onLine(),
+	 * stopping early if the Session suspends reads or closes.
+	 */
+	private void dispatchLines(Session s) {
+
+		if (s.inbound == null) {
+			return;
+		}
+
+		int start = 0;
+		for (int i = 0; i < s.inboundLength && !s.readsSuspended && !s.closed; i++) {
+			if (s.inbound[i] == '\n') {
+				int end = i;
+				if (end > start && s.inbound[end - 1] == '\r') {
+					end--;
+				}
+				String line = new String(s.inbound, start, end - start, CHARSET);
+				start = i + 1;
+				try {
+					s.onLine(line);
+				} catch (RuntimeException e) {
+					logger.logp(Level.SEVERE, "SelectorLoop", "dispatchLines()", "Error processing line!");
+					e.printStackTrace();
+					s.close();
+				}
+			}
+		}
+
+		if (s.closed) {
+			return;
+		}
+
+		int remaining = s.inboundLength - start;
+		if (remaining == 0) {
+			s.inbound = null;
+			s.inboundLength = 0;
+		} else if (remaining > MAX_LINE_LENGTH) {
+			logger.logp(Level.WARNING, "SelectorLoop", "dispatchLines()", "Line too long! Closing connection.");
+			s.close();
+		} else if (start > 0) {
+			System.arraycopy(s.inbound, start, s.inbound, 0, remaining);
+			s.inboundLength = remaining;
+		}
+
+	}
+
+
+	private void flush(Session s) {
+
+		try {
+			while (s.outbound != null && !s.outbound.isEmpty()) {
+				s.channel.write(s.outbound.toArray(new ByteBuffer[s.outbound.size()]));
+				while (!s.outbound.isEmpty() && !s.outbound.peek().hasRemaining()) {
+					s.outbound.poll();
+				}
+				if (!s.outbound.isEmpty()) {
+					return;
+				}
+			}
+			s.outbound = null;
+			s.key.interestOps(s.key.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			s.close();
+		}
+
+	}
+
+
+	private void checkDeadlines() {
+
+		long now = System.currentTimeMillis();
+
+		if (timedSessions.isEmpty() || now - lastDeadlineCheck < DEADLINE_CHECK_INTERVAL) {
+			return;
+		}
+		lastDeadlineCheck = now;
+
+		List<Session> expired = new ArrayList<Session>();
+		for (Session s : timedSessions) {
+			if (s.deadline <= now) {
+				expired.add(s);
+			}
+		}
+		for (Session s : expired) {
+			s.clearDeadline();
+			s.onTimeout();
+		}
+
+	}
+
+}
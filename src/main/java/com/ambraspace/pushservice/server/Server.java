@@ -6,13 +6,31 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.channels.Channels;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,7 +45,14 @@ public class Server {
 	
 	private final ServerOptions options;
 	private final DBManager dbManager;
+	private final DBManager meteredDbManager;
+	private final Metrics metrics = new Metrics();
 	private final ConnectionManager connectionManager;
+	// null if this server is not a cluster node
+	private final Cluster cluster;
+	
+	// Marks end of requests on a service connection
+	private static final Future<String> END = CompletableFuture.completedFuture(null);
 	
 	
 	private class Listener extends Thread {
@@ -68,11 +93,201 @@ public class Server {
 	}
 	
 	
+	/**
+	 * MetricsListener answers every HTTP request on the metrics port with
+	 * the server's metrics in plain text (Prometheus exposition format),
+	 * so they can be scraped without speaking the service protocol.
+	 */
+	private class MetricsListener extends Thread {
+		
+		// Time a scraper has to send its request
+		private static final int READ_TIMEOUT = 5000;
+		
+		public MetricsListener() {
+			setName("Server.MetricsListener");
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			
+			try (ServerSocket ss = new ServerSocket(options.getMetricsPort())) {
+				
+				while (!Thread.interrupted()) {
+					try (Socket s = ss.accept()) {
+						s.setSoTimeout(READ_TIMEOUT);
+						BufferedReader in = new BufferedReader(
+								new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+						// Skip the request, whatever it is
+						String line;
+						while ((line = in.readLine()) != null && !line.isEmpty());
+						byte[] body = metrics.toText().getBytes(StandardCharsets.UTF_8);
+						OutputStream out = s.getOutputStream();
+						out.write(("HTTP/1.1 200 OK\r\n"
+								+ "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+								+ "Content-Length: " + body.length + "\r\n"
+								+ "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+						out.write(body);
+						out.flush();
+					} catch (IOException e) {
+						logger.logp(Level.FINE, "Server.MetricsListener", "run()", "Error serving metrics: " + e.getMessage());
+					}
+				}
+				
+			} catch (IOException e) {
+				logger.logp(Level.SEVERE, "Server.MetricsListener", "run()", "Error starting MetricsListener.");
+			}
+			
+		}
+		
+	}
+	
+	
+	/**
+	 * ServiceListener accepts connections from backends on the service port.
+	 * A connection stays open for as long as the backend wishes, and carries
+	 * any number of newline-delimited JSON requests. Requests are processed
+	 * by a pool of serviceThreadPoolSize workers, so requests sent back to
+	 * back (without waiting for responses) are processed in parallel, but
+	 * responses are always returned in the order of requests.
+	 */
 	private class ServiceListener extends Thread {
 		
+		// Maximum number of requests waiting for their responses, per connection
+		private static final int MAX_PIPELINED_REQUESTS = 1024;
+		
+		private final ExecutorService workers;
+		
+		
+		/**
+		 * Reads requests from one connection and hands them over to workers.
+		 * Responses are written by a separate ResponseWriter thread.
+		 */
+		private class ServiceConnection extends Thread {
+			
+			private final SocketChannel connection;
+			// Responses in the order of requests; END marks end of input
+			private final BlockingQueue<Future<String>> responses =
+					new ArrayBlockingQueue<Future<String>>(MAX_PIPELINED_REQUESTS);
+			
+			public ServiceConnection(SocketChannel connection) {
+				this.connection = connection;
+				setName("Server.ServiceConnection");
+				setDaemon(true);
+			}
+			
+			@Override
+			public void run() {
+				
+				Thread writer = new ResponseWriter();
+				writer.start();
+				
+				try {
+					/*
+					 * Reader and writer go to the channel directly, so
+					 * they don't block each other.
+					 */
+					BufferedReader input = new BufferedReader(
+							Channels.newReader(connection, SelectorLoop.CHARSET.newDecoder(), -1));
+					String data;
+					while ((data = input.readLine()) != null) {
+						final String request = data;
+						responses.put(workers.submit(new Callable<String>() {
+							@Override
+							public String call() {
+								return processData(request);
+							}
+						}));
+					}
+				} catch (IOException e) {
+					logger.logp(Level.FINE, "Server.ServiceConnection", "run()", "Connection closed.");
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (RejectedExecutionException e) {
+					logger.logp(Level.WARNING, "Server.ServiceConnection", "run()", "Service workers shut down.");
+				}
+				
+				try {
+					responses.put(END);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					close();
+				}
+				
+			}
+			
+			
+			private void close() {
+				try {
+					connection.close();
+				} catch (IOException e) {
+					logger.logp(Level.WARNING, "Server.ServiceConnection", "close()", "Error closing connection!");
+				}
+			}
+			
+			
+			/**
+			 * Writes responses in the order of requests. Output is flushed
+			 * only when there are no more responses ready.
+			 */
+			private class ResponseWriter extends Thread {
+				
+				public ResponseWriter() {
+					setName("Server.ServiceConnection.ResponseWriter");
+					setDaemon(true);
+				}
+				
+				@Override
+				public void run() {
+					
+					Writer output = Channels.newWriter(connection, SelectorLoop.CHARSET.newEncoder(), -1);
+					
+					try {
+						Future<String> response;
+						while ((response = responses.take()) != END) {
+							String result;
+							try {
+								result = response.get();
+							} catch (ExecutionException e) {
+								logger.logp(Level.SEVERE, "Server.ServiceConnection.ResponseWriter", "run()", "Error processing request!");
+								result = "ERR";
+							}
+							output.write(result);
+							output.write(SelectorLoop.LINE_SEPARATOR);
+							if (responses.isEmpty()) {
+								output.flush();
+							}
+						}
+						output.flush();
+					} catch (IOException e) {
+						logger.logp(Level.FINE, "Server.ServiceConnection.ResponseWriter", "run()", "Connection closed.");
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						close();
+					}
+					
+				}
+				
+			}
+			
+		}
+		
+		
 		public ServiceListener() {
 			setName("Server.ServiceListener");
 			setDaemon(true);
+			workers = Executors.newFixedThreadPool(
+					options.getServiceThreadPoolSize(),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r);
+							t.setDaemon(true);
+							t.setName("Server.ServiceWorker");
+							return t;
+						}
+					});
 		}
 
 		@Override
@@ -82,25 +297,14 @@ public class Server {
 				
 				ssc.bind(new InetSocketAddress(options.getServicePort()));
 				
-				SocketChannel connection = null;
-				BufferedReader input = null;
-				PrintWriter output = null;
-				String data = null;
-				
 				while (!Thread.interrupted()) {
-					connection = ssc.accept();
-					input = new BufferedReader(
-							new InputStreamReader(
-									Channels.newInputStream(connection)));
-					output = new PrintWriter(
-							Channels.newOutputStream(connection), true);
-					data = input.readLine();
-					output.println(processData(data));
-					connection.close();
+					new ServiceConnection(ssc.accept()).start();
 				}
 
 			} catch (IOException e) {
 				logger.logp(Level.SEVERE, "Server.ServiceListener", "run()", "Error starting ServiceListener.");
+			} finally {
+				workers.shutdown();
 			}
 			
 		}
@@ -108,6 +312,17 @@ public class Server {
 
 		private String processData(String data) {
 			
+			try {
+				// Message submissions may be huge, skip the JSONObject tree
+				SubmissionParser submission = new SubmissionParser(data);
+				if (submission.parse()) {
+					logger.logp(Level.INFO, "Server.ServiceListener", "processData()", data);
+					return submit(submission.getMessage());
+				}
+			} catch (JSONException e) {
+				// Maybe JSONObject is more forgiving
+			}
+			
 			JSONObject jSONdata = null;
 			try {
 
@@ -118,14 +333,26 @@ public class Server {
 						Message m = Message.parseJSONMessage(
 								jSONdata.getJSONObject("message"));
 						logger.logp(Level.INFO, "Server.ServiceListener", "processData()", jSONdata.toString());
-						connectionManager.processMessage(m);
-						return "OK";
+						return submit(m);
 					case "command":
 						switch (jSONdata.getString("command")) {
 							case "getRegisteredClients":
-								Set<String> ids = connectionManager.getRegisteredClients();
+								Set<String> ids;
+								if (jSONdata.has("application")) {
+									ids = connectionManager.getRegisteredClients(
+											jSONdata.getString("application"),
+											jSONdata.has("topic") ? jSONdata.getString("topic") : null);
+								} else {
+									ids = connectionManager.getRegisteredClients();
+								}
 								JSONArray arr = new JSONArray(ids);
 								return arr.toString();
+							case "invalidateAuthorization":
+								return invalidateAuthorization(jSONdata);
+							case "getMetrics":
+								return metrics.toJSON().toString();
+							case "locateClient":
+								return locateClient(jSONdata.getString("clientID"));
 							default:
 								logger.logp(Level.SEVERE, "Server.ServiceListener", "processData()", "Unknown command");
 								return "ERR";
@@ -144,6 +371,73 @@ public class Server {
 		}
 		
 		
+		/**
+		 * Hands a submitted message over for delivery (a null message,
+		 * i.e. one which could not be parsed, is ignored). In cluster mode
+		 * recipients connected to other nodes get it through them.
+		 */
+		private String submit(Message m) {
+			
+			if (cluster == null) {
+				deliver(m);
+			} else {
+				store(m);
+				cluster.route(m);
+			}
+			return "OK";
+			
+		}
+		
+		
+		/**
+		 * Tells whether a client is connected, and in cluster mode to
+		 * which node: {"clientID":..,"online":..,"node":..}.
+		 */
+		private String locateClient(String clientUID) {
+			
+			JSONObject ret = new JSONObject();
+			ret.put("clientID", clientUID);
+			if (cluster == null) {
+				ret.put("online", connectionManager.isRegistered(clientUID));
+				return ret.toString();
+			}
+			String node = cluster.locate(clientUID);
+			ret.put("online", node != null);
+			if (node != null) {
+				ret.put("node", node);
+			}
+			return ret.toString();
+			
+		}
+		
+		
+		/**
+		 * Removes cached authorization of a client ("clientID") or of all
+		 * clients of an application ("applicationID"), e.g. after it has been
+		 * disabled. Without either of them the whole cache is cleared.
+		 * Only this node's cache is affected; in cluster mode the command
+		 * has to be sent to every node.
+		 */
+		private String invalidateAuthorization(JSONObject jSONdata) {
+			
+			if (!(dbManager instanceof CachingDBManager)) {
+				// Nothing is cached
+				return "OK";
+			}
+			CachingDBManager cache = (CachingDBManager) dbManager;
+			
+			if (jSONdata.has("clientID")) {
+				cache.invalidateClient(jSONdata.getString("clientID"));
+			} else if (jSONdata.has("applicationID")) {
+				cache.invalidateApplication(jSONdata.getString("applicationID"));
+			} else {
+				cache.invalidateAll();
+			}
+			return "OK";
+			
+		}
+		
+		
 	}
 
 	
@@ -158,9 +452,40 @@ public class Server {
 		} else {
 			this.dbManager = dbManager;
 		}
+		meteredDbManager = new MeteredDBManager(dbManager, metrics);
 		connectionManager = new ConnectionManager(this);
+		if (this.options.getClusterNode().isEmpty()) {
+			cluster = null;
+		} else {
+			try {
+				cluster = new Cluster(this, this.options.getClusterNode(),
+						parseNodes(this.options.getClusterNodes()));
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot start cluster node " + this.options.getClusterNode(), e);
+			}
+		}
 		new Listener().start();
 		new ServiceListener().start();
+		if (this.options.getMetricsPort() > 0) {
+			new MetricsListener().start();
+		}
+	}
+	
+	
+	
+	/**
+	 * Shuts the server down cleanly, making sure results of finished
+	 * deliveries are written to the database.
+	 */
+	public void shutdown() {
+		logger.logp(Level.INFO, "Server", "shutdown()", "Shutting down...");
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+		connectionManager.shutdown();
+		if (dbManager instanceof InMemoryDBManager) {
+			((InMemoryDBManager) dbManager).close();
+		}
 	}
 	
 	
@@ -173,7 +498,63 @@ public class Server {
 
 
 	public DBManager getDbManager() {
-		return dbManager;
+		return meteredDbManager;
+	}
+
+
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+
+
+	ConnectionManager getConnectionManager() {
+		return connectionManager;
+	}
+
+
+
+	Cluster getCluster() {
+		return cluster;
+	}
+	
+	
+	
+	/**
+	 * Hands a message over for delivery to clients connected to this
+	 * server (a null message, i.e. one which could not be parsed, is ignored).
+	 * @param m message
+	 */
+	void deliver(Message m) {
+		
+		store(m);
+		connectionManager.processMessage(m);
+		
+	}
+	
+	
+	
+	private void store(Message m) {
+		
+		if (m != null) {
+			meteredDbManager.storeMessage(m);
+		}
+		
+	}
+	
+	
+	
+	private static List<String> parseNodes(String nodes) {
+		
+		List<String> ret = new ArrayList<String>();
+		for (String node : nodes.split(",")) {
+			if (!node.trim().isEmpty()) {
+				ret.add(node.trim());
+			}
+		}
+		return ret;
+		
 	}
 
 	
@@ -194,19 +575,50 @@ public class Server {
 
 		final String OPTION_PORT = "port";
 		final String OPTION_SERVICE_PORT = "servicePort";
+		final String OPTION_SERVICE_THREAD_POOL_SIZE = "serviceThreadPoolSize";
 		final String OPTION_MAX_CLIENTS = "maxClients";
 		final String OPTION_TIMED_THREAD_POOL_SIZE = "timedThreadPoolSize";
 		final String OPTION_GENERAL_THREAD_POOL_SIZE = "generalThreadPoolSize";
 		final String OPTION_KEEP_ALIVE_TIMEOUT = "keepAliveTimeout";
+		final String OPTION_KEEP_ALIVE_MIN_TIMEOUT = "keepAliveMinTimeout";
+		final String OPTION_KEEP_ALIVE_MAX_TIMEOUT = "keepAliveMaxTimeout";
 		final String OPTION_CLIENT_RESPONSE_TIMEOUT = "clientResponseTimeout";
+		final String OPTION_PING_RESPONSE_TIMEOUT = "pingResponseTimeout";
 		final String OPTION_DELAYED_MESSAGES_QTY = "clientMessagesQty";
-
+		final String OPTION_BACKLOG_PAGE_SIZE = "backlogPageSize";
+		final String OPTION_DELIVERY_WINDOW = "deliveryWindow";
+		final String OPTION_FAN_OUT_WINDOW = "fanOutWindow";
+		final String OPTION_OUTBOUND_QUEUE_SIZE = "outboundQueueSize";
+		final String OPTION_IO_MODE = "ioMode";
+		final String OPTION_SELECTOR_THREADS = "selectorThreads";
+		final String OPTION_HANDSHAKE_THREAD_POOL_SIZE = "handshakeThreadPoolSize";
+		final String OPTION_JOURNAL_CAPACITY = "journalCapacity";
+		final String OPTION_JOURNAL_BATCH_SIZE = "journalBatchSize";
+		final String OPTION_JOURNAL_FLUSH_INTERVAL = "journalFlushInterval";
+		final String OPTION_METRICS_PORT = "metricsPort";
+		final String OPTION_HANDSHAKE_RATE = "handshakeRate";
+		final String OPTION_HANDSHAKE_BURST = "handshakeBurst";
+		final String OPTION_MAX_PENDING_HANDSHAKES = "maxPendingHandshakes";
+		final String OPTION_CLUSTER_NODE = "clusterNode";
+		final String OPTION_CLUSTER_NODES = "clusterNodes";
+
+		final String DB_TYPE = "dbType";
+		final String DB_AUTO_REGISTER = "dbAutoRegister";
+		final String DB_SNAPSHOT_FILE = "dbSnapshotFile";
+		final String DB_SNAPSHOT_INTERVAL = "dbSnapshotInterval";
+		final String DB_MESSAGE_RETENTION = "dbMessageRetention";
 		final String DB_HOST = "dbHost";
 		final String DB_PORT = "dbPort";
 		final String DB_NAME = "dbName";
 		final String DB_USER = "dbUser";
 		final String DB_PASSWORD = "dbPassword";
 		final String ENCRYPTION_KEY = "encryptionKey";
+		final String DB_POOL_SIZE = "dbPoolSize";
+		final String DB_POOL_VALIDATION_IDLE = "dbPoolValidationIdle";
+		final String DB_POOL_BORROW_TIMEOUT = "dbPoolBorrowTimeout";
+		final String AUTH_CACHE_SIZE = "authCacheSize";
+		final String AUTH_CACHE_TTL = "authCacheTTL";
+		final String AUTH_CACHE_NEGATIVE_TTL = "authCacheNegativeTTL";
 
 		Properties properties = new Properties();
 		ServerOptions serverOptions = new ServerOptions();
@@ -237,6 +649,8 @@ public class Server {
 				properties.getProperty(OPTION_PORT, "" + serverOptions.getPort()));
 		properties.setProperty(OPTION_SERVICE_PORT,
 				properties.getProperty(OPTION_SERVICE_PORT, "" + serverOptions.getServicePort()));
+		properties.setProperty(OPTION_SERVICE_THREAD_POOL_SIZE,
+				properties.getProperty(OPTION_SERVICE_THREAD_POOL_SIZE, "" + serverOptions.getServiceThreadPoolSize()));
 		properties.setProperty(OPTION_MAX_CLIENTS,
 				properties.getProperty(OPTION_MAX_CLIENTS, "" + serverOptions.getMaxClients()));
 		properties.setProperty(OPTION_TIMED_THREAD_POOL_SIZE,
@@ -245,11 +659,59 @@ public class Server {
 				properties.getProperty(OPTION_GENERAL_THREAD_POOL_SIZE, "" + serverOptions.getGeneralThreadPoolSize()));
 		properties.setProperty(OPTION_KEEP_ALIVE_TIMEOUT,
 				properties.getProperty(OPTION_KEEP_ALIVE_TIMEOUT, "" + serverOptions.getKeepAliveTimeout()));
+		properties.setProperty(OPTION_KEEP_ALIVE_MIN_TIMEOUT,
+				properties.getProperty(OPTION_KEEP_ALIVE_MIN_TIMEOUT, "" + serverOptions.getKeepAliveMinTimeout()));
+		properties.setProperty(OPTION_KEEP_ALIVE_MAX_TIMEOUT,
+				properties.getProperty(OPTION_KEEP_ALIVE_MAX_TIMEOUT, "" + serverOptions.getKeepAliveMaxTimeout()));
 		properties.setProperty(OPTION_CLIENT_RESPONSE_TIMEOUT,
 				properties.getProperty(OPTION_CLIENT_RESPONSE_TIMEOUT, "" + serverOptions.getClientResponseTimeout()));
+		properties.setProperty(OPTION_PING_RESPONSE_TIMEOUT,
+				properties.getProperty(OPTION_PING_RESPONSE_TIMEOUT, "" + serverOptions.getPingResponseTimeout()));
 		properties.setProperty(OPTION_DELAYED_MESSAGES_QTY,
 				properties.getProperty(OPTION_DELAYED_MESSAGES_QTY, "" + serverOptions.getDelayedMessagesQty()));
-
+		properties.setProperty(OPTION_BACKLOG_PAGE_SIZE,
+				properties.getProperty(OPTION_BACKLOG_PAGE_SIZE, "" + serverOptions.getBacklogPageSize()));
+		properties.setProperty(OPTION_DELIVERY_WINDOW,
+				properties.getProperty(OPTION_DELIVERY_WINDOW, "" + serverOptions.getDeliveryWindow()));
+		properties.setProperty(OPTION_FAN_OUT_WINDOW,
+				properties.getProperty(OPTION_FAN_OUT_WINDOW, "" + serverOptions.getFanOutWindow()));
+		properties.setProperty(OPTION_OUTBOUND_QUEUE_SIZE,
+				properties.getProperty(OPTION_OUTBOUND_QUEUE_SIZE, "" + serverOptions.getOutboundQueueSize()));
+		properties.setProperty(OPTION_IO_MODE,
+				properties.getProperty(OPTION_IO_MODE, serverOptions.getIoMode().name().toLowerCase()));
+		properties.setProperty(OPTION_SELECTOR_THREADS,
+				properties.getProperty(OPTION_SELECTOR_THREADS, "" + serverOptions.getSelectorThreads()));
+		properties.setProperty(OPTION_HANDSHAKE_THREAD_POOL_SIZE,
+				properties.getProperty(OPTION_HANDSHAKE_THREAD_POOL_SIZE, "" + serverOptions.getHandshakeThreadPoolSize()));
+		properties.setProperty(OPTION_JOURNAL_CAPACITY,
+				properties.getProperty(OPTION_JOURNAL_CAPACITY, "" + serverOptions.getJournalCapacity()));
+		properties.setProperty(OPTION_JOURNAL_BATCH_SIZE,
+				properties.getProperty(OPTION_JOURNAL_BATCH_SIZE, "" + serverOptions.getJournalBatchSize()));
+		properties.setProperty(OPTION_JOURNAL_FLUSH_INTERVAL,
+				properties.getProperty(OPTION_JOURNAL_FLUSH_INTERVAL, "" + serverOptions.getJournalFlushInterval()));
+		properties.setProperty(OPTION_METRICS_PORT,
+				properties.getProperty(OPTION_METRICS_PORT, "" + serverOptions.getMetricsPort()));
+		properties.setProperty(OPTION_HANDSHAKE_RATE,
+				properties.getProperty(OPTION_HANDSHAKE_RATE, "" + serverOptions.getHandshakeRate()));
+		properties.setProperty(OPTION_HANDSHAKE_BURST,
+				properties.getProperty(OPTION_HANDSHAKE_BURST, "" + serverOptions.getHandshakeBurst()));
+		properties.setProperty(OPTION_MAX_PENDING_HANDSHAKES,
+				properties.getProperty(OPTION_MAX_PENDING_HANDSHAKES, "" + serverOptions.getMaxPendingHandshakes()));
+		properties.setProperty(OPTION_CLUSTER_NODE,
+				properties.getProperty(OPTION_CLUSTER_NODE, serverOptions.getClusterNode()));
+		properties.setProperty(OPTION_CLUSTER_NODES,
+				properties.getProperty(OPTION_CLUSTER_NODES, serverOptions.getClusterNodes()));
+
+		properties.setProperty(DB_TYPE,
+				properties.getProperty(DB_TYPE, "mysql"));
+		properties.setProperty(DB_AUTO_REGISTER,
+				properties.getProperty(DB_AUTO_REGISTER, "false"));
+		properties.setProperty(DB_SNAPSHOT_FILE,
+				properties.getProperty(DB_SNAPSHOT_FILE, ""));
+		properties.setProperty(DB_SNAPSHOT_INTERVAL,
+				properties.getProperty(DB_SNAPSHOT_INTERVAL, "" + InMemoryDBManager.DEFAULT_SNAPSHOT_INTERVAL));
+		properties.setProperty(DB_MESSAGE_RETENTION,
+				properties.getProperty(DB_MESSAGE_RETENTION, "" + InMemoryDBManager.DEFAULT_MESSAGE_RETENTION));
 		properties.setProperty(DB_HOST,
 				properties.getProperty(DB_HOST, "localhost"));
 		properties.setProperty(DB_PORT,
@@ -262,6 +724,18 @@ public class Server {
 				properties.getProperty(DB_PASSWORD, ""));
 		properties.setProperty(ENCRYPTION_KEY,
 				properties.getProperty(ENCRYPTION_KEY, "encryption_key"));
+		properties.setProperty(DB_POOL_SIZE,
+				properties.getProperty(DB_POOL_SIZE, "" + MySQLDBManager.DEFAULT_POOL_SIZE));
+		properties.setProperty(DB_POOL_VALIDATION_IDLE,
+				properties.getProperty(DB_POOL_VALIDATION_IDLE, "" + MySQLDBManager.DEFAULT_POOL_VALIDATION_IDLE));
+		properties.setProperty(DB_POOL_BORROW_TIMEOUT,
+				properties.getProperty(DB_POOL_BORROW_TIMEOUT, "" + MySQLDBManager.DEFAULT_POOL_BORROW_TIMEOUT));
+		properties.setProperty(AUTH_CACHE_SIZE,
+				properties.getProperty(AUTH_CACHE_SIZE, "" + CachingDBManager.DEFAULT_SIZE));
+		properties.setProperty(AUTH_CACHE_TTL,
+				properties.getProperty(AUTH_CACHE_TTL, "" + CachingDBManager.DEFAULT_TTL));
+		properties.setProperty(AUTH_CACHE_NEGATIVE_TTL,
+				properties.getProperty(AUTH_CACHE_NEGATIVE_TTL, "" + CachingDBManager.DEFAULT_NEGATIVE_TTL));
 
 		try {
 
@@ -279,6 +753,8 @@ public class Server {
 				properties.getProperty(OPTION_PORT)));
 		serverOptions.setServicePort(Integer.parseInt(
 				properties.getProperty(OPTION_SERVICE_PORT)));
+		serverOptions.setServiceThreadPoolSize(Integer.parseInt(
+				properties.getProperty(OPTION_SERVICE_THREAD_POOL_SIZE)));
 		serverOptions.setMaxClients(Integer.parseInt(
 				properties.getProperty(OPTION_MAX_CLIENTS)));
 		serverOptions.setTimedThreadPoolSize(Integer.parseInt(
@@ -287,27 +763,94 @@ public class Server {
 				properties.getProperty(OPTION_GENERAL_THREAD_POOL_SIZE)));
 		serverOptions.setKeepAliveTimeout(Integer.parseInt(
 				properties.getProperty(OPTION_KEEP_ALIVE_TIMEOUT)));
+		serverOptions.setKeepAliveMinTimeout(Integer.parseInt(
+				properties.getProperty(OPTION_KEEP_ALIVE_MIN_TIMEOUT)));
+		serverOptions.setKeepAliveMaxTimeout(Integer.parseInt(
+				properties.getProperty(OPTION_KEEP_ALIVE_MAX_TIMEOUT)));
 		serverOptions.setClientResponseTimeout(Integer.parseInt(
 				properties.getProperty(OPTION_CLIENT_RESPONSE_TIMEOUT)));
+		serverOptions.setPingResponseTimeout(Integer.parseInt(
+				properties.getProperty(OPTION_PING_RESPONSE_TIMEOUT)));
 		serverOptions.setDelayedMessagesQty(Integer.parseInt(
 				properties.getProperty(OPTION_DELAYED_MESSAGES_QTY)));
+		serverOptions.setBacklogPageSize(Integer.parseInt(
+				properties.getProperty(OPTION_BACKLOG_PAGE_SIZE)));
+		serverOptions.setDeliveryWindow(Integer.parseInt(
+				properties.getProperty(OPTION_DELIVERY_WINDOW)));
+		serverOptions.setFanOutWindow(Integer.parseInt(
+				properties.getProperty(OPTION_FAN_OUT_WINDOW)));
+		serverOptions.setOutboundQueueSize(Integer.parseInt(
+				properties.getProperty(OPTION_OUTBOUND_QUEUE_SIZE)));
+		serverOptions.setIoMode(ServerOptions.IOMode.valueOf(
+				properties.getProperty(OPTION_IO_MODE).toUpperCase()));
+		serverOptions.setSelectorThreads(Integer.parseInt(
+				properties.getProperty(OPTION_SELECTOR_THREADS)));
+		serverOptions.setHandshakeThreadPoolSize(Integer.parseInt(
+				properties.getProperty(OPTION_HANDSHAKE_THREAD_POOL_SIZE)));
+		serverOptions.setJournalCapacity(Integer.parseInt(
+				properties.getProperty(OPTION_JOURNAL_CAPACITY)));
+		serverOptions.setJournalBatchSize(Integer.parseInt(
+				properties.getProperty(OPTION_JOURNAL_BATCH_SIZE)));
+		serverOptions.setJournalFlushInterval(Integer.parseInt(
+				properties.getProperty(OPTION_JOURNAL_FLUSH_INTERVAL)));
+		serverOptions.setMetricsPort(Integer.parseInt(
+				properties.getProperty(OPTION_METRICS_PORT)));
+		serverOptions.setHandshakeRate(Integer.parseInt(
+				properties.getProperty(OPTION_HANDSHAKE_RATE)));
+		serverOptions.setHandshakeBurst(Integer.parseInt(
+				properties.getProperty(OPTION_HANDSHAKE_BURST)));
+		serverOptions.setMaxPendingHandshakes(Integer.parseInt(
+				properties.getProperty(OPTION_MAX_PENDING_HANDSHAKES)));
+		serverOptions.setClusterNode(properties.getProperty(OPTION_CLUSTER_NODE).trim());
+		serverOptions.setClusterNodes(properties.getProperty(OPTION_CLUSTER_NODES));
 
 		DBManager dbManager = null;
 		
 		try {
-			dbManager = new MySQLDBManager(
-					properties.getProperty(DB_HOST),
-					Integer.parseInt(properties.getProperty(DB_PORT)),
-					properties.getProperty(DB_NAME),
-					properties.getProperty(DB_USER),
-					properties.getProperty(DB_PASSWORD),
-					properties.getProperty(ENCRYPTION_KEY));
-		} catch (NumberFormatException | InstantiationException e) {
+			if ("memory".equalsIgnoreCase(properties.getProperty(DB_TYPE))) {
+				boolean autoRegister = Boolean.parseBoolean(properties.getProperty(DB_AUTO_REGISTER));
+				String snapshotFile = properties.getProperty(DB_SNAPSHOT_FILE);
+				dbManager = new InMemoryDBManager(
+						autoRegister,
+						snapshotFile.isEmpty() ? null : new File(snapshotFile),
+						Integer.parseInt(properties.getProperty(DB_SNAPSHOT_INTERVAL)),
+						Integer.parseInt(properties.getProperty(DB_MESSAGE_RETENTION)),
+						TimeUnit.SECONDS);
+			} else {
+				dbManager = new MySQLDBManager(
+						properties.getProperty(DB_HOST),
+						Integer.parseInt(properties.getProperty(DB_PORT)),
+						properties.getProperty(DB_NAME),
+						properties.getProperty(DB_USER),
+						properties.getProperty(DB_PASSWORD),
+						properties.getProperty(ENCRYPTION_KEY),
+						Integer.parseInt(properties.getProperty(DB_POOL_SIZE)),
+						Integer.parseInt(properties.getProperty(DB_POOL_VALIDATION_IDLE)),
+						Integer.parseInt(properties.getProperty(DB_POOL_BORROW_TIMEOUT)));
+				// authCacheSize=0 disables the authorization cache
+				int authCacheSize = Integer.parseInt(properties.getProperty(AUTH_CACHE_SIZE));
+				if (authCacheSize > 0) {
+					dbManager = new CachingDBManager(
+							dbManager,
+							authCacheSize,
+							Integer.parseInt(properties.getProperty(AUTH_CACHE_TTL)),
+							Integer.parseInt(properties.getProperty(AUTH_CACHE_NEGATIVE_TTL)),
+							TimeUnit.SECONDS);
+				}
+			}
+		} catch (NumberFormatException | InstantiationException | IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
 		
-		new Server(serverOptions, dbManager);
+		final Server server = new Server(serverOptions, dbManager);
+		
+		Runtime.getRuntime().addShutdownHook(new Thread("Server.ShutdownHook") {
+			@Override
+			public void run() {
+				server.shutdown();
+			}
+		});
 	
 	}
 	 
@@ -2,13 +2,47 @@ package com.ambraspace.pushservice.server;
 
 public class ServerOptions {
 
+	/**
+	 * How client connections are served.
+	 * BLOCKING - every exchange with a client occupies a thread of the
+	 * timed thread pool.
+	 * NIO - all connections are multiplexed by a few SelectorLoop threads.
+	 * VIRTUAL - like BLOCKING, but every exchange runs in a virtual thread
+	 * of its own (Java 21 or newer), so thread pool sizes don't apply.
+	 */
+	public enum IOMode {
+		BLOCKING,
+		NIO,
+		VIRTUAL
+	}
+
+	private int backlogPageSize = 100; // delayed messages read from the database at once
 	private int clientResponseTimeout = 20; // seconds
+	private String clusterNode = ""; // host:port of this node's cluster links, empty for no cluster
+	private String clusterNodes = ""; // comma separated host:port of all nodes
 	private int delayedMessagesQty = -1; // -1 for all
+	private int deliveryWindow = 16; // messages in flight per client (protocol version 2)
+	private int fanOutWindow = 10000; // deliveries pending per message
 	private int generalThreadPoolSize = 10;
+	private int handshakeBurst = 100; // handshakes which may start at once
+	private int handshakeRate = 0; // handshakes started per second, 0 for no limit
+	private int handshakeThreadPoolSize = 10; // database work of NIO handshakes
+	private IOMode ioMode = IOMode.BLOCKING;
+	private int journalBatchSize = 5000;
+	private int journalCapacity = 100000;
+	private int journalFlushInterval = 1000; // milliseconds
+	private int keepAliveMaxTimeout = 600; // seconds, longest adaptive keep-alive
+	private int keepAliveMinTimeout = 30; // seconds, shortest adaptive keep-alive
 	private int keepAliveTimeout = 120; // seconds;
 	private int maxClients = 1000;
+	private int maxPendingHandshakes = 1000; // 0 for no limit
+	private int metricsPort = 0; // 0 for no metrics endpoint
+	private int outboundQueueSize = 256; // messages waiting per client
+	private int pingResponseTimeout = 20; // seconds
 	private int port = 12345;
+	private int selectorThreads = 0; // 0 for one per core
 	private int servicePort = 12346;
+	private int serviceThreadPoolSize = 4;
 	private int timedThreadPoolSize = 40;
 	
 	
@@ -21,30 +55,120 @@ public class ServerOptions {
 
 		this.port = options.getPort();
 		this.servicePort = options.getServicePort();
+		this.serviceThreadPoolSize = options.getServiceThreadPoolSize();
 		this.maxClients = options.getMaxClients();
 		this.timedThreadPoolSize = options.getTimedThreadPoolSize();
 		this.generalThreadPoolSize = options.getGeneralThreadPoolSize();
 		this.keepAliveTimeout = options.getKeepAliveTimeout();
+		this.keepAliveMinTimeout = options.getKeepAliveMinTimeout();
+		this.keepAliveMaxTimeout = options.getKeepAliveMaxTimeout();
 		this.clientResponseTimeout = options.getClientResponseTimeout();
 		this.delayedMessagesQty = options.getDelayedMessagesQty();
+		this.backlogPageSize = options.getBacklogPageSize();
+		this.deliveryWindow = options.getDeliveryWindow();
+		this.fanOutWindow = options.getFanOutWindow();
+		this.outboundQueueSize = options.getOutboundQueueSize();
+		this.ioMode = options.getIoMode();
+		this.selectorThreads = options.getSelectorThreads();
+		this.handshakeThreadPoolSize = options.getHandshakeThreadPoolSize();
+		this.pingResponseTimeout = options.getPingResponseTimeout();
+		this.journalBatchSize = options.getJournalBatchSize();
+		this.journalCapacity = options.getJournalCapacity();
+		this.journalFlushInterval = options.getJournalFlushInterval();
+		this.metricsPort = options.getMetricsPort();
+		this.handshakeBurst = options.getHandshakeBurst();
+		this.handshakeRate = options.getHandshakeRate();
+		this.maxPendingHandshakes = options.getMaxPendingHandshakes();
+		this.clusterNode = options.getClusterNode();
+		this.clusterNodes = options.getClusterNodes();
 		
 	}
 
+	public int getBacklogPageSize() {
+		return backlogPageSize;
+	}
+
+
 	public int getClientResponseTimeout() {
 		return clientResponseTimeout;
 	}
 
 
+	public String getClusterNode() {
+		return clusterNode;
+	}
+
+
+	public String getClusterNodes() {
+		return clusterNodes;
+	}
+
+
 	public int getDelayedMessagesQty() {
 		return delayedMessagesQty;
 	}
 
 
+	public int getDeliveryWindow() {
+		return deliveryWindow;
+	}
+
+
+	public int getFanOutWindow() {
+		return fanOutWindow;
+	}
+
+
 	public int getGeneralThreadPoolSize() {
 		return generalThreadPoolSize;
 	}
 
 
+	public int getHandshakeBurst() {
+		return handshakeBurst;
+	}
+
+
+	public int getHandshakeRate() {
+		return handshakeRate;
+	}
+
+
+	public int getHandshakeThreadPoolSize() {
+		return handshakeThreadPoolSize;
+	}
+
+
+	public IOMode getIoMode() {
+		return ioMode;
+	}
+
+
+	public int getJournalBatchSize() {
+		return journalBatchSize;
+	}
+
+
+	public int getJournalCapacity() {
+		return journalCapacity;
+	}
+
+
+	public int getJournalFlushInterval() {
+		return journalFlushInterval;
+	}
+
+
+	public int getKeepAliveMaxTimeout() {
+		return keepAliveMaxTimeout;
+	}
+
+
+	public int getKeepAliveMinTimeout() {
+		return keepAliveMinTimeout;
+	}
+
+
 	public int getKeepAliveTimeout() {
 		return keepAliveTimeout;
 	}
@@ -54,30 +178,110 @@ public class ServerOptions {
 		return maxClients;
 	}
 	
+	public int getMaxPendingHandshakes() {
+		return maxPendingHandshakes;
+	}
+	
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+	
+	public int getOutboundQueueSize() {
+		return outboundQueueSize;
+	}
+
+	public int getPingResponseTimeout() {
+		return pingResponseTimeout;
+	}
+	
 	public int getPort() {
 		return port;
 	}
 
+	public int getSelectorThreads() {
+		return selectorThreads;
+	}
+
 	public int getServicePort() {
 		return servicePort;
 	}
 
+	public int getServiceThreadPoolSize() {
+		return serviceThreadPoolSize;
+	}
+
 	public int getTimedThreadPoolSize() {
 		return timedThreadPoolSize;
 	}
 	
+	public void setBacklogPageSize(int backlogPageSize) {
+		this.backlogPageSize = backlogPageSize;
+	}
+
 	public void setClientResponseTimeout(int clientResponseTimeout) {
 		this.clientResponseTimeout = clientResponseTimeout;
 	}
+
+	public void setClusterNode(String clusterNode) {
+		this.clusterNode = clusterNode;
+	}
+
+	public void setClusterNodes(String clusterNodes) {
+		this.clusterNodes = clusterNodes;
+	}
 	
 	public void setDelayedMessagesQty(int delayedMessagesQty) {
 		this.delayedMessagesQty = delayedMessagesQty;
 	}
 	
+	public void setDeliveryWindow(int deliveryWindow) {
+		this.deliveryWindow = deliveryWindow;
+	}
+	
+	public void setFanOutWindow(int fanOutWindow) {
+		this.fanOutWindow = fanOutWindow;
+	}
+	
 	public void setGeneralThreadPoolSize(int generalThreadPoolSize) {
 		this.generalThreadPoolSize = generalThreadPoolSize;
 	}
 
+	public void setHandshakeBurst(int handshakeBurst) {
+		this.handshakeBurst = handshakeBurst;
+	}
+
+	public void setHandshakeRate(int handshakeRate) {
+		this.handshakeRate = handshakeRate;
+	}
+
+	public void setHandshakeThreadPoolSize(int handshakeThreadPoolSize) {
+		this.handshakeThreadPoolSize = handshakeThreadPoolSize;
+	}
+
+	public void setIoMode(IOMode ioMode) {
+		this.ioMode = ioMode;
+	}
+
+	public void setJournalBatchSize(int journalBatchSize) {
+		this.journalBatchSize = journalBatchSize;
+	}
+
+	public void setJournalCapacity(int journalCapacity) {
+		this.journalCapacity = journalCapacity;
+	}
+
+	public void setJournalFlushInterval(int journalFlushInterval) {
+		this.journalFlushInterval = journalFlushInterval;
+	}
+
+	public void setKeepAliveMaxTimeout(int keepAliveMaxTimeout) {
+		this.keepAliveMaxTimeout = keepAliveMaxTimeout;
+	}
+
+	public void setKeepAliveMinTimeout(int keepAliveMinTimeout) {
+		this.keepAliveMinTimeout = keepAliveMinTimeout;
+	}
+
 	public void setKeepAliveTimeout(int keepAliveTimeout) {
 		this.keepAliveTimeout = keepAliveTimeout;
 	}
@@ -86,14 +290,38 @@ public class ServerOptions {
 		this.maxClients = maxClients;
 	}
 
+	public void setMaxPendingHandshakes(int maxPendingHandshakes) {
+		this.maxPendingHandshakes = maxPendingHandshakes;
+	}
+
+	public void setMetricsPort(int metricsPort) {
+		this.metricsPort = metricsPort;
+	}
+
+	public void setOutboundQueueSize(int outboundQueueSize) {
+		this.outboundQueueSize = outboundQueueSize;
+	}
+	
+	public void setPingResponseTimeout(int pingResponseTimeout) {
+		this.pingResponseTimeout = pingResponseTimeout;
+	}
+
 	public void setPort(int port) {
 		this.port = port;
 	}
 
+	public void setSelectorThreads(int selectorThreads) {
+		this.selectorThreads = selectorThreads;
+	}
+
 	public void setServicePort(int servicePort) {
 		this.servicePort = servicePort;
 	}
 
+	public void setServiceThreadPoolSize(int serviceThreadPoolSize) {
+		this.serviceThreadPoolSize = serviceThreadPoolSize;
+	}
+
 	public void setTimedThreadPoolSize(int threadPoolSize) {
 		this.timedThreadPoolSize = threadPoolSize;
 	}
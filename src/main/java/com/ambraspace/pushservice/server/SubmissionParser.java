@@ -0,0 +1,454 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.Date;
+
+import org.json.JSONException;
+
+
+/**
+ * Streaming parser of message submissions on the service port, i.e.
+ * {"type":"message","message":{"id":..,"text":..,"date":..,"to":[..]}},
+ * optionally with "ttl" and "priority" in the message.
+ * It reads the fields straight from the request, without building
+ * a JSONObject tree: recipients go directly into the Message's map,
+ * other fields are skipped without being materialized. This matters
+ * for submissions with hundreds of thousands of recipients.
+ * Anything which is not a message submission (e.g. a command) is left
+ * to JSONObject, as soon as its type is known.
+ * Only strict JSON is accepted; the caller may fall back to JSONObject
+ * (which is more lenient) when parse() throws JSONException.
+ */
+class SubmissionParser {
+
+	private final String data;
+	private int pos;
+
+	private Message message;
+	// Set when fields of the message are missing or of wrong type
+	private boolean invalid;
+
+
+	public SubmissionParser(String data) {
+		this.data = data;
+	}
+
+
+	/**
+	 * Parses the request.
+	 * @return true if the request is a message submission
+	 * (see getMessage()), false if it is something else
+	 * @throws JSONException if the request is not valid JSON,
+	 * or not a valid submission
+	 */
+	public boolean parse() throws JSONException {
+
+		String type = null;
+		boolean hasMessage = false;
+
+		skipWhitespace();
+		expect('{');
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return false;
+		}
+		while (true) {
+			skipWhitespace();
+			String key = readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			switch (key) {
+				case "type":
+					if (peek() != '"') {
+						throw error("Type is not a string");
+					}
+					type = readString();
+					if (!"message".equals(type)) {
+						return false;
+					}
+					break;
+				case "message":
+					if (peek() != '{') {
+						throw error("Message is not an object");
+					}
+					readMessage();
+					hasMessage = true;
+					break;
+				default:
+					skipValue();
+			}
+			skipWhitespace();
+			if (next() == '}') {
+				break;
+			}
+			pos--;
+			expect(',');
+		}
+
+		if (type == null) {
+			return false;
+		}
+		if (!hasMessage) {
+			throw error("No message");
+		}
+		return true;
+
+	}
+
+
+	/**
+	 * Returns the submitted message, or null if some of its fields
+	 * are missing or of wrong type (just like Message.parseJSONMessage()).
+	 * @return message
+	 */
+	public Message getMessage() {
+		return invalid ? null : message;
+	}
+
+
+	private void readMessage() throws JSONException {
+
+		boolean hasId = false;
+		boolean hasText = false;
+		boolean hasDate = false;
+		boolean hasTo = false;
+		boolean hasTtl = false;
+		long ttl = 0;
+		message = new Message();
+
+		expect('{');
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			invalid = true;
+			return;
+		}
+		while (true) {
+			skipWhitespace();
+			String key = readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			switch (key) {
+				case "id":
+					message.setId(readLong());
+					hasId = true;
+					break;
+				case "text":
+					message.setText(readStringValue());
+					hasText = true;
+					break;
+				case "date":
+					message.setDateSent(new Date(readLong()));
+					hasDate = true;
+					break;
+				case "to":
+					readRecipients();
+					hasTo = true;
+					break;
+				case "application":
+					message.setApplicationUID(readStringValue());
+					break;
+				case "topic":
+					message.setTopic(readStringValue());
+					break;
+				case "ttl":
+					ttl = readLong();
+					hasTtl = true;
+					break;
+				case "priority":
+					message.setPriority(Message.parsePriority(readStringValue()));
+					if (message.getPriority() == null) {
+						invalid = true;
+					}
+					break;
+				default:
+					skipValue();
+			}
+			skipWhitespace();
+			if (next() == '}') {
+				break;
+			}
+			pos--;
+			expect(',');
+		}
+
+		if (!hasId || !hasText || !hasDate) {
+			invalid = true;
+			return;
+		}
+		if (hasTtl) {
+			// Seconds from the date the message was sent
+			message.setExpires(new Date(message.getDateSent().getTime() + ttl * 1000));
+		}
+		if (hasTo) {
+			// Not a broadcast after all
+			message.setApplicationUID(null);
+			message.setTopic(null);
+		} else if (message.getApplicationUID() == null) {
+			invalid = true;
+		}
+
+	}
+
+
+	private void readRecipients() throws JSONException {
+
+		if (peek() != '[') {
+			skipValue();
+			invalid = true;
+			return;
+		}
+		pos++;
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return;
+		}
+		while (true) {
+			skipWhitespace();
+			if (peek() == '"') {
+				message.getRecipients().put(readString(), false);
+			} else {
+				skipValue();
+				invalid = true;
+			}
+			skipWhitespace();
+			char c = next();
+			if (c == ']') {
+				return;
+			}
+			if (c != ',') {
+				throw error("Expected ',' or ']'");
+			}
+		}
+
+	}
+
+
+	/**
+	 * Reads a string, or skips any other value and marks
+	 * the message invalid.
+	 */
+	private String readStringValue() throws JSONException {
+		if (peek() == '"') {
+			return readString();
+		}
+		skipValue();
+		invalid = true;
+		return null;
+	}
+
+
+	/**
+	 * Reads a number (or a string holding a number). Any other value
+	 * is skipped and marks the message invalid.
+	 */
+	private long readLong() throws JSONException {
+
+		String number;
+		char c = peek();
+		if (c == '"') {
+			number = readString();
+		} else if (c == '-' || (c >= '0' && c <= '9')) {
+			number = readNumber();
+		} else {
+			skipValue();
+			invalid = true;
+			return 0;
+		}
+		try {
+			if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+				return Long.parseLong(number);
+			}
+			return (long) Double.parseDouble(number);
+		} catch (NumberFormatException e) {
+			invalid = true;
+			return 0;
+		}
+
+	}
+
+
+	private String readNumber() {
+		int start = pos;
+		while (pos < data.length()) {
+			char c = data.charAt(pos);
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+				pos++;
+			} else {
+				break;
+			}
+		}
+		return data.substring(start, pos);
+	}
+
+
+	private String readString() throws JSONException {
+
+		expect('"');
+		int start = pos;
+		// Fast path: no escapes
+		while (pos < data.length()) {
+			char c = data.charAt(pos);
+			if (c == '"') {
+				return data.substring(start, pos++);
+			}
+			if (c == '\\') {
+				break;
+			}
+			pos++;
+		}
+
+		StringBuilder sb = new StringBuilder(data.length() - start);
+		sb.append(data, start, pos);
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				return sb.toString();
+			}
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			c = next();
+			switch (c) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (pos + 4 > data.length()) {
+						throw error("Unterminated string");
+					}
+					try {
+						sb.append((char) Integer.parseInt(data.substring(pos, pos + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error("Illegal escape");
+					}
+					pos += 4;
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					sb.append(c);
+					break;
+				default:
+					throw error("Illegal escape");
+			}
+		}
+
+	}
+
+
+	/**
+	 * Skips a value of any type, including nested objects and arrays.
+	 */
+	private void skipValue() throws JSONException {
+
+		char c = peek();
+		switch (c) {
+			case '"':
+				readString();
+				return;
+			case '{':
+			case '[':
+				pos++;
+				skipWhitespace();
+				char close = (c == '{') ? '}' : ']';
+				if (peek() == close) {
+					pos++;
+					return;
+				}
+				while (true) {
+					skipWhitespace();
+					if (c == '{') {
+						readString();
+						skipWhitespace();
+						expect(':');
+						skipWhitespace();
+					}
+					skipValue();
+					skipWhitespace();
+					char n = next();
+					if (n == close) {
+						return;
+					}
+					if (n != ',') {
+						throw error("Expected ',' or '" + close + "'");
+					}
+				}
+			case 't':
+				expectWord("true");
+				return;
+			case 'f':
+				expectWord("false");
+				return;
+			case 'n':
+				expectWord("null");
+				return;
+			default:
+				if (c == '-' || (c >= '0' && c <= '9')) {
+					readNumber();
+					return;
+				}
+				throw error("Unexpected character '" + c + "'");
+		}
+
+	}
+
+
+	private void expectWord(String word) throws JSONException {
+		if (!data.startsWith(word, pos)) {
+			throw error("Expected " + word);
+		}
+		pos += word.length();
+	}
+
+
+	private void expect(char c) throws JSONException {
+		if (next() != c) {
+			throw error("Expected '" + c + "'");
+		}
+	}
+
+
+	private char peek() throws JSONException {
+		if (pos >= data.length()) {
+			throw error("Unexpected end of data");
+		}
+		return data.charAt(pos);
+	}
+
+
+	private char next() throws JSONException {
+		char c = peek();
+		pos++;
+		return c;
+	}
+
+
+	private void skipWhitespace() {
+		while (pos < data.length() && data.charAt(pos) <= ' ') {
+			pos++;
+		}
+	}
+
+
+	private JSONException error(String message) {
+		return new JSONException(message + " at " + pos);
+	}
+
+}
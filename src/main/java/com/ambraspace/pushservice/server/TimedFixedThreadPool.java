@@ -1,54 +1,128 @@
 package com.ambraspace.pushservice.server;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Fixed size thread pool which interrupts tasks running longer than their
+ * maximum run time. Deadlines of all running tasks are kept in one
+ * TimingWheel, so no extra thread is started per task. Each task can have
+ * its own maximum run time (see Timed), otherwise the pool's default applies.
+ */
 public class TimedFixedThreadPool extends ThreadPoolExecutor {
-	
-	
-	private long maxRunTime;
-	private TimeUnit timeUnit;
-	
-	private Map<Runnable, Timer> mapping;
-	
-	
-	private class Timer extends Thread {
-		
-		private Thread observedThread = null;
-		
-		public Timer(Thread observedThread) {
-			this.observedThread = observedThread;
-			setName(observedThread.getName() + " (Timer)");
-			setDaemon(true);
+
+	private static Logger logger = Logger.getLogger("TimedFixedThreadPool");
+
+	// Resolution of deadlines (milliseconds)
+	private static final long DEADLINE_TICK = 10;
+
+
+	/**
+	 * Tasks implementing this interface specify their own maximum run time.
+	 */
+	public interface Timed {
+
+		long getMaxRunTime(TimeUnit unit);
+
+	}
+
+
+	private class TimedFutureTask<V> extends FutureTask<V> implements Timed {
+
+		private final long maxRunTime; // nanoseconds
+
+		public TimedFutureTask(Callable<V> callable, long maxRunTime) {
+			super(callable);
+			this.maxRunTime = maxRunTime;
+		}
+
+		public TimedFutureTask(Runnable runnable, V result, long maxRunTime) {
+			super(runnable, result);
+			this.maxRunTime = maxRunTime;
 		}
 
 		@Override
-		public void run() {
+		public long getMaxRunTime(TimeUnit unit) {
+			return unit.convert(maxRunTime, TimeUnit.NANOSECONDS);
+		}
+
+	}
+
+
+	/**
+	 * Deadline of one running task. Completion and expiration are mutually
+	 * exclusive, so a late expiration never interrupts the next task run by
+	 * the same thread.
+	 */
+	private static class Deadline {
 
-			try {
-				observedThread.join(timeUnit.toMillis(maxRunTime));
-				observedThread.interrupt();
-			} catch (InterruptedException e) {
+		private final Thread thread;
+		private boolean done = false;
+		private TimingWheel.Timeout<Deadline> timeout;
 
+		public Deadline(Thread thread) {
+			this.thread = thread;
+		}
+
+		private synchronized boolean expire() {
+			if (done) {
+				return false;
 			}
-			
+			done = true;
+			thread.interrupt();
+			return true;
 		}
-		
+
+		private synchronized void complete() {
+			done = true;
+		}
+
 	}
 
-	
+
+	private class Watchdog implements TimingWheel.Handler<Deadline> {
+
+		@Override
+		public void expired(List<Deadline> deadlines) {
+			for (Deadline d : deadlines) {
+				if (d.expire()) {
+					timedOutTasks.incrementAndGet();
+					logger.logp(Level.FINE, "TimedFixedThreadPool.Watchdog", "expired()", "Task in " + d.thread.getName() + " interrupted.");
+				}
+			}
+		}
+
+	}
+
+
+	private final long maxRunTime; // nanoseconds
+
+	private final TimingWheel<Deadline> deadlines;
+
+	// Deadline of the task currently run by a worker thread
+	private final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+	private final AtomicLong timedOutTasks = new AtomicLong();
+
+
 	public TimedFixedThreadPool(int size, long maxRunTime, TimeUnit timeUnit) {
 
 		this(size, maxRunTime, timeUnit, Executors.defaultThreadFactory());
 
 	}
-	
-	
+
+
 	public TimedFixedThreadPool(int size, long maxRunTime, TimeUnit timeUnit, ThreadFactory factory) {
 
 		super(
@@ -58,27 +132,97 @@ public class TimedFixedThreadPool extends ThreadPoolExecutor {
 				TimeUnit.MILLISECONDS,
 				new LinkedBlockingQueue<Runnable>(),
 				factory);
-		
-		this.maxRunTime = maxRunTime;
-		this.timeUnit = timeUnit;
-	
-		this.mapping = new HashMap<Runnable, Timer>();
-		
+
+		this.maxRunTime = timeUnit.toNanos(maxRunTime);
+
+		this.deadlines = new TimingWheel<Deadline>(
+				"TimedFixedThreadPool.Watchdog",
+				DEADLINE_TICK,
+				TimeUnit.MILLISECONDS,
+				(int) Math.min(timeUnit.toMillis(maxRunTime) / DEADLINE_TICK + 1, 1 << 16),
+				new Watchdog());
+
+	}
+
+
+	/**
+	 * Executes the task with the given maximum run time instead of
+	 * the pool's default.
+	 * @param task task to execute
+	 * @param maxRunTime maximum run time of the task
+	 * @param unit time unit of maxRunTime
+	 */
+	public void execute(Runnable task, long maxRunTime, TimeUnit unit) {
+		execute(new TimedFutureTask<Void>(task, null, unit.toNanos(maxRunTime)));
+	}
+
+
+	/**
+	 * Submits the task with the given maximum run time instead of
+	 * the pool's default.
+	 * @param task task to submit
+	 * @param maxRunTime maximum run time of the task
+	 * @param unit time unit of maxRunTime
+	 * @return Future representing the task
+	 */
+	public <T> Future<T> submit(Callable<T> task, long maxRunTime, TimeUnit unit) {
+		TimedFutureTask<T> f = new TimedFutureTask<T>(task, unit.toNanos(maxRunTime));
+		execute(f);
+		return f;
+	}
+
+
+	/**
+	 * Returns number of tasks interrupted because they hit their deadline.
+	 * @return number of timed out tasks
+	 */
+	public long getTimedOutTaskCount() {
+		return timedOutTasks.get();
+	}
+
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+		return new TimedFutureTask<T>(callable, maxRunTime(callable));
+	}
+
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+		return new TimedFutureTask<T>(runnable, value, maxRunTime(runnable));
 	}
 
 
 	@Override
 	protected void beforeExecute(Thread t, Runnable r) {
-		Timer timer = new Timer(t);
-		mapping.put(r, timer);
-		timer.start();
+		Deadline d = new Deadline(t);
+		d.timeout = deadlines.schedule(d, maxRunTime(r), TimeUnit.NANOSECONDS);
+		current.set(d);
 	}
 
 
 	@Override
 	protected void afterExecute(Runnable r, Throwable t) {
-		Timer timer = mapping.remove(r);
-		timer.interrupt();
+		Deadline d = current.get();
+		current.remove();
+		if (d != null) {
+			d.complete();
+			d.timeout.cancel();
+		}
+	}
+
+
+	@Override
+	protected void terminated() {
+		deadlines.stop();
+	}
+
+
+	private long maxRunTime(Object task) {
+		if (task instanceof Timed) {
+			return ((Timed) task).getMaxRunTime(TimeUnit.NANOSECONDS);
+		}
+		return maxRunTime;
 	}
 
 
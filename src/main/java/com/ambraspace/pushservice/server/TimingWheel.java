@@ -0,0 +1,377 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Hierarchical hashed timing wheel.
+ * Time is divided into ticks. Every level of the wheel is an array of
+ * buckets (doubly linked lists), level 0 holding timeouts due within one
+ * rotation, and every next level covering a rotation of the previous one.
+ * Timeouts from higher levels are cascaded down as the wheel turns.
+ * Scheduling and cancelling are O(1). A single thread turns the wheel and
+ * hands all timeouts due in a tick to the Handler in one batch.
+ * @param <T> type of scheduled items
+ */
+public class TimingWheel<T> {
+
+	private static Logger logger = Logger.getLogger("TimingWheel");
+
+	private static final int LEVELS = 4;
+	// Number of randomly chosen slots considered when spreading timeouts
+	private static final int SPREAD_PROBES = 3;
+
+
+	/**
+	 * Handler receives items whose timeouts expired.
+	 * It is called from the wheel's thread, so it should return quickly.
+	 * @param <T> type of scheduled items
+	 */
+	public interface Handler<T> {
+
+		void expired(List<T> items);
+
+	}
+
+
+	/**
+	 * Handle of a scheduled item.
+	 * @param <T> type of scheduled item
+	 */
+	public static final class Timeout<T> {
+
+		private final TimingWheel<T> wheel;
+		private final T item;
+		private final long deadline; // in ticks
+		private Bucket<T> bucket;
+		private Timeout<T> prev;
+		private Timeout<T> next;
+
+		private Timeout(TimingWheel<T> wheel, T item, long deadline) {
+			this.wheel = wheel;
+			this.item = item;
+			this.deadline = deadline;
+		}
+
+		public T getItem() {
+			return item;
+		}
+
+		/**
+		 * Returns the time when this timeout expires.
+		 * @return expiration time in milliseconds since the epoch
+		 */
+		public long getDeadline() {
+			return wheel.startTime + TimeUnit.NANOSECONDS.toMillis(deadline * wheel.tickNanos);
+		}
+
+		/**
+		 * Cancels this timeout.
+		 * @return true if cancelled, false if already expired or cancelled
+		 */
+		public boolean cancel() {
+			return wheel.cancel(this);
+		}
+
+	}
+
+
+	private static final class Bucket<T> {
+
+		private Timeout<T> head;
+		private Timeout<T> tail;
+		private int size;
+
+		private void add(Timeout<T> t) {
+			t.bucket = this;
+			t.prev = tail;
+			t.next = null;
+			if (tail == null) {
+				head = t;
+			} else {
+				tail.next = t;
+			}
+			tail = t;
+			size++;
+		}
+
+		private void remove(Timeout<T> t) {
+			if (t.prev == null) {
+				head = t.next;
+			} else {
+				t.prev.next = t.next;
+			}
+			if (t.next == null) {
+				tail = t.prev;
+			} else {
+				t.next.prev = t.prev;
+			}
+			t.prev = null;
+			t.next = null;
+			t.bucket = null;
+			size--;
+		}
+
+		/**
+		 * Empties the bucket.
+		 * @return first Timeout of the detached list
+		 */
+		private Timeout<T> detach() {
+			Timeout<T> first = head;
+			head = null;
+			tail = null;
+			size = 0;
+			return first;
+		}
+
+	}
+
+
+	private class Ticker extends Thread {
+
+		public Ticker(String name) {
+			setName(name);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+
+			long ticks = 0;
+
+			while (!Thread.interrupted()) {
+
+				long sleep = startNanos + (ticks + 1) * tickNanos - System.nanoTime();
+				if (sleep > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(sleep);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				ticks++;
+
+				List<T> expired;
+				synchronized (TimingWheel.this) {
+					expired = advance();
+				}
+
+				if (!expired.isEmpty()) {
+					try {
+						handler.expired(expired);
+					} catch (RuntimeException e) {
+						logger.logp(Level.SEVERE, "TimingWheel.Ticker", "run()", "Handler failed!");
+						e.printStackTrace();
+					}
+				}
+
+			}
+
+		}
+
+	}
+
+
+	private final long tickNanos;
+	private final int bits;
+	private final int mask;
+	private final Bucket<T>[][] wheel;
+	private final Handler<T> handler;
+	private final long startNanos;
+	private final long startTime;
+	private final Random random = new Random();
+	private final Ticker ticker;
+
+	// Last processed tick
+	private long currentTick = 0;
+	private int size = 0;
+
+
+	/**
+	 * Creates and starts a new TimingWheel.
+	 * @param name name of the wheel's thread
+	 * @param tickDuration duration of one tick
+	 * @param unit time unit of tickDuration
+	 * @param wheelSize number of ticks per rotation (rounded up to a power of two)
+	 * @param handler handler of expired items
+	 */
+	public TimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize, Handler<T> handler) {
+
+		if (tickDuration <= 0 || wheelSize <= 0 || handler == null) {
+			throw new IllegalArgumentException();
+		}
+
+		int b = 1;
+		while ((1 << b) < wheelSize && b < 16) {
+			b++;
+		}
+
+		this.bits = b;
+		this.mask = (1 << b) - 1;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.handler = handler;
+		// Generic arrays can't be created; the array never leaves the wheel,
+		// so it only ever holds Bucket<T>
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Bucket<T>[][] buckets = new Bucket[LEVELS][1 << b];
+		this.wheel = buckets;
+		for (int l = 0; l < LEVELS; l++) {
+			for (int i = 0; i <= mask; i++) {
+				wheel[l][i] = new Bucket<T>();
+			}
+		}
+
+		this.startNanos = System.nanoTime();
+		this.startTime = System.currentTimeMillis();
+		this.ticker = new Ticker(name);
+		this.ticker.start();
+
+	}
+
+
+	/**
+	 * Schedules an item to expire after the given delay.
+	 * @param item item to schedule
+	 * @param delay delay
+	 * @param unit time unit of delay
+	 * @return handle which can be used to cancel the timeout
+	 */
+	public Timeout<T> schedule(T item, long delay, TimeUnit unit) {
+		return schedule(item, delay, 0, unit);
+	}
+
+
+	/**
+	 * Schedules an item to expire after the given delay, or up to spread
+	 * earlier, choosing the least loaded slot among a few candidates.
+	 * This keeps the number of items expiring in one tick flat.
+	 * @param item item to schedule
+	 * @param delay delay
+	 * @param spread how much earlier the item may expire
+	 * @param unit time unit of delay and spread
+	 * @return handle which can be used to cancel the timeout
+	 */
+	public synchronized Timeout<T> schedule(T item, long delay, long spread, TimeUnit unit) {
+
+		long ticks = Math.max(1, (unit.toNanos(delay) + tickNanos - 1) / tickNanos);
+		long deadline = currentTick + ticks;
+
+		if (spread > 0 && ticks <= mask) {
+			long spreadTicks = Math.min(unit.toNanos(spread) / tickNanos, ticks - 1);
+			if (spreadTicks > 0) {
+				deadline = leastLoaded(deadline, spreadTicks);
+			}
+		}
+
+		Timeout<T> t = new Timeout<T>(this, item, deadline);
+		place(t);
+		size++;
+		return t;
+
+	}
+
+
+	/**
+	 * Returns number of scheduled items.
+	 * @return number of scheduled items
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+
+	/**
+	 * Stops the wheel's thread. Scheduled items will never expire.
+	 */
+	public void stop() {
+		ticker.interrupt();
+	}
+
+
+	private synchronized boolean cancel(Timeout<T> t) {
+		if (t.bucket == null) {
+			return false;
+		}
+		t.bucket.remove(t);
+		size--;
+		return true;
+	}
+
+
+	private long leastLoaded(long deadline, long spreadTicks) {
+		long best = deadline;
+		int bestSize = wheel[0][(int) (best & mask)].size;
+		for (int i = 0; i < SPREAD_PROBES && bestSize > 0; i++) {
+			long candidate = deadline - 1 - (long) (random.nextDouble() * spreadTicks);
+			int candidateSize = wheel[0][(int) (candidate & mask)].size;
+			if (candidateSize < bestSize) {
+				best = candidate;
+				bestSize = candidateSize;
+			}
+		}
+		return best;
+	}
+
+
+	private void place(Timeout<T> t) {
+
+		long diff = t.deadline - currentTick;
+		int level = 0;
+		while (level < LEVELS - 1 && diff >= (1L << (bits * (level + 1)))) {
+			level++;
+		}
+		int index = (int) ((Math.max(t.deadline, currentTick) >>> (bits * level)) & mask);
+		wheel[level][index].add(t);
+
+	}
+
+
+	/**
+	 * Moves the wheel one tick forward.
+	 * @return items expired in the new tick
+	 */
+	private List<T> advance() {
+
+		currentTick++;
+
+		for (int level = LEVELS - 1; level > 0; level--) {
+			if ((currentTick & ((1L << (bits * level)) - 1)) == 0) {
+				Timeout<T> t = wheel[level][(int) ((currentTick >>> (bits * level)) & mask)].detach();
+				while (t != null) {
+					Timeout<T> next = t.next;
+					t.prev = null;
+					t.next = null;
+					t.bucket = null;
+					place(t);
+					t = next;
+				}
+			}
+		}
+
+		Bucket<T> bucket = wheel[0][(int) (currentTick & mask)];
+		if (bucket.size == 0) {
+			return Collections.emptyList();
+		}
+
+		List<T> expired = new ArrayList<T>(bucket.size);
+		Timeout<T> t = bucket.detach();
+		while (t != null) {
+			Timeout<T> next = t.next;
+			t.prev = null;
+			t.next = null;
+			t.bucket = null;
+			expired.add(t.item);
+			t = next;
+		}
+		size -= expired.size();
+		return expired;
+
+	}
+
+}
@@ -0,0 +1,359 @@
+package com.ambraspace.pushservice.server;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executor running every task in a thread of its own: a virtual thread
+ * if the JVM supports them (Java 21 or newer), a platform thread otherwise.
+ * Deadlines don't rely on interrupts. When a task runs longer than its
+ * maximum run time (see TimedFixedThreadPool.Timed), it is aborted: tasks
+ * implementing Abortable close their connection, which wakes up any blocked
+ * I/O; other tasks are interrupted. All deadlines are kept in one TimingWheel.
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+	private static Logger logger = Logger.getLogger("VirtualThreadExecutor");
+
+	// Whether virtual threads can actually be created, not just whether
+	// Thread.ofVirtual() exists
+	private static final boolean VIRTUAL_THREADS_SUPPORTED =
+			newVirtualThreadFactory("VirtualThreadExecutor") != null;
+
+	// Resolution of deadlines (milliseconds)
+	private static final long DEADLINE_TICK = 10;
+
+
+	/**
+	 * Tasks implementing this interface know how to stop themselves
+	 * (e.g. by closing their connection) when they hit their deadline.
+	 */
+	public interface Abortable {
+
+		void abort();
+
+	}
+
+
+	/**
+	 * One running task. Completion and expiration are mutually exclusive,
+	 * so a late expiration never aborts a finished task.
+	 */
+	private class Task implements Runnable {
+
+		private final Runnable task;
+		private final AtomicBoolean done = new AtomicBoolean();
+		private volatile Thread thread;
+		private TimingWheel.Timeout<Task> timeout;
+
+		public Task(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			thread = Thread.currentThread();
+			try {
+				task.run();
+			} finally {
+				done.set(true);
+				if (timeout != null) {
+					timeout.cancel();
+				}
+				finished();
+			}
+		}
+
+		private void expire() {
+			if (!done.compareAndSet(false, true)) {
+				return;
+			}
+			timedOutTasks.incrementAndGet();
+			logger.logp(Level.FINE, "VirtualThreadExecutor.Task", "expire()", "Task " + task + " aborted.");
+			if (task instanceof Abortable) {
+				((Abortable) task).abort();
+			} else if (thread != null) {
+				thread.interrupt();
+			}
+		}
+
+	}
+
+
+	private class Watchdog implements TimingWheel.Handler<Task> {
+
+		@Override
+		public void expired(List<Task> tasks) {
+			for (Task t : tasks) {
+				t.expire();
+			}
+		}
+
+	}
+
+
+	private final ThreadFactory factory;
+	private final long maxRunTime; // nanoseconds, 0 for none
+	private final TimingWheel<Task> deadlines;
+
+	private volatile boolean shutdown = false;
+	private final AtomicInteger active = new AtomicInteger();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition terminated = lock.newCondition();
+
+	private final AtomicLong timedOutTasks = new AtomicLong();
+
+
+	/**
+	 * Creates a new executor.
+	 * @param name name of the threads
+	 * @param maxRunTime default maximum run time of tasks, 0 for no deadline
+	 * @param unit time unit of maxRunTime
+	 */
+	public VirtualThreadExecutor(String name, long maxRunTime, TimeUnit unit) {
+
+		this.factory = newThreadFactory(name);
+		this.maxRunTime = unit.toNanos(maxRunTime);
+		this.deadlines = new TimingWheel<Task>(
+				name + ".Watchdog",
+				DEADLINE_TICK,
+				TimeUnit.MILLISECONDS,
+				(int) Math.min(Math.max(unit.toMillis(maxRunTime), 1000) / DEADLINE_TICK + 1, 1 << 16),
+				new Watchdog());
+
+	}
+
+
+	/**
+	 * Checks whether tasks run in virtual threads.
+	 * @return true if the JVM supports virtual threads
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return VIRTUAL_THREADS_SUPPORTED;
+	}
+
+
+	@Override
+	public void execute(Runnable command) {
+
+		if (command == null) {
+			throw new NullPointerException();
+		}
+		if (shutdown) {
+			throw new RejectedExecutionException();
+		}
+
+		Task task = new Task(command);
+		long runTime = maxRunTime(command);
+		if (runTime > 0) {
+			task.timeout = deadlines.schedule(task, runTime, TimeUnit.NANOSECONDS);
+		}
+		active.incrementAndGet();
+		try {
+			factory.newThread(task).start();
+		} catch (RuntimeException | Error e) {
+			if (task.timeout != null) {
+				task.timeout.cancel();
+			}
+			finished();
+			throw e;
+		}
+
+	}
+
+
+	/**
+	 * Returns number of tasks aborted because they hit their deadline.
+	 * @return number of timed out tasks
+	 */
+	public long getTimedOutTaskCount() {
+		return timedOutTasks.get();
+	}
+
+
+	public int getActiveCount() {
+		return active.get();
+	}
+
+
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		lock.lock();
+		try {
+			if (active.get() == 0) {
+				terminated.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown();
+		return Collections.emptyList();
+	}
+
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown && active.get() == 0;
+	}
+
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (!isTerminated()) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = terminated.awaitNanos(nanos);
+			}
+			deadlines.stop();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+		return new TimedFuture<T>(runnable, value);
+	}
+
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+		return new TimedFuture<T>(callable);
+	}
+
+
+	/**
+	 * Future keeping the submitted task's maximum run time and abort hook.
+	 */
+	private class TimedFuture<T> extends FutureTask<T>
+			implements TimedFixedThreadPool.Timed, Abortable {
+
+		private final Object task;
+
+		public TimedFuture(Runnable task, T result) {
+			super(task, result);
+			this.task = task;
+		}
+
+		public TimedFuture(Callable<T> task) {
+			super(task);
+			this.task = task;
+		}
+
+		@Override
+		public long getMaxRunTime(TimeUnit unit) {
+			return unit.convert(maxRunTime(task), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public void abort() {
+			if (task instanceof Abortable) {
+				((Abortable) task).abort();
+			} else {
+				cancel(true);
+			}
+		}
+
+	}
+
+
+	private void finished() {
+		if (active.decrementAndGet() == 0 && shutdown) {
+			lock.lock();
+			try {
+				terminated.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+
+	private long maxRunTime(Object task) {
+		if (task instanceof TimedFixedThreadPool.Timed) {
+			return ((TimedFixedThreadPool.Timed) task).getMaxRunTime(TimeUnit.NANOSECONDS);
+		}
+		return maxRunTime;
+	}
+
+
+	/**
+	 * Creates a factory of virtual threads through reflection, so the
+	 * server still runs on older JVMs (with platform threads).
+	 */
+	private static ThreadFactory newThreadFactory(final String name) {
+
+		ThreadFactory virtual = newVirtualThreadFactory(name);
+		if (virtual != null) {
+			return virtual;
+		}
+
+		final AtomicLong count = new AtomicLong();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				t.setName(name + "-" + count.getAndIncrement());
+				return t;
+			}
+		};
+
+	}
+
+
+	/**
+	 * Creates a factory of virtual threads. Methods are looked up on the
+	 * public Thread.Builder interface, since the builder returned by
+	 * Thread.ofVirtual() is an instance of a non-public class, whose
+	 * methods can't be invoked through reflection.
+	 * @param name name of the threads
+	 * @return factory of virtual threads, or null if not supported
+	 */
+	private static ThreadFactory newVirtualThreadFactory(String name) {
+
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.logp(Level.FINE, "VirtualThreadExecutor", "newVirtualThreadFactory()", "Virtual threads not supported.", e);
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,4 @@
+-- Expiration time of messages (message TTL). NULL if the message never
+-- expires. Written by the server for messages submitted with "ttl", or by
+-- the application inserting the message.
+ALTER TABLE messages ADD COLUMN expires DATETIME NULL DEFAULT NULL;